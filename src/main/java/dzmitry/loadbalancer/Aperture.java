@@ -0,0 +1,199 @@
+package dzmitry.loadbalancer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deterministic subsetting (aperture) of a large fleet of providers. Each
+ * client uses only a window of the fleet so that the number of connections
+ * and heartbeat checks grows with the size of the window instead of the
+ * size of the fleet.
+ * 
+ * Providers are ordered by UUID so that all clients see the same ring.
+ * Client {@code i} of {@code n} starts its window at the position
+ * {@code i * fleetSize / n} of the ring. Windows of clients are evenly
+ * spread over the ring: with {@code n * size >= fleetSize} each provider
+ * belongs to the windows of about {@code n * size / fleetSize} clients and
+ * the difference between providers is at most one client.
+ * 
+ * The window is resized with observed load: it grows by one provider when
+ * the utilisation of the load balancer is above {@link #HIGH_UTILISATION}
+ * and shrinks by one provider when it is below {@link #LOW_UTILISATION}.
+ * Providers are added to and removed from the load balancer directly so
+ * heartbeat checks run only for the window. Removed providers are drained
+ * and are not closed.
+ */
+public class Aperture implements AutoCloseable
+{
+    /** The share of capacity in use above which the window grows. */
+    public static final double HIGH_UTILISATION = 0.75;
+    /** The share of capacity in use below which the window shrinks. */
+    public static final double LOW_UTILISATION = 0.25;
+    
+    /** The fleet ordered by UUID. */
+    private final Provider[] ring;
+    /** The position of the window on the ring. */
+    private final int offset;
+    private final int minSize;
+    private final int maxSize;
+    
+    /** The current size of the window. Guarded by {@code this}. */
+    private int size;
+    /** Guarded by {@code this}. */
+    private LoadBalancer balancer;
+    private ScheduledExecutorService executor;
+    
+    /**
+     * @param fleet all providers. UUIDs must be unique.
+     * @param clientIndex the index of this client within
+     *      {@code [0, clientCount)}.
+     * @param clientCount the number of clients sharing the fleet.
+     * @param minSize the minimum (and initial) number of providers
+     *      in the window.
+     * @param maxSize the maximum number of providers in the window. It
+     *      must not exceed the maximum size of the load balancer.
+     */
+    public Aperture(final Provider[] fleet, final int clientIndex,
+            final int clientCount, final int minSize, final int maxSize)
+    {
+        final int n = fleet.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("No providers.");
+        }
+        if (clientCount <= 0) {
+            throw new IllegalArgumentException("Non-positive client count.");
+        }
+        if (clientIndex < 0 || clientIndex >= clientCount) {
+            throw new IllegalArgumentException(
+                    "Client index must be within [0, " + clientCount + ").");
+        }
+        if (minSize <= 0 || minSize > maxSize || maxSize > n) {
+            throw new IllegalArgumentException(
+                    "Window sizes must satisfy 0 < min <= max <= " + n + ".");
+        }
+        ring = fleet.clone();
+        final HashSet<String> uuids = new HashSet<>();
+        for (final Provider p : ring) {
+            Objects.requireNonNull(p, "null provider");
+            if (!uuids.add(p.getUuid())) {
+                throw new IllegalArgumentException(
+                        "Duplicate UUID: " + p.getUuid());
+            }
+        }
+        Arrays.sort(ring, Comparator.comparing(Provider::getUuid));
+        offset = (int) ((long) clientIndex * n / clientCount);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        size = minSize;
+    }
+    
+    /**
+     * @return providers of the current window. They are expected to be
+     *      passed to the constructor of the load balancer which is given
+     *      to {@link #start(LoadBalancer, long)}.
+     */
+    public synchronized Provider[] subset()
+    {
+        final Provider[] result = new Provider[size];
+        for (int i = 0; i < size; ++i) {
+            result[i] = at(i);
+        }
+        return result;
+    }
+    
+    /**
+     * @return the number of providers in the window.
+     */
+    public synchronized int getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * Starts resizing the window of the load balancer in a daemon thread.
+     * 
+     * @param balancer the load balancer which contains the current window.
+     * @param periodMs the period of resizing in milliseconds.
+     */
+    public void start(final LoadBalancer balancer, final long periodMs)
+    {
+        Objects.requireNonNull(balancer);
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Non-positive period.");
+        }
+        synchronized (this) {
+            if (this.balancer != null) {
+                throw new IllegalStateException("Already started.");
+            }
+            this.balancer = balancer;
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread t = new Thread(runnable, "aperture");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                adjust();
+            }
+            catch (RuntimeException ex) {
+                /* E.g. the load balancer is full or the provider is
+                 * removed from it directly. Trying again next time.
+                 * The exception is not rethrown since it would cancel
+                 * periodic resizing.
+                 */
+                final Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Grows or shrinks the window by one provider depending on
+     * the utilisation of the load balancer.
+     */
+    synchronized void adjust()
+    {
+        final long capacity = balancer.getCapacity();
+        final double utilisation = capacity == 0 ? 1 :
+                (double) (capacity - balancer.getAvailableCapacity()) /
+                        capacity;
+        if (utilisation > HIGH_UTILISATION && size < maxSize) {
+            balancer.addProvider(at(size));
+            ++size;
+        } else if (utilisation < LOW_UTILISATION && size > minSize) {
+            final Provider last = at(size - 1);
+            --size;
+            balancer.removeProvider(last.getUuid());
+        }
+    }
+    
+    /**
+     * Stops resizing the window. The load balancer is not changed after that.
+     */
+    @Override
+    public void close()
+    {
+        final ScheduledExecutorService e;
+        synchronized (this) {
+            e = executor;
+        }
+        if (e != null) {
+            e.shutdownNow();
+        }
+    }
+    
+    /**
+     * @return the provider at the given position of the window.
+     */
+    private Provider at(final int i)
+    {
+        final int idx = offset + i;
+        return ring[idx < ring.length ? idx : idx - ring.length];
+    }
+}
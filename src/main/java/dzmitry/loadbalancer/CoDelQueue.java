@@ -0,0 +1,273 @@
+package dzmitry.loadbalancer;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Queue with controlled delay (CoDel) in front of a load balancer. Requests
+ * which exceed the capacity of the load balancer wait in the queue instead
+ * of being rejected right away and are shed when the queue stands.
+ * 
+ * The queue is considered standing (overloaded) if even the shortest
+ * queueing delay observed during an interval is above the target delay.
+ * While it is not overloaded waiters are served in FIFO order and each of
+ * them can wait up to the interval. When it is overloaded waiters which
+ * have waited longer than the target are shed first, the rest are served
+ * in LIFO order (adaptive LIFO) and new waiters give up after the target
+ * delay. So latency of served requests stays bounded while the load
+ * balancer is kept busy. If the queue is full its oldest waiter is shed
+ * to make room for the new one.
+ * 
+ * Shed requests fail with {@link IllegalStateException}.
+ */
+public class CoDelQueue
+{
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int SHED = 2;
+    
+    /* Waiter state is guarded by CoDelQueue.lock. The waiting thread
+     * is woken up via the done latch when the state is changed.
+     */
+    private static class Waiter
+    {
+        private final long enqueuedAtNs;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int state;
+        
+        public Waiter(final long enqueuedAtNs)
+        {
+            this.enqueuedAtNs = enqueuedAtNs;
+            state = WAITING;
+        }
+    }
+    
+    private final LoadBalancer balancer;
+    private final int maxWaiters;
+    private final long targetNs;
+    private final long intervalNs;
+    /** Source of time in nanoseconds. */
+    private final LongSupplier clock;
+    
+    /** Oldest waiters first. Guarded by {@code lock}. */
+    private final ArrayDeque<Waiter> waiters;
+    /** Requests passed to the load balancer. Guarded by {@code lock}. */
+    private long inFlight;
+    /** The end of the current interval. Guarded by {@code lock}. */
+    private long intervalEndNs;
+    /** The shortest delay in the current interval. Guarded by {@code lock}. */
+    private long minDelayNs;
+    private boolean overloaded;
+    private long shedCount;
+    private final Object lock;
+    
+    /**
+     * @param balancer the load balancer which processes requests. The queue
+     *      passes it up to its capacity of requests at once.
+     * @param maxWaiters the maximum number of waiting requests.
+     * @param targetMs the acceptable queueing delay in milliseconds.
+     * @param intervalMs the interval in milliseconds over which the queue
+     *      must have a delay below the target at least once not to be
+     *      considered overloaded. Normally it is about the longest response
+     *      time of providers.
+     */
+    public CoDelQueue(final LoadBalancer balancer, final int maxWaiters,
+            final long targetMs, final long intervalMs)
+    {
+        this(balancer, maxWaiters, targetMs, intervalMs, System::nanoTime);
+    }
+    
+    CoDelQueue(final LoadBalancer balancer, final int maxWaiters,
+            final long targetMs, final long intervalMs,
+            final LongSupplier clock)
+    {
+        Objects.requireNonNull(balancer);
+        Objects.requireNonNull(clock);
+        if (maxWaiters <= 0) {
+            throw new IllegalArgumentException("Non-positive max waiters.");
+        }
+        if (targetMs <= 0) {
+            throw new IllegalArgumentException("Non-positive target delay.");
+        }
+        if (intervalMs < targetMs) {
+            throw new IllegalArgumentException(
+                    "Interval is shorter than the target delay.");
+        }
+        this.balancer = balancer;
+        this.maxWaiters = maxWaiters;
+        targetNs = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        intervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.clock = clock;
+        waiters = new ArrayDeque<>();
+        intervalEndNs = clock.getAsLong() + intervalNs;
+        minDelayNs = Long.MAX_VALUE;
+        lock = new Object();
+    }
+    
+    public String get()
+    {
+        acquire();
+        try {
+            return balancer.get();
+        }
+        finally {
+            release();
+        }
+    }
+    
+    public String get(final String key)
+    {
+        acquire();
+        try {
+            return balancer.get(key);
+        }
+        finally {
+            release();
+        }
+    }
+    
+    /**
+     * @return the number of requests waiting in the queue.
+     */
+    public int getQueueLength()
+    {
+        synchronized (lock) {
+            return waiters.size();
+        }
+    }
+    
+    /**
+     * @return {@code true} if the queue stood above the target delay
+     *      during the last interval.
+     */
+    public boolean isOverloaded()
+    {
+        synchronized (lock) {
+            return overloaded;
+        }
+    }
+    
+    /**
+     * @return the number of requests shed since the queue is created.
+     */
+    public long getShedCount()
+    {
+        synchronized (lock) {
+            return shedCount;
+        }
+    }
+    
+    private void acquire()
+    {
+        final Waiter waiter;
+        final long timeoutNs;
+        synchronized (lock) {
+            final long now = clock.getAsLong();
+            dispatch(now);
+            if (waiters.isEmpty() && inFlight < balancer.getCapacity()) {
+                ++inFlight;
+                recordDelay(0);
+                return;
+            }
+            if (waiters.size() == maxWaiters) {
+                // The oldest waiter has the least chance to be served in time.
+                shed(waiters.pollFirst());
+            }
+            waiter = new Waiter(now);
+            waiters.addLast(waiter);
+            timeoutNs = overloaded ? targetNs : intervalNs;
+        }
+        
+        try {
+            waiter.done.await(timeoutNs, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException ex) {
+            synchronized (lock) {
+                if (waiter.state == WAITING) {
+                    waiters.remove(waiter);
+                } else if (waiter.state == GRANTED) {
+                    // Passing the granted slot to the next waiter.
+                    release();
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        synchronized (lock) {
+            if (waiter.state == WAITING) {
+                // Timed out in the queue.
+                waiters.remove(waiter);
+                shed(waiter);
+            }
+            if (waiter.state == SHED) {
+                throw new IllegalStateException(
+                        "Request is shed: queueing delay is too high.");
+            }
+        }
+    }
+    
+    private void release()
+    {
+        synchronized (lock) {
+            --inFlight;
+            dispatch(clock.getAsLong());
+        }
+    }
+    
+    /**
+     * Passes waiters to the load balancer while it has capacity.
+     * 
+     * Must be called under {@code lock}.
+     */
+    private void dispatch(final long now)
+    {
+        if (now - intervalEndNs >= 0) {
+            /* The queue stands if no request has passed it with a delay
+             * below the target during the whole interval.
+             */
+            overloaded = !waiters.isEmpty() && minDelayNs > targetNs;
+            minDelayNs = Long.MAX_VALUE;
+            intervalEndNs = now + intervalNs;
+        }
+        final long capacity = balancer.getCapacity();
+        while (!waiters.isEmpty() && inFlight < capacity) {
+            final Waiter waiter;
+            if (overloaded) {
+                // Waiters above the target would only make latency worse.
+                while (!waiters.isEmpty() &&
+                        now - waiters.peekFirst().enqueuedAtNs > targetNs) {
+                    shed(waiters.pollFirst());
+                }
+                if (waiters.isEmpty()) {
+                    break;
+                }
+                waiter = waiters.pollLast();
+            } else {
+                waiter = waiters.pollFirst();
+            }
+            recordDelay(now - waiter.enqueuedAtNs);
+            ++inFlight;
+            waiter.state = GRANTED;
+            waiter.done.countDown();
+        }
+    }
+    
+    // Must be called under lock.
+    private void recordDelay(final long delayNs)
+    {
+        if (delayNs < minDelayNs) {
+            minDelayNs = delayNs;
+        }
+    }
+    
+    // Must be called under lock.
+    private void shed(final Waiter waiter)
+    {
+        waiter.state = SHED;
+        ++shedCount;
+        waiter.done.countDown();
+    }
+}
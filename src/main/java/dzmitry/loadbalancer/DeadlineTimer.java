@@ -0,0 +1,205 @@
+package dzmitry.loadbalancer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel which tracks deadlines of requests with a single
+ * daemon thread. Scheduling and cancelling are O(1) and lock-free so they
+ * are cheap enough to be done for each request.
+ * 
+ * The wheel is an array of buckets each covering one tick. A timeout is
+ * put into the bucket of its deadline together with the number of full
+ * rotations of the wheel left before it expires. The timer thread wakes
+ * up once per tick and expires timeouts of the current bucket. So
+ * a timeout fires not earlier than its deadline and not later than one
+ * tick after it. Cancelled timeouts are dropped lazily when their bucket
+ * is visited. The thread sleeps without ticking while there are
+ * no timeouts.
+ */
+class DeadlineTimer implements AutoCloseable
+{
+    private static final int WHEEL_SIZE = 512;
+    private static final long DEFAULT_TICK_NS =
+            TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private static class Holder
+    {
+        /* Created on first use. Its daemon thread lives as long as
+         * the JVM.
+         */
+        private static final DeadlineTimer SHARED =
+                new DeadlineTimer(DEFAULT_TICK_NS, "deadline-timer");
+    }
+    
+    static class Timeout
+    {
+        private final Runnable task;
+        /** Relative to the start of the timer. */
+        private final long deadlineNs;
+        private volatile boolean cancelled;
+        // Accessed by the timer thread only.
+        private long remainingRounds;
+        private Timeout next;
+        
+        public Timeout(final Runnable task, final long deadlineNs)
+        {
+            this.task = task;
+            this.deadlineNs = deadlineNs;
+        }
+        
+        /**
+         * Prevents the task from running if it has not started yet.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+    }
+    
+    private final long tickNs;
+    private final long startNs;
+    /** Heads of bucket lists. Accessed by the timer thread only. */
+    private final Timeout[] wheel;
+    /** The number of timeouts in the wheel. Accessed by the timer thread. */
+    private int size;
+    /** Timeouts which are not put into the wheel yet. */
+    private final ConcurrentLinkedQueue<Timeout> pending;
+    private final Thread thread;
+    /** Set while the timer thread is parked until the next schedule(). */
+    private volatile boolean idle;
+    private volatile boolean closed;
+    
+    DeadlineTimer(final long tickNs, final String threadName)
+    {
+        if (tickNs <= 0) {
+            throw new IllegalArgumentException("Non-positive tick.");
+        }
+        this.tickNs = tickNs;
+        wheel = new Timeout[WHEEL_SIZE];
+        pending = new ConcurrentLinkedQueue<>();
+        startNs = System.nanoTime();
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * @return the timer shared by all load balancers.
+     */
+    static DeadlineTimer shared()
+    {
+        return Holder.SHARED;
+    }
+    
+    /**
+     * Runs the task in the timer thread after the given delay. The task
+     * must be short since it delays other timeouts.
+     */
+    Timeout schedule(final Runnable task, final long delayNs)
+    {
+        final Timeout result = new Timeout(task,
+                System.nanoTime() - startNs + Math.max(0, delayNs));
+        pending.add(result);
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+        return result;
+    }
+    
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+    
+    private void run()
+    {
+        long tick = 0;
+        while (!closed) {
+            if (size == 0 && pending.isEmpty()) {
+                idle = true;
+                // Checking again so that a concurrent schedule() is not missed.
+                if (pending.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                // The wheel is empty so the ticks spent idle are skipped.
+                tick = Math.max(tick, (System.nanoTime() - startNs) / tickNs);
+                continue;
+            }
+            // Waiting for the end of the tick.
+            final long tickEndNs = (tick + 1) * tickNs;
+            long remainingNs;
+            while ((remainingNs = tickEndNs - (System.nanoTime() - startNs))
+                    > 0) {
+                LockSupport.parkNanos(this, remainingNs);
+                if (closed) {
+                    return;
+                }
+            }
+            transferPending(tick);
+            expire((int) (tick & (WHEEL_SIZE - 1)));
+            ++tick;
+        }
+    }
+    
+    private void transferPending(final long tick)
+    {
+        Timeout t;
+        while ((t = pending.poll()) != null) {
+            if (t.cancelled) {
+                continue;
+            }
+            final long calculated = t.deadlineNs / tickNs;
+            t.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+            // Timeouts which are already due go into the current bucket.
+            final long ticks = Math.max(calculated, tick);
+            final int idx = (int) (ticks & (WHEEL_SIZE - 1));
+            t.next = wheel[idx];
+            wheel[idx] = t;
+            ++size;
+        }
+    }
+    
+    private void expire(final int idx)
+    {
+        Timeout prev = null;
+        Timeout t = wheel[idx];
+        while (t != null) {
+            final Timeout next = t.next;
+            final boolean remove;
+            if (t.cancelled) {
+                remove = true;
+            } else if (t.remainingRounds <= 0) {
+                remove = true;
+                try {
+                    t.task.run();
+                }
+                catch (RuntimeException ex) {
+                    // A failing task must not stop the timer.
+                    final Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(
+                            current, ex);
+                }
+            } else {
+                remove = false;
+                --t.remainingRounds;
+            }
+            if (remove) {
+                if (prev == null) {
+                    wheel[idx] = next;
+                } else {
+                    prev.next = next;
+                }
+                t.next = null;
+                --size;
+            } else {
+                prev = t;
+            }
+            t = next;
+        }
+    }
+}
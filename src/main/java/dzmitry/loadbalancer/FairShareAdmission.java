@@ -0,0 +1,194 @@
+package dzmitry.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Weighted fair-share admission of requests of different traffic classes
+ * (tenants or priorities) in front of a load balancer.
+ * 
+ * Each class can always have up to its guaranteed share of the capacity
+ * of the load balancer in flight. Above that it can burst up to its burst
+ * share but only into capacity which is not reserved by unused guarantees
+ * of other classes which are at least as important. So when the pool gets
+ * saturated the least important classes are shed first and classes of
+ * the same priority (e.g. tenants) cannot take each other's guarantees.
+ * 
+ * Admission is lock-free: it is a CAS on the in-flight counter of
+ * the class. Counters of other classes are read without synchronisation
+ * so the limits can be exceeded by the number of concurrently admitted
+ * requests. The load balancer enforces its own total limit regardless.
+ */
+public class FairShareAdmission
+{
+    private static class ClassState
+    {
+        private final TrafficClass trafficClass;
+        private final AtomicInteger inFlight;
+        /**
+         * Other classes with the same or higher priority whose guarantees
+         * are reserved.
+         */
+        private ClassState[] atLeastAsImportant;
+        
+        public ClassState(final TrafficClass trafficClass)
+        {
+            this.trafficClass = trafficClass;
+            inFlight = new AtomicInteger();
+        }
+    }
+    
+    private final LoadBalancer balancer;
+    /** Read-only after construction. */
+    private final IdentityHashMap<TrafficClass, ClassState> classes;
+    /** The number of requests of all classes in flight. */
+    private final AtomicInteger totalInFlight;
+    
+    public FairShareAdmission(final LoadBalancer balancer,
+            final TrafficClass[] trafficClasses)
+    {
+        Objects.requireNonNull(balancer);
+        final int n = trafficClasses.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("No traffic classes.");
+        }
+        classes = new IdentityHashMap<>();
+        double guaranteedSum = 0;
+        for (int i = 0; i < n; ++i) {
+            final TrafficClass c = trafficClasses[i];
+            Objects.requireNonNull(c, "null traffic class");
+            if (classes.put(c, new ClassState(c)) != null) {
+                throw new IllegalArgumentException(
+                        "Duplicate traffic class: " + c);
+            }
+            guaranteedSum += c.getGuaranteedShare();
+        }
+        if (guaranteedSum > 1) {
+            throw new IllegalArgumentException(
+                    "Guaranteed shares exceed the capacity.");
+        }
+        for (final ClassState state : classes.values()) {
+            final ArrayList<ClassState> atLeastAsImportant = new ArrayList<>();
+            for (final ClassState other : classes.values()) {
+                if (other != state && other.trafficClass.getPriority() <=
+                        state.trafficClass.getPriority()) {
+                    atLeastAsImportant.add(other);
+                }
+            }
+            state.atLeastAsImportant = atLeastAsImportant.toArray(
+                    new ClassState[atLeastAsImportant.size()]);
+        }
+        this.balancer = balancer;
+        totalInFlight = new AtomicInteger();
+    }
+    
+    /**
+     * Admits the request of the given class and processes it with the
+     * load balancer.
+     */
+    public String get(final TrafficClass trafficClass)
+    {
+        if (!tryAcquire(trafficClass)) {
+            throw new IllegalStateException(
+                    "Max number of simultaneous requests reached for " +
+                    trafficClass + ".");
+        }
+        try {
+            return balancer.get();
+        }
+        finally {
+            release(trafficClass);
+        }
+    }
+    
+    /**
+     * Admits the request of the given class if its share allows. Each
+     * successful call must be followed by {@link #release(TrafficClass)}.
+     * 
+     * @return {@code true} if the request is admitted.
+     */
+    public boolean tryAcquire(final TrafficClass trafficClass)
+    {
+        final ClassState state = getState(trafficClass);
+        final long capacity = balancer.getCapacity();
+        final long guaranteed = share(capacity,
+                trafficClass.getGuaranteedShare());
+        final long burst = share(capacity, trafficClass.getBurstShare());
+        final AtomicInteger inFlight = state.inFlight;
+        while (true) {
+            final int val = inFlight.get();
+            if (val >= burst) {
+                return false;
+            }
+            if (val >= guaranteed) {
+                final long used = totalInFlight.get() +
+                        reserved(state, capacity);
+                if (used >= capacity) {
+                    // No spare capacity to burst into.
+                    return false;
+                }
+            }
+            if (inFlight.compareAndSet(val, val + 1)) {
+                totalInFlight.incrementAndGet();
+                return true;
+            }
+        }
+    }
+    
+    public void release(final TrafficClass trafficClass)
+    {
+        getState(trafficClass).inFlight.decrementAndGet();
+        totalInFlight.decrementAndGet();
+    }
+    
+    /**
+     * @return the number of requests of the given class in flight.
+     */
+    public int getInFlight(final TrafficClass trafficClass)
+    {
+        return getState(trafficClass).inFlight.get();
+    }
+    
+    /**
+     * @return the part of capacity reserved for unused guarantees
+     *      of other classes which are at least as important as the given
+     *      one.
+     */
+    private static long reserved(final ClassState state, final long capacity)
+    {
+        long result = 0;
+        for (final ClassState other : state.atLeastAsImportant) {
+            final long guaranteed = share(capacity,
+                    other.trafficClass.getGuaranteedShare());
+            final int inFlight = other.inFlight.get();
+            if (inFlight < guaranteed) {
+                result += guaranteed - inFlight;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @return the number of requests the share of the capacity allows.
+     *      A non-zero share allows at least one request so that the class
+     *      is not starved if the capacity is small. The load balancer
+     *      enforces its own limit if such guarantees exceed the capacity.
+     */
+    private static long share(final long capacity, final double share)
+    {
+        final long result = (long) (capacity * share);
+        return result == 0 && share > 0 && capacity > 0 ? 1 : result;
+    }
+    
+    private ClassState getState(final TrafficClass trafficClass)
+    {
+        final ClassState state = classes.get(trafficClass);
+        if (state == null) {
+            throw new IllegalArgumentException(
+                    "Unknown traffic class: " + trafficClass);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,296 @@
+package dzmitry.loadbalancer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps providers of a load balancer in sync with a membership file which
+ * is rewritten by a discovery agent.
+ * 
+ * Each line of the file is {@code <uuid> <attributes>}: the UUID of a
+ * provider and the rest of the line which is passed to the factory to
+ * create the provider (e.g. its address, zone and rate limit). Blank lines
+ * and lines starting with {@code #} are ignored.
+ * 
+ * The file is watched with {@link WatchService}. On each change it is read
+ * line by line and compared with the previous version by UUID. The watch
+ * service does not tell which lines are changed so the file is parsed in
+ * full (it is expected to be small) but only the difference is applied
+ * to the running load balancer: new providers are added, missing ones are
+ * removed (drained) and providers whose attributes changed (e.g.
+ * reweighted) are replaced. Unchanged providers are not touched and
+ * requests are not paused since the load balancer updates its node set
+ * with copy-on-write. Removed providers are not closed.
+ * 
+ * Agents should replace the file with an atomic rename so that it is never
+ * seen partially written. A file which is rewritten in place can be seen
+ * truncated which looks like most providers are gone. So after a change
+ * the file is read until two reads which are {@link #SETTLE_MS} apart
+ * match. A file which is rewritten in place must be written within this
+ * time.
+ * 
+ * A replaced provider is a new node for the load balancer: it is active
+ * right away, before its first heartbeat check, and its health and
+ * latency statistics start from scratch.
+ * 
+ * If the file cannot be read or parsed, or the new membership cannot be
+ * applied (e.g. it has too many providers or a provider with a UUID which
+ * is added to the load balancer directly) then the previous membership is
+ * kept until the next change of the file. Failures of the watcher thread
+ * are reported to its uncaught exception handler.
+ */
+public class FileDiscovery implements AutoCloseable
+{
+    /** How long the file must stay unchanged to be applied. */
+    static final long SETTLE_MS = 50;
+    
+    private final Path file;
+    /** Creates a provider from its UUID and attributes. */
+    private final BiFunction<String, String, Provider> factory;
+    /**
+     * Attributes of providers which are applied to the load balancer
+     * (by UUID). Guarded by {@code this}.
+     */
+    private final Map<String, String> applied;
+    
+    /** Guarded by {@code this}. */
+    private LoadBalancer balancer;
+    private WatchService watchService;
+    private Thread watcher;
+    
+    public FileDiscovery(final Path file,
+            final BiFunction<String, String, Provider> factory)
+    {
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(factory);
+        this.file = file.toAbsolutePath();
+        this.factory = factory;
+        applied = new HashMap<>();
+    }
+    
+    /**
+     * Reads the file and creates its providers. They are considered applied
+     * so they are expected to be passed to the constructor of the load
+     * balancer which is given to {@link #start(LoadBalancer)}.
+     */
+    public synchronized Provider[] load() throws IOException
+    {
+        final Map<String, String> entries = read();
+        final ArrayList<Provider> result = new ArrayList<>();
+        for (final Map.Entry<String, String> e : entries.entrySet()) {
+            result.add(create(e.getKey(), e.getValue()));
+        }
+        applied.clear();
+        applied.putAll(entries);
+        return result.toArray(new Provider[result.size()]);
+    }
+    
+    /**
+     * Applies the current content of the file to the load balancer and
+     * starts watching the file for changes in a daemon thread.
+     */
+    public void start(final LoadBalancer balancer) throws IOException
+    {
+        Objects.requireNonNull(balancer);
+        synchronized (this) {
+            if (this.balancer != null) {
+                throw new IllegalStateException("Already started.");
+            }
+            this.balancer = balancer;
+            watchService = file.getFileSystem().newWatchService();
+            /* Watching the directory since agents usually replace the file
+             * with an atomic rename which is not seen by watching the file.
+             */
+            file.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watcher = new Thread(this::watch, "file-discovery");
+            watcher.setDaemon(true);
+        }
+        sync();
+        watcher.start();
+    }
+    
+    /**
+     * Applies the difference between the file and the providers which
+     * are applied already to the load balancer.
+     */
+    void sync() throws IOException
+    {
+        sync(read());
+    }
+    
+    private synchronized void sync(final Map<String, String> entries)
+    {
+        final ArrayList<String> removed = new ArrayList<>();
+        for (final String uuid : applied.keySet()) {
+            if (!entries.containsKey(uuid)) {
+                removed.add(uuid);
+            }
+        }
+        /* Creating all providers first so that a failure of the factory
+         * does not leave the membership half applied.
+         */
+        final ArrayList<Provider> added = new ArrayList<>();
+        for (final Map.Entry<String, String> e : entries.entrySet()) {
+            final String uuid = e.getKey();
+            final String attributes = applied.get(uuid);
+            if (!e.getValue().equals(attributes)) {
+                if (attributes != null) {
+                    // Replacing the provider with the one with new attributes.
+                    removed.add(uuid);
+                }
+                added.add(create(uuid, e.getValue()));
+            }
+        }
+        
+        // Validated by the load balancer before anything is changed.
+        balancer.updateProviders(removed.toArray(new String[removed.size()]),
+                added.toArray(new Provider[added.size()]));
+        for (final String uuid : removed) {
+            applied.remove(uuid);
+        }
+        for (final Provider p : added) {
+            applied.put(p.getUuid(), entries.get(p.getUuid()));
+        }
+    }
+    
+    /**
+     * Stops watching the file. The load balancer is not changed after that.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final Thread t;
+        synchronized (this) {
+            if (watchService == null) {
+                return;
+            }
+            watchService.close();
+            t = watcher;
+        }
+        if (t != Thread.currentThread()) {
+            // Not waiting for the file to settle.
+            t.interrupt();
+            try {
+                t.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+    
+    private void watch()
+    {
+        final Path fileName = file.getFileName();
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                            fileName.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    try {
+                        sync(readSettled());
+                    }
+                    catch (IOException | RuntimeException ex) {
+                        /* The file is being rewritten, is malformed or
+                         * cannot be applied. The previous membership is
+                         * kept.
+                         */
+                        final Thread t = Thread.currentThread();
+                        t.getUncaughtExceptionHandler().uncaughtException(
+                                t, ex);
+                    }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException ex) {
+            // Closed. Nothing to do.
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Reads the file until it stays the same for {@link #SETTLE_MS} so that
+     * a file which is being rewritten in place is not applied.
+     * 
+     * @return attributes of providers in the file by UUID.
+     */
+    private Map<String, String> readSettled()
+            throws IOException, InterruptedException
+    {
+        Map<String, String> entries = read();
+        while (true) {
+            Thread.sleep(SETTLE_MS);
+            final Map<String, String> next = read();
+            if (next.equals(entries)) {
+                return next;
+            }
+            entries = next;
+        }
+    }
+    
+    /**
+     * @return attributes of providers in the file by UUID.
+     */
+    private Map<String, String> read() throws IOException
+    {
+        final LinkedHashMap<String, String> result = new LinkedHashMap<>();
+        try (final BufferedReader reader = Files.newBufferedReader(
+                file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                int sep = 0;
+                while (sep < line.length() &&
+                        !Character.isWhitespace(line.charAt(sep))) {
+                    ++sep;
+                }
+                final String uuid = line.substring(0, sep);
+                final String attributes = line.substring(sep).trim();
+                if (result.put(uuid, attributes) != null) {
+                    throw new IllegalArgumentException(
+                            "Duplicate UUID in " + file + ": " + uuid);
+                }
+            }
+        }
+        return result;
+    }
+    
+    private Provider create(final String uuid, final String attributes)
+    {
+        final Provider result = factory.apply(uuid, attributes);
+        if (!uuid.equals(result.getUuid())) {
+            throw new IllegalArgumentException(
+                    "Provider UUID does not match: " + uuid);
+        }
+        return result;
+    }
+}
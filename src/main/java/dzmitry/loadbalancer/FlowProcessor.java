@@ -0,0 +1,427 @@
+package dzmitry.loadbalancer;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes a load balancer as a reactive {@link Flow.Processor}. Items of
+ * the upstream are request keys which are passed to
+ * {@link LoadBalancer#get(String)}. Responses are emitted downstream in
+ * the order of completion.
+ * 
+ * Demand of the upstream is derived from the admission capacity of the
+ * load balancer: no more requests are requested than the capacity (the sum
+ * of {@code maxLoadPerNode} over active nodes) minus requests which are
+ * already in flight or requested, and no more than the downstream has
+ * requested. So a streaming producer slows down automatically as nodes are
+ * excluded instead of getting rejections. The processor is expected to be
+ * the main user of the load balancer.
+ * 
+ * Requests can still be rejected for lack of capacity: nodes can be
+ * excluded while more requests are in flight than the remaining capacity,
+ * and other traffic can take capacity. Such a rejection is backpressure,
+ * not a failure: the request waits and is retried when another request
+ * completes or, if none is in flight, after a delay.
+ * 
+ * A failed request terminates the stream: the downstream gets the error
+ * and the upstream is cancelled. Requests are processed by the given
+ * executor since they block. Retries after a delay are run by it too.
+ */
+public class FlowProcessor implements Flow.Processor<String, String>
+{
+    /**
+     * How soon to check capacity again if there is demand but no capacity
+     * and no request in flight to wake the processor up.
+     */
+    private static final long RETRY_DELAY_NS =
+            TimeUnit.MILLISECONDS.toNanos(100);
+    
+    private class DownstreamSubscription implements Flow.Subscription
+    {
+        /** False for rejected subscribers. Their signals are ignored. */
+        private final boolean accepted;
+        
+        public DownstreamSubscription(final boolean accepted)
+        {
+            this.accepted = accepted;
+        }
+        
+        @Override
+        public void request(final long n)
+        {
+            if (accepted) {
+                onRequest(n);
+            }
+        }
+        
+        @Override
+        public void cancel()
+        {
+            if (accepted) {
+                onCancel();
+            }
+        }
+    }
+    
+    private final LoadBalancer balancer;
+    private final Executor executor;
+    
+    /* All state is guarded by the lock. Downstream signals are issued
+     * under it so they are serialised.
+     */
+    private final Object lock;
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super String> downstream;
+    /** Responses requested by the downstream and not emitted yet. */
+    private long demand;
+    /** Items requested from the upstream and not received yet. */
+    private long requested;
+    /** Items received and not completed yet. Pending ones not included. */
+    private long inFlight;
+    /** Items rejected for lack of capacity which wait to be retried. */
+    private final ArrayDeque<String> pending;
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    /** Set when a terminal signal is sent or the downstream cancels. */
+    private boolean terminated;
+    private boolean retryScheduled;
+    
+    /**
+     * @param balancer the load balancer which processes requests.
+     * @param executor runs requests. It should be able to run as many
+     *      requests in parallel as the capacity of the load balancer.
+     */
+    public FlowProcessor(final LoadBalancer balancer, final Executor executor)
+    {
+        Objects.requireNonNull(balancer);
+        Objects.requireNonNull(executor);
+        this.balancer = balancer;
+        this.executor = executor;
+        lock = new Object();
+        pending = new ArrayDeque<>();
+    }
+    
+    /**
+     * Only one subscriber is supported. Other ones get an error.
+     */
+    @Override
+    public void subscribe(final Flow.Subscriber<? super String> subscriber)
+    {
+        Objects.requireNonNull(subscriber);
+        synchronized (lock) {
+            if (downstream != null) {
+                subscriber.onSubscribe(new DownstreamSubscription(false));
+                subscriber.onError(new IllegalStateException(
+                        "Only one subscriber is supported."));
+                return;
+            }
+            downstream = subscriber;
+            subscriber.onSubscribe(new DownstreamSubscription(true));
+            // The upstream can be finished already.
+            tryTerminate();
+        }
+    }
+    
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription)
+    {
+        Objects.requireNonNull(subscription);
+        synchronized (lock) {
+            if (upstream != null || terminated) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            requestMore();
+        }
+    }
+    
+    @Override
+    public void onNext(final String key)
+    {
+        Objects.requireNonNull(key);
+        synchronized (lock) {
+            if (terminated) {
+                // Items which arrive after cancellation are dropped.
+                return;
+            }
+            --requested;
+            ++inFlight;
+        }
+        dispatch(key);
+    }
+    
+    @Override
+    public void onError(final Throwable throwable)
+    {
+        Objects.requireNonNull(throwable);
+        synchronized (lock) {
+            upstreamDone = true;
+            upstreamError = throwable;
+            tryTerminate();
+        }
+    }
+    
+    @Override
+    public void onComplete()
+    {
+        synchronized (lock) {
+            upstreamDone = true;
+            tryTerminate();
+        }
+    }
+    
+    private void dispatch(final String key)
+    {
+        try {
+            executor.execute(() -> process(key));
+        }
+        catch (RuntimeException ex) {
+            complete(null, ex);
+        }
+    }
+    
+    private void dispatch(final String[] keys)
+    {
+        if (keys != null) {
+            for (final String key : keys) {
+                dispatch(key);
+            }
+        }
+    }
+    
+    private void process(final String key)
+    {
+        final LoadBalancer.Node node;
+        try {
+            node = balancer.acquire(1);
+        }
+        catch (IllegalStateException ex) {
+            if (balancer.isClosed()) {
+                complete(null, ex);
+            } else {
+                // The limit is reached or no node has spare capacity.
+                reject(key);
+            }
+            return;
+        }
+        String result = null;
+        RuntimeException failure = null;
+        try {
+            result = balancer.get(node, key);
+        }
+        catch (RuntimeException ex) {
+            failure = ex;
+        }
+        complete(result, failure);
+    }
+    
+    private void complete(final String result, final Throwable failure)
+    {
+        final String[] keys;
+        synchronized (lock) {
+            --inFlight;
+            if (terminated) {
+                return;
+            }
+            if (failure != null) {
+                terminate(failure);
+                return;
+            }
+            --demand;
+            downstream.onNext(result);
+            if (tryTerminate()) {
+                return;
+            }
+            // The completed request frees capacity for waiting ones first.
+            keys = takePending();
+            requestMore();
+        }
+        dispatch(keys);
+    }
+    
+    private void reject(final String key)
+    {
+        synchronized (lock) {
+            --inFlight;
+            if (terminated) {
+                return;
+            }
+            /* Not retrying right away: capacity is taken until another
+             * request completes. Retrying by the timer if none is in
+             * flight.
+             */
+            pending.add(key);
+            scheduleRetry();
+        }
+    }
+    
+    private void onRequest(final long n)
+    {
+        synchronized (lock) {
+            if (terminated) {
+                return;
+            }
+            if (n <= 0) {
+                terminate(new IllegalArgumentException(
+                        "Non-positive number of requested items."));
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            requestMore();
+        }
+    }
+    
+    private void onCancel()
+    {
+        synchronized (lock) {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            if (upstream != null) {
+                upstream.cancel();
+            }
+        }
+    }
+    
+    // Runs in the deadline timer thread so it must be short.
+    private void onRetryTimer()
+    {
+        try {
+            /* Signals to the upstream and the downstream can block or
+             * run requests so they are not issued by the shared timer.
+             */
+            executor.execute(this::retry);
+        }
+        catch (RuntimeException ex) {
+            synchronized (lock) {
+                retryScheduled = false;
+                if (!terminated) {
+                    terminate(ex);
+                }
+            }
+        }
+    }
+    
+    private void retry()
+    {
+        final String[] keys;
+        synchronized (lock) {
+            retryScheduled = false;
+            if (terminated) {
+                return;
+            }
+            keys = takePending();
+            requestMore();
+            scheduleRetry();
+        }
+        dispatch(keys);
+    }
+    
+    /**
+     * Takes items which wait to be retried as far as the capacity of the
+     * load balancer allows. They are counted as in flight.
+     * 
+     * Must be called under {@code lock}.
+     * 
+     * @return the items to dispatch or null if there are none.
+     */
+    private String[] takePending()
+    {
+        final long n = Math.min(pending.size(),
+                balancer.getCapacity() - inFlight);
+        if (n <= 0) {
+            return null;
+        }
+        final String[] result = new String[(int) n];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = pending.poll();
+        }
+        inFlight += n;
+        return result;
+    }
+    
+    /**
+     * Schedules the next check of capacity if items wait for it and
+     * nothing completes to trigger the check.
+     * 
+     * Must be called under {@code lock}.
+     */
+    private void scheduleRetry()
+    {
+        if (inFlight == 0 && !pending.isEmpty() && !retryScheduled) {
+            retryScheduled = true;
+            DeadlineTimer.shared().schedule(
+                    this::onRetryTimer, RETRY_DELAY_NS);
+        }
+    }
+    
+    /**
+     * Requests items from the upstream within the demand of the downstream
+     * and the capacity of the load balancer.
+     * 
+     * Must be called under {@code lock}.
+     */
+    private void requestMore()
+    {
+        if (terminated || upstream == null || upstreamDone) {
+            return;
+        }
+        final long queued = inFlight + requested + pending.size();
+        final long wanted = demand - queued;
+        if (wanted <= 0) {
+            return;
+        }
+        final long available = balancer.getCapacity() - queued;
+        final long n = Math.min(wanted, available);
+        if (n > 0) {
+            requested += n;
+            upstream.request(n);
+        } else if (queued == 0 && !retryScheduled) {
+            /* No node is active. Nothing completes to trigger the next
+             * check so it is done by the timer.
+             */
+            retryScheduled = true;
+            DeadlineTimer.shared().schedule(
+                    this::onRetryTimer, RETRY_DELAY_NS);
+        }
+    }
+    
+    /**
+     * Sends the terminal signal to the downstream if the upstream is
+     * finished and all its items are processed.
+     * 
+     * Must be called under {@code lock}.
+     * 
+     * @return {@code true} if the stream is terminated.
+     */
+    private boolean tryTerminate()
+    {
+        if (terminated || downstream == null || !upstreamDone) {
+            return terminated;
+        }
+        if (upstreamError != null) {
+            // Responses in flight are dropped.
+            terminated = true;
+            downstream.onError(upstreamError);
+        } else if (inFlight == 0 && pending.isEmpty()) {
+            terminated = true;
+            downstream.onComplete();
+        }
+        return terminated;
+    }
+    
+    // Must be called under lock.
+    private void terminate(final Throwable failure)
+    {
+        terminated = true;
+        if (upstream != null) {
+            upstream.cancel();
+        }
+        downstream.onError(failure);
+    }
+}
@@ -0,0 +1,237 @@
+package dzmitry.loadbalancer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact memory-mapped file with health and latency state of the nodes
+ * of a {@link LoadBalancer} keyed by provider UUID. The load balancer
+ * saves its state periodically and restores it on construction so that
+ * after a restart it does not route to nodes which are known to be down
+ * and keeps its latency estimates. Providers need stable UUIDs (see
+ * {@link Provider#Provider(String, String, int)}) for that.
+ * 
+ * The file is written through the mapping so the state survives a crash
+ * of the process (not of the host). A snapshot older than the given
+ * maximum age is ignored. A crash in the middle of saving can leave a mix
+ * of two consecutive snapshots which is fine for routing hints.
+ * 
+ * Layout: a header (magic, version, node count, time of saving in
+ * milliseconds since the epoch) followed by fixed-size records: UUID length
+ * and UTF-8 bytes, active flag, consecutive successful checks and
+ * latency estimate in nanoseconds. Providers with UUIDs longer than
+ * {@value #MAX_UUID_BYTES} bytes are not saved.
+ */
+public class HealthSnapshot implements AutoCloseable
+{
+    static final int MAX_UUID_BYTES = 100;
+    
+    private static final int MAGIC = 0x4c424853;
+    private static final int VERSION = 1;
+    
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int SAVED_AT_OFFSET = 16;
+    private static final int HEADER_SIZE = 32;
+    
+    private static final int UUID_LENGTH_OFFSET = 0;
+    private static final int UUID_OFFSET = 2;
+    private static final int ACTIVE_OFFSET = UUID_OFFSET + MAX_UUID_BYTES;
+    private static final int CHECKS_OFFSET = 104;
+    private static final int LATENCY_OFFSET = 112;
+    private static final int RECORD_SIZE = 128;
+    
+    /** Saved state of a single node. */
+    static class Entry
+    {
+        final String uuid;
+        final boolean active;
+        final int successfulChecks;
+        final long latencyNs;
+        
+        public Entry(final String uuid, final boolean active,
+                final int successfulChecks, final long latencyNs)
+        {
+            this.uuid = uuid;
+            this.active = active;
+            this.successfulChecks = successfulChecks;
+            this.latencyNs = latencyNs;
+        }
+    }
+    
+    private final FileChannel channel;
+    /** Guarded by {@code this}. */
+    private final MappedByteBuffer buf;
+    private final int maxNodes;
+    private final long savePeriodMs;
+    private final long maxAgeMs;
+    /** Created when periodic saving is started. Guarded by {@code this}. */
+    private ScheduledExecutorService scheduler;
+    private boolean closed;
+    
+    /**
+     * Opens the snapshot file or creates it if it does not exist.
+     * 
+     * @param file the snapshot file.
+     * @param maxNodes the maximum number of nodes to save.
+     * @param savePeriodMs the period of saving the state in milliseconds.
+     * @param maxAgeMs the maximum age of a snapshot to be restored.
+     */
+    public HealthSnapshot(final Path file, final int maxNodes,
+            final long savePeriodMs, final long maxAgeMs) throws IOException
+    {
+        if (maxNodes <= 0) {
+            throw new IllegalArgumentException("Non-positive max nodes.");
+        }
+        if (savePeriodMs <= 0) {
+            throw new IllegalArgumentException("Non-positive save period.");
+        }
+        if (maxAgeMs < 0) {
+            throw new IllegalArgumentException("Negative max age.");
+        }
+        this.maxNodes = maxNodes;
+        this.savePeriodMs = savePeriodMs;
+        this.maxAgeMs = maxAgeMs;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean success = false;
+        try {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) maxNodes * RECORD_SIZE);
+            success = true;
+        }
+        finally {
+            // Gracefully tearing down in case of exceptions during init.
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+    
+    /**
+     * @return saved state by provider UUID. Empty if there is no valid
+     *      snapshot or it is too old.
+     */
+    synchronized Map<String, Entry> load()
+    {
+        final HashMap<String, Entry> result = new HashMap<>();
+        if (buf.getInt(MAGIC_OFFSET) != MAGIC ||
+                buf.getInt(VERSION_OFFSET) != VERSION) {
+            // A new file or a file of an unknown format.
+            return result;
+        }
+        final long age = System.currentTimeMillis() -
+                buf.getLong(SAVED_AT_OFFSET);
+        if (age > maxAgeMs) {
+            return result;
+        }
+        final int count = Math.min(buf.getInt(COUNT_OFFSET), maxNodes);
+        final byte[] uuidBytes = new byte[MAX_UUID_BYTES];
+        for (int i = 0; i < count; ++i) {
+            final int offset = HEADER_SIZE + i * RECORD_SIZE;
+            final int len = buf.getShort(offset + UUID_LENGTH_OFFSET);
+            if (len <= 0 || len > MAX_UUID_BYTES) {
+                continue;
+            }
+            final ByteBuffer src = buf.duplicate();
+            src.position(offset + UUID_OFFSET);
+            src.get(uuidBytes, 0, len);
+            final String uuid = new String(uuidBytes, 0, len,
+                    StandardCharsets.UTF_8);
+            result.put(uuid, new Entry(uuid,
+                    buf.get(offset + ACTIVE_OFFSET) != 0,
+                    buf.getInt(offset + CHECKS_OFFSET),
+                    buf.getLong(offset + LATENCY_OFFSET)));
+        }
+        return result;
+    }
+    
+    /**
+     * Replaces the saved state. Does nothing if the snapshot is closed.
+     */
+    synchronized void save(final Entry[] entries)
+    {
+        if (closed) {
+            return;
+        }
+        int count = 0;
+        for (final Entry e : entries) {
+            if (count == maxNodes) {
+                break;
+            }
+            final byte[] uuidBytes = e.uuid.getBytes(StandardCharsets.UTF_8);
+            if (uuidBytes.length > MAX_UUID_BYTES) {
+                continue;
+            }
+            final int offset = HEADER_SIZE + count * RECORD_SIZE;
+            buf.putShort(offset + UUID_LENGTH_OFFSET, (short) uuidBytes.length);
+            final ByteBuffer dst = buf.duplicate();
+            dst.position(offset + UUID_OFFSET);
+            dst.put(uuidBytes);
+            buf.put(offset + ACTIVE_OFFSET, (byte) (e.active ? 1 : 0));
+            buf.putInt(offset + CHECKS_OFFSET, e.successfulChecks);
+            buf.putLong(offset + LATENCY_OFFSET, e.latencyNs);
+            ++count;
+        }
+        // The header is written last so that it describes complete records.
+        buf.putInt(COUNT_OFFSET, count);
+        buf.putLong(SAVED_AT_OFFSET, System.currentTimeMillis());
+        buf.putInt(VERSION_OFFSET, VERSION);
+        buf.putInt(MAGIC_OFFSET, MAGIC);
+    }
+    
+    /**
+     * Starts calling the given task periodically in a daemon thread.
+     */
+    synchronized void start(final Runnable saveTask)
+    {
+        if (closed || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread t = new Thread(runnable, "health-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(saveTask, savePeriodMs, savePeriodMs,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops periodic saving and flushes the file. The snapshot cannot
+     * be saved after that.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            buf.force();
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            catch (IOException ex) {
+                // Nothing to do. The mapping stays valid anyway.
+            }
+        }
+    }
+}
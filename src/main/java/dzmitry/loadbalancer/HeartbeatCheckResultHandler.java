@@ -3,4 +3,34 @@ package dzmitry.loadbalancer;
 public interface HeartbeatCheckResultHandler
 {
     void handle(boolean checkResult, LoadBalancer balancer, Provider node);
+    
+    /**
+     * @return the number of consecutive successful checks of the node
+     *      of the load balancer this handler keeps. It is saved by
+     *      {@link HealthSnapshot}.
+     */
+    default int getSuccessfulChecks(final LoadBalancer balancer,
+            final Provider node)
+    {
+        return 0;
+    }
+    
+    /**
+     * Restores the number of consecutive successful checks of the node
+     * from {@link HealthSnapshot}.
+     */
+    default void setSuccessfulChecks(final LoadBalancer balancer,
+            final Provider node, final int count)
+    {
+    }
+    
+    /**
+     * Forgets the state this handler keeps for the node of the load
+     * balancer. Called when the provider is removed from the load balancer
+     * or the load balancer is closed. No results are handled for the node
+     * after that.
+     */
+    default void remove(final LoadBalancer balancer, final Provider node)
+    {
+    }
 }
@@ -13,15 +13,22 @@ public class HeartbeatCheckResultHandlerImpl
      * or not they are equal. In addition, this handler synchronises
      * on this wrapper to ensure sequential consistency or
      * processing of multiple check results that can come for
-     * the same item.
+     * the same item. The same provider can be a node of multiple
+     * load balancers which share its heartbeat checks so each of
+     * them counts the checks separately.
      */
     private static class NodeWrapper
     {
-        private final Provider node;
+        /* Not final only for lookup keys which are reused to find
+         * the wrapper of a node without allocation.
+         */
+        private LoadBalancer balancer;
+        private Provider node;
         private int lastSuccessfulChecks; // <= MAX_RELEVANT_SUCCESSFUL_CHECKS
         
-        public NodeWrapper(final Provider node)
+        public NodeWrapper(final LoadBalancer balancer, final Provider node)
         {
+            this.balancer = balancer;
             this.node = node;
         }
         
@@ -31,30 +38,30 @@ public class HeartbeatCheckResultHandlerImpl
             if (o == null || o.getClass() != NodeWrapper.class) {
                 return false;
             }
-            return node == ((NodeWrapper) o).node;
+            final NodeWrapper other = (NodeWrapper) o;
+            return balancer == other.balancer && node == other.node;
         }
         
         @Override
         public int hashCode()
         {
-            return System.identityHashCode(node);
+            return 31 * System.identityHashCode(balancer) +
+                    System.identityHashCode(node);
         }
     }
     
     private static ConcurrentHashMap<NodeWrapper, NodeWrapper> nodes =
             new ConcurrentHashMap<>();
     
+    /** Lookup keys. They are never put into {@link #nodes}. */
+    private static final ThreadLocal<NodeWrapper> lookupKeys =
+            ThreadLocal.withInitial(() -> new NodeWrapper(null, null));
+    
     @Override
     public void handle(final boolean checkResult, final LoadBalancer balancer,
             final Provider node)
     {
-        Objects.requireNonNull(node);
-        /* Reusing the existing wrapper or creating a new one
-         * if there is no one already.
-         */
-        final NodeWrapper key = new NodeWrapper(node);
-        final NodeWrapper wrapper = nodes.computeIfAbsent(
-                key, val -> val == null ? key : val);
+        final NodeWrapper wrapper = getWrapper(balancer, node);
         synchronized (wrapper) {
             /* Not trying to guess the current state of the node before
              * activating/deactivating it. The load balancer should just
@@ -79,4 +86,72 @@ public class HeartbeatCheckResultHandlerImpl
             }
         }
     }
+    
+    @Override
+    public int getSuccessfulChecks(final LoadBalancer balancer,
+            final Provider node)
+    {
+        // Not creating the wrapper of a node which is not checked yet.
+        final NodeWrapper wrapper = findWrapper(balancer, node);
+        if (wrapper == null) {
+            return 0;
+        }
+        synchronized (wrapper) {
+            return wrapper.lastSuccessfulChecks;
+        }
+    }
+    
+    @Override
+    public void setSuccessfulChecks(final LoadBalancer balancer,
+            final Provider node, final int count)
+    {
+        final NodeWrapper wrapper = getWrapper(balancer, node);
+        synchronized (wrapper) {
+            wrapper.lastSuccessfulChecks = Math.max(0,
+                    Math.min(count, MAX_RELEVANT_SUCCESSFUL_CHECKS));
+        }
+    }
+    
+    @Override
+    public void remove(final LoadBalancer balancer, final Provider node)
+    {
+        Objects.requireNonNull(balancer);
+        Objects.requireNonNull(node);
+        /* Entries are keyed by load balancers and providers so they
+         * would be retained forever if not removed.
+         */
+        nodes.remove(new NodeWrapper(balancer, node));
+    }
+    
+    private static NodeWrapper findWrapper(final LoadBalancer balancer,
+            final Provider node)
+    {
+        Objects.requireNonNull(balancer);
+        Objects.requireNonNull(node);
+        /* Heartbeat results are handled all the time so the wrapper
+         * of a known node is found without allocating a key.
+         */
+        final NodeWrapper lookupKey = lookupKeys.get();
+        lookupKey.balancer = balancer;
+        lookupKey.node = node;
+        final NodeWrapper existing = nodes.get(lookupKey);
+        // Not retaining the node after it is removed.
+        lookupKey.balancer = null;
+        lookupKey.node = null;
+        return existing;
+    }
+    
+    private static NodeWrapper getWrapper(final LoadBalancer balancer,
+            final Provider node)
+    {
+        final NodeWrapper existing = findWrapper(balancer, node);
+        if (existing != null) {
+            return existing;
+        }
+        /* Reusing the existing wrapper or creating a new one
+         * if there is no one already.
+         */
+        final NodeWrapper key = new NodeWrapper(balancer, node);
+        return nodes.computeIfAbsent(key, val -> val == null ? key : val);
+    }
 }
@@ -41,6 +41,31 @@ public class HeartbeatChecker implements AutoCloseable
         }
     }
     
+    /**
+     * Creates a checker which runs its checks on the threads of the given
+     * one. Used by {@link HeartbeatRegistry} to hand out checkers that
+     * share a single pool.
+     */
+    HeartbeatChecker(final HeartbeatChecker shared)
+    {
+        scheduledExecutor = shared.scheduledExecutor;
+        handlingExecutor = shared.handlingExecutor;
+    }
+    
+    /**
+     * Starts periodic checking of the given provider with
+     * {@link Provider#check()}. The result is the same as registering
+     * the check function directly but checkers which are shared between
+     * load balancers can probe the provider once for all of them.
+     */
+    public Future<?> registerChecker(final Provider node,
+            final Consumer<Boolean> checkResultHandler,
+            final long checkRateMs, final long timeoutMs)
+    {
+        return registerChecker(() -> node.check(), checkResultHandler,
+                checkRateMs, timeoutMs);
+    }
+    
     public Future<?> registerChecker(final BooleanSupplier checker,
             final Consumer<Boolean> checkResultHandler,
             final long checkRateMs, final long timeoutMs)
@@ -50,25 +75,45 @@ public class HeartbeatChecker implements AutoCloseable
          * to finish in time. If heartbeat check gets stalled
          * then the task would be able to detect it this way.
          */
-        return scheduledExecutor.scheduleAtFixedRate(() -> {
-            /* Running checking to support continuing on timeout even if
-             * the checker function gets stuck.
-             */
-            final Future<Boolean> f = handlingExecutor.submit(
-                    () -> checker.getAsBoolean());
-            Boolean result;
-            try {
-                result = f.get(timeoutMs, TimeUnit.MILLISECONDS);
-            }
-            catch (TimeoutException | ExecutionException ex) {
-                result = Boolean.FALSE;
-            }
-            catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(ex);
-            }
-            checkResultHandler.accept(result);
-        }, 0, checkRateMs, TimeUnit.MILLISECONDS);
+        return scheduledExecutor.scheduleAtFixedRate(
+                () -> check(checker, checkResultHandler, timeoutMs),
+                0, checkRateMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Runs a single check out of schedule. It returns right away: the check
+     * and its result handler run on the threads of this checker.
+     * 
+     * @throws java.util.concurrent.RejectedExecutionException if this
+     *      checker is closed.
+     */
+    void checkNow(final BooleanSupplier checker,
+            final Consumer<Boolean> checkResultHandler, final long timeoutMs)
+    {
+        handlingExecutor.execute(
+                () -> check(checker, checkResultHandler, timeoutMs));
+    }
+    
+    private void check(final BooleanSupplier checker,
+            final Consumer<Boolean> checkResultHandler, final long timeoutMs)
+    {
+        /* Running checking to support continuing on timeout even if
+         * the checker function gets stuck.
+         */
+        final Future<Boolean> f = handlingExecutor.submit(
+                () -> checker.getAsBoolean());
+        Boolean result;
+        try {
+            result = f.get(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | ExecutionException ex) {
+            result = Boolean.FALSE;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        checkResultHandler.accept(result);
     }
     
     @Override
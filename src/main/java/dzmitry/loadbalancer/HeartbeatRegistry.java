@@ -0,0 +1,238 @@
+package dzmitry.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Heartbeat checking shared by load balancers which contain the same
+ * providers. Each load balancer gets its own checker from
+ * {@link #newChecker()} and the providers registered through all these
+ * checkers are probed once per period no matter how many load balancers
+ * contain them. The result of each probe is fanned out to every load
+ * balancer which is interested in the provider.
+ * 
+ * Probes are reference-counted: a provider is probed while at least one
+ * registration for it is not cancelled. The probe runs with the check rate
+ * and timeout of the registration which has started it.
+ * 
+ * Closing a checker handed out by the registry cancels only registrations
+ * made through it so a load balancer can close its checker as usual.
+ * Closing the registry stops all checks.
+ */
+public class HeartbeatRegistry implements AutoCloseable
+{
+    /* The set of subscribers of a probe is guarded by the lock on the
+     * registry. The copy-on-write list lets the probe fan results out
+     * without locking.
+     */
+    private static class Probe
+    {
+        private final Provider provider;
+        private final CopyOnWriteArrayList<Registration> subscribers;
+        private Future<?> task;
+        
+        public Probe(final Provider provider)
+        {
+            this.provider = provider;
+            subscribers = new CopyOnWriteArrayList<>();
+        }
+        
+        public void handle(final Boolean result)
+        {
+            for (final Registration r : subscribers) {
+                try {
+                    r.handler.accept(result);
+                }
+                catch (RuntimeException ex) {
+                    /* A failing subscriber must not stop the probe
+                     * for the others.
+                     */
+                    final Thread t = Thread.currentThread();
+                    t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+                }
+            }
+        }
+    }
+    
+    /* Cancelling the registration is the only way to complete it.
+     * It is what load balancers do when a provider is removed.
+     */
+    private class Registration extends CompletableFuture<Void>
+    {
+        private final Probe probe;
+        private final Consumer<Boolean> handler;
+        
+        public Registration(final Probe probe,
+                final Consumer<Boolean> handler)
+        {
+            this.probe = probe;
+            this.handler = handler;
+        }
+        
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            final boolean result = super.cancel(mayInterruptIfRunning);
+            unregister(this);
+            return result;
+        }
+    }
+    
+    private class SharedChecker extends HeartbeatChecker
+    {
+        /** Registrations made through this checker. Guarded by this. */
+        private final List<Future<?>> tasks;
+        private boolean closed;
+        
+        public SharedChecker()
+        {
+            super(checker);
+            tasks = new ArrayList<>();
+        }
+        
+        @Override
+        public Future<?> registerChecker(final BooleanSupplier checker,
+                final Consumer<Boolean> checkResultHandler,
+                final long checkRateMs, final long timeoutMs)
+        {
+            synchronized (this) {
+                ensureOpen();
+                final Future<?> task = super.registerChecker(checker,
+                        checkResultHandler, checkRateMs, timeoutMs);
+                track(task);
+                return task;
+            }
+        }
+        
+        @Override
+        public Future<?> registerChecker(final Provider node,
+                final Consumer<Boolean> checkResultHandler,
+                final long checkRateMs, final long timeoutMs)
+        {
+            synchronized (this) {
+                ensureOpen();
+                final Future<?> task = register(node, checkResultHandler,
+                        checkRateMs, timeoutMs);
+                track(task);
+                return task;
+            }
+        }
+        
+        /**
+         * Cancels registrations made through this checker. Checks of
+         * other checkers of the registry keep running.
+         */
+        @Override
+        public void close()
+        {
+            final Future<?>[] toCancel;
+            synchronized (this) {
+                closed = true;
+                toCancel = tasks.toArray(new Future<?>[tasks.size()]);
+                tasks.clear();
+            }
+            for (final Future<?> task : toCancel) {
+                task.cancel(false);
+            }
+        }
+        
+        // Must be called under the lock on this.
+        private void ensureOpen()
+        {
+            if (closed) {
+                throw new IllegalStateException("Closed.");
+            }
+        }
+        
+        // Must be called under the lock on this.
+        private void track(final Future<?> task)
+        {
+            // Forgetting registrations which are cancelled by their owners.
+            tasks.removeIf(Future::isDone);
+            tasks.add(task);
+        }
+    }
+    
+    private final HeartbeatChecker checker;
+    /** Probes by provider identity. Guarded by the lock on this. */
+    private final IdentityHashMap<Provider, Probe> probes;
+    
+    public HeartbeatRegistry(final int schedulingThreadPoolSize)
+    {
+        this(new HeartbeatChecker(schedulingThreadPoolSize));
+    }
+    
+    /**
+     * @param checker the checker which runs the probes. It is closed
+     *      together with the registry.
+     */
+    HeartbeatRegistry(final HeartbeatChecker checker)
+    {
+        this.checker = checker;
+        probes = new IdentityHashMap<>();
+    }
+    
+    /**
+     * @return a new checker to be passed to a load balancer. Providers
+     *      registered through it share probes with other checkers of this
+     *      registry.
+     */
+    public HeartbeatChecker newChecker()
+    {
+        return new SharedChecker();
+    }
+    
+    /**
+     * @return the number of providers which are being probed.
+     */
+    public synchronized int getProbeCount()
+    {
+        return probes.size();
+    }
+    
+    private synchronized Future<?> register(final Provider node,
+            final Consumer<Boolean> checkResultHandler,
+            final long checkRateMs, final long timeoutMs)
+    {
+        Probe probe = probes.get(node);
+        final boolean started = probe != null;
+        if (!started) {
+            probe = new Probe(node);
+        }
+        final Registration registration =
+                new Registration(probe, checkResultHandler);
+        probe.subscribers.add(registration);
+        if (!started) {
+            final Probe p = probe;
+            p.task = checker.registerChecker(node, p::handle,
+                    checkRateMs, timeoutMs);
+            probes.put(node, p);
+        }
+        return registration;
+    }
+    
+    private synchronized void unregister(final Registration registration)
+    {
+        final Probe probe = registration.probe;
+        if (!probe.subscribers.remove(registration)) {
+            // Already cancelled.
+            return;
+        }
+        if (probe.subscribers.isEmpty()) {
+            probe.task.cancel(false);
+            probes.remove(probe.provider);
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        checker.close();
+    }
+}
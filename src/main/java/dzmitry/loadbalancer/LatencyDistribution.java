@@ -0,0 +1,49 @@
+package dzmitry.loadbalancer;
+
+import java.util.Random;
+
+/**
+ * Distribution of response times of a simulated provider.
+ */
+public interface LatencyDistribution
+{
+    /** @return a random response time in nanoseconds. */
+    long sampleNs(Random rnd);
+    
+    static LatencyDistribution constant(final double ms)
+    {
+        if (!(ms > 0)) {
+            throw new IllegalArgumentException("Non-positive latency.");
+        }
+        final long ns = (long) (ms * 1e6);
+        return rnd -> ns;
+    }
+    
+    static LatencyDistribution exponential(final double meanMs)
+    {
+        if (!(meanMs > 0)) {
+            throw new IllegalArgumentException("Non-positive mean latency.");
+        }
+        return rnd -> (long) (-meanMs * 1e6 * Math.log(1 - rnd.nextDouble()));
+    }
+    
+    /**
+     * Heavy-tailed distribution which is typical for network services.
+     * 
+     * @param medianMs the median response time.
+     * @param sigma the standard deviation of the logarithm of response time.
+     *      The larger the value the heavier the tail.
+     */
+    static LatencyDistribution logNormal(final double medianMs,
+            final double sigma)
+    {
+        if (!(medianMs > 0)) {
+            throw new IllegalArgumentException("Non-positive median latency.");
+        }
+        if (sigma < 0) {
+            throw new IllegalArgumentException("Negative sigma.");
+        }
+        return rnd -> (long) (medianMs * 1e6 *
+                Math.exp(sigma * rnd.nextGaussian()));
+    }
+}
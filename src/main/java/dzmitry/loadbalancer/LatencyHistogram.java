@@ -0,0 +1,77 @@
+package dzmitry.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of response times with fixed bucket bounds. Recording is
+ * lock-free and does not allocate so it is done for each request. Reading
+ * is not an atomic snapshot: buckets and the sum can be a few requests
+ * apart while requests are recorded concurrently.
+ */
+class LatencyHistogram
+{
+    /**
+     * Inclusive upper bounds of buckets in nanoseconds. The last bucket
+     * which is not listed here counts everything above.
+     */
+    private static final long[] BOUNDS_NS = {
+        100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L,
+        10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+        10_000_000_000L,
+    };
+    
+    private final AtomicLongArray counts;
+    private final AtomicLong sumNs;
+    
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BOUNDS_NS.length + 1);
+        sumNs = new AtomicLong();
+    }
+    
+    /**
+     * @return the number of buckets including the one without
+     *      the upper bound.
+     */
+    public static int getBucketCount()
+    {
+        return BOUNDS_NS.length + 1;
+    }
+    
+    /**
+     * @return the upper bound of the bucket in nanoseconds.
+     *      {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public static long getBoundNs(final int bucket)
+    {
+        return bucket < BOUNDS_NS.length ? BOUNDS_NS[bucket] : Long.MAX_VALUE;
+    }
+    
+    public void record(final long ns)
+    {
+        int bucket = 0;
+        while (bucket < BOUNDS_NS.length && ns > BOUNDS_NS[bucket]) {
+            ++bucket;
+        }
+        counts.incrementAndGet(bucket);
+        sumNs.addAndGet(ns);
+    }
+    
+    /**
+     * @return the number of recorded values which fall into the bucket
+     *      (not including smaller buckets).
+     */
+    public long getCount(final int bucket)
+    {
+        return counts.get(bucket);
+    }
+    
+    public long getSumNs()
+    {
+        return sumNs.get();
+    }
+}
@@ -0,0 +1,68 @@
+package dzmitry.loadbalancer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Text protocol of {@link SocketProvider} and {@link StandInServer}.
+ * Each request and each response is a single UTF-8 line. Requests are
+ * {@code GET}, {@code GET <key>} and {@code PING}. Responses are
+ * {@code OK <value>} and {@code ERR <message>}. Responses are sent
+ * in the order of requests so many requests can be pipelined over
+ * one connection.
+ */
+class LineProtocol
+{
+    static final String GET = "GET";
+    static final String PING = "PING";
+    static final String PONG = "PONG";
+    static final String OK = "OK ";
+    static final String ERR = "ERR ";
+    
+    /** The maximum length of a line in bytes. */
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+    
+    private LineProtocol()
+    {
+    }
+    
+    static ByteBuffer encode(final String line)
+    {
+        return ByteBuffer.wrap((line + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Passes complete lines from the buffer to the consumer and keeps
+     * the incomplete rest in the buffer. The buffer is a heap buffer
+     * in the filling mode before and after the call.
+     */
+    static void readLines(final ByteBuffer buf, final Consumer<String> consumer)
+            throws IOException
+    {
+        final byte[] bytes = buf.array();
+        final int offset = buf.arrayOffset();
+        final int end = buf.position();
+        int start = 0;
+        for (int i = 0; i < end; ++i) {
+            if (bytes[offset + i] == '\n') {
+                consumer.accept(new String(bytes, offset + start, i - start,
+                        StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (start == 0 && end == buf.capacity()) {
+            throw new IOException("Line is too long.");
+        }
+        buf.flip();
+        buf.position(start);
+        buf.compact();
+    }
+    
+    /** @return the text without line breaks to fit into a single line. */
+    static String singleLine(final String text)
+    {
+        return text.replace('\n', ' ').replace('\r', ' ');
+    }
+}
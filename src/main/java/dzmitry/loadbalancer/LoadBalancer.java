@@ -1,14 +1,309 @@
 package dzmitry.loadbalancer;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
-public class LoadBalancer implements AutoCloseable
+/**
+ * Distributes requests among providers. A load balancer is a provider
+ * itself so balancers can be composed: a parent balancer can choose
+ * between child balancers (e.g. clusters) each of which balances across
+ * its own nodes. Health and remaining capacity of a child balancer
+ * are taken into account by the parent's selection and heartbeat checks.
+ */
+public class LoadBalancer extends Provider implements AutoCloseable
 {
     private static final int MAX_SIZE = 10;
+    /** The number of node events kept for lagging subscribers. */
+    private static final int EVENT_BUFFER_SIZE = 1024;
+    
+    /**
+     * How often the time of the last successful response of a node is
+     * updated at most. It keeps requests from writing to the same memory
+     * all the time while it is still precise enough for heartbeat periods.
+     */
+    private static final long SUCCESS_RESOLUTION_NS =
+            TimeUnit.MILLISECONDS.toNanos(1);
+    /** The age of the last success of a node which has none. */
+    private static final long NO_SUCCESS_AGE_NS = Long.MAX_VALUE / 4;
+    /** The failure score of a node which fails all requests. */
+    private static final int MAX_FAILURE_SCORE = 1024;
+    /**
+     * The health of a node which fails all requests. It still gets a small
+     * share of the traffic so that its recovery is noticed.
+     */
+    private static final int MIN_HEALTH = MAX_FAILURE_SCORE / 16;
+    /**
+     * The share of healthy spare capacity of the local zone below which
+     * the zone-aware selector starts spilling over to other zones.
+     */
+    private static final double SPILL_SPARE_SHARE = 0.25;
+    
+    /* States of a request with a deadline. */
+    private static final int CALL_RUNNING = 0;
+    private static final int CALL_DONE = 1;
+    private static final int CALL_EXPIRING = 2;
+    private static final int CALL_EXPIRED = 3;
+    
+    /** A provider together with its runtime state. */
+    static class Node
+    {
+        private final Provider provider;
+        /** The number of requests which are being processed by the node. */
+        private final AtomicInteger load;
+        /** Null if the provider has no rate limit. */
+        private final TokenBucket rateLimiter;
+        /**
+         * Moving average of response time in nanoseconds. Zero if unknown.
+         * Concurrent updates can be lost which is fine for an estimate.
+         */
+        private volatile long latencyNs;
+        /** The slot in {@code sharedCounters}. Unused if they are null. */
+        private final int sharedSlot;
+        /** Set when the provider is removed if counters are shared. */
+        private volatile boolean removed;
+        /** Set when the slot in {@code sharedCounters} is freed. */
+        private final AtomicBoolean sharedSlotFreed;
+        /* Statistics. They are only read by StatsServer. */
+        private final LatencyHistogram latencies;
+        private final AtomicLong heartbeatSuccesses;
+        private final AtomicLong heartbeatFailures;
+        /**
+         * Heartbeat checks which are skipped since live requests prove
+         * the node healthy. They are not counted as successful checks.
+         */
+        private final AtomicLong heartbeatSkips;
+        /** Set by a skipped check until its result is recorded. */
+        private volatile boolean probeSkipped;
+        /** Requests which have missed their deadlines. */
+        private final AtomicLong deadlineTimeouts;
+        /** Set while a check caused by a missed deadline is pending. */
+        private final AtomicBoolean deadlineCheckPending;
+        /** When the last live request succeeded (see System.nanoTime()). */
+        private volatile long lastSuccessNs;
+        /**
+         * Set when a live request fails or misses its deadline. Cleared
+         * when a heartbeat probe succeeds.
+         */
+        private volatile boolean suspect;
+        /**
+         * Moving average of the share of failed live requests scaled to
+         * {@link #MAX_FAILURE_SCORE}. Concurrent updates can be lost which
+         * is fine for an estimate.
+         */
+        private volatile int failureScore;
+        /**
+         * Set when the heartbeat handler forgets the node. Its results are
+         * not handled after that. Guarded by the lock on this node.
+         */
+        private boolean heartbeatForgotten;
+        /**
+         * The number of consecutive successful heartbeat checks restored
+         * from the snapshot. Negative if the node is not restored.
+         * Written only by the constructor of the load balancer.
+         */
+        private int restoredChecks;
+        
+        public Node(final Provider provider, final LongSupplier clock,
+                final int sharedSlot)
+        {
+            this.provider = provider;
+            this.sharedSlot = sharedSlot;
+            load = new AtomicInteger();
+            latencies = new LatencyHistogram();
+            heartbeatSuccesses = new AtomicLong();
+            heartbeatFailures = new AtomicLong();
+            heartbeatSkips = new AtomicLong();
+            deadlineTimeouts = new AtomicLong();
+            deadlineCheckPending = new AtomicBoolean();
+            sharedSlotFreed = new AtomicBoolean();
+            restoredChecks = -1;
+            lastSuccessNs = System.nanoTime() - NO_SUCCESS_AGE_NS;
+            final int rate = provider.getMaxRequestsPerSecond();
+            // The burst is one second worth of requests.
+            rateLimiter = rate > 0 ? new TokenBucket(
+                    rate, Math.min(rate, TokenBucket.MAX_BURST), clock) :
+                    null;
+        }
+        
+        public Provider getProvider()
+        {
+            return provider;
+        }
+        
+        /** @return {@code true} if the node is not out of rate tokens. */
+        public boolean hasTokens()
+        {
+            return rateLimiter == null || rateLimiter.hasTokens();
+        }
+        
+        /**
+         * @return {@code true} if the provider itself (e.g. a child load
+         *      balancer) can accept the given number of requests.
+         */
+        public boolean canAccept(final int n)
+        {
+            return provider.getAvailableCapacity() >= n;
+        }
+        
+        public boolean tryTakeTokens(final int n)
+        {
+            return rateLimiter == null || rateLimiter.tryAcquire(n);
+        }
+        
+        public void recordLatency(final long ns)
+        {
+            final long prev = latencyNs;
+            // Exponential moving average with the weight of 1/8.
+            latencyNs = prev == 0 ? ns : prev + ((ns - prev) >> 3);
+            latencies.record(ns);
+        }
+        
+        /**
+         * Records a successful live request which has started at the given
+         * time.
+         */
+        public void recordSuccess(final long startNs)
+        {
+            final long endNs = System.nanoTime();
+            recordLatency(endNs - startNs);
+            recordSuccessAt(endNs);
+        }
+        
+        /**
+         * Records a successful batch of live requests. Its time is not
+         * the latency of a request so only the outcome is recorded.
+         */
+        public void recordBatchSuccess()
+        {
+            recordSuccessAt(System.nanoTime());
+        }
+        
+        private void recordSuccessAt(final long endNs)
+        {
+            recordOutcome(true);
+            if (endNs - lastSuccessNs >= SUCCESS_RESOLUTION_NS) {
+                lastSuccessNs = endNs;
+            }
+        }
+        
+        public void recordFailure()
+        {
+            recordOutcome(false);
+            // Issuing write only when data is really changed.
+            if (!suspect) {
+                suspect = true;
+            }
+        }
+        
+        /**
+         * Updates the failure score with the result of a live request.
+         * Used directly by {@link Simulator} which completes requests in
+         * virtual time.
+         */
+        public void recordOutcome(final boolean success)
+        {
+            final int score = failureScore;
+            // Moving average with the weight of 1/16 rounded up.
+            if (success) {
+                // Issuing write only when data is really changed.
+                if (score != 0) {
+                    failureScore = score - ((score + 15) >> 4);
+                }
+            } else if (score != MAX_FAILURE_SCORE) {
+                failureScore = score +
+                        ((MAX_FAILURE_SCORE - score + 15) >> 4);
+            }
+        }
+        
+        /**
+         * @return the weight of the node by its recent failures within
+         *      {@code [MIN_HEALTH, MAX_FAILURE_SCORE]}.
+         */
+        public int getHealth()
+        {
+            return Math.max(MIN_HEALTH, MAX_FAILURE_SCORE - failureScore);
+        }
+        
+        /**
+         * @return {@code true} if a live request has succeeded within
+         *      the given period and none has failed since the last
+         *      successful heartbeat probe.
+         */
+        public boolean isHealthyByTraffic(final long periodNs)
+        {
+            return !suspect && System.nanoTime() - lastSuccessNs <= periodNs;
+        }
+        
+        public void recordHeartbeat(final boolean result)
+        {
+            final boolean skipped = probeSkipped;
+            // Issuing write only when data is really changed.
+            if (skipped) {
+                probeSkipped = false;
+            }
+            if (skipped && result) {
+                heartbeatSkips.incrementAndGet();
+            } else {
+                (result ? heartbeatSuccesses : heartbeatFailures)
+                        .incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Statistics of a node taken by {@link #getNodeStats()}. Counters are
+     * cumulative since the node is added. The histogram is live.
+     */
+    static class NodeStats
+    {
+        final String uuid;
+        final boolean active;
+        /** Requests in flight from this load balancer. */
+        final long inFlight;
+        final long heartbeatSuccesses;
+        /** Failed heartbeat checks including timed out ones. */
+        final long heartbeatFailures;
+        /** Heartbeat checks skipped since the node is busy and healthy. */
+        final long heartbeatSkips;
+        final long deadlineTimeouts;
+        final LatencyHistogram latencies;
+        
+        public NodeStats(final Node node, final boolean active)
+        {
+            uuid = node.provider.getUuid();
+            this.active = active;
+            inFlight = node.load.get();
+            heartbeatSuccesses = node.heartbeatSuccesses.get();
+            heartbeatFailures = node.heartbeatFailures.get();
+            heartbeatSkips = node.heartbeatSkips.get();
+            deadlineTimeouts = node.deadlineTimeouts.get();
+            latencies = node.latencies;
+        }
+    }
     
     private interface Selector
     {
@@ -25,7 +320,7 @@ public class LoadBalancer implements AutoCloseable
             if (n == 0) {
                 throw new IllegalStateException("No active instances.");
             }
-            return activeIdxs[ThreadLocalRandom.current().nextInt(n)];
+            return activeIdxs[random.get().nextInt(n)];
         }
     }
     
@@ -77,22 +372,194 @@ public class LoadBalancer implements AutoCloseable
         }
     }
     
-    /** All instances this load balancer manages. Indices of active
-     * instances are stored in {@code activeNodes}. */
-    private final Provider[] instances;
+    /**
+     * Round-robin selector with a cursor per stripe of threads instead of
+     * a single shared one, so that threads of different stripes do not
+     * contend. Cursors of stripes start at different nodes. Each stripe
+     * distributes its requests evenly so the number of requests sent to
+     * a node differs from perfect round-robin by at most the number
+     * of stripes.
+     */
+    private class ShardedRoundRobinSelector implements Selector
+    {
+        private final StripedCounter cursors;
+        
+        public ShardedRoundRobinSelector(final int stripes)
+        {
+            cursors = new StripedCounter(stripes);
+        }
+        
+        @Override
+        public int select()
+        {
+            final int[] activeIdxs = activeNodes;
+            final int n = activeIdxs.length;
+            if (n == 0) {
+                throw new IllegalStateException("No active instances.");
+            }
+            final int stripe = cursors.currentStripe();
+            final long val = cursors.getAndAdd(stripe, 1);
+            return activeIdxs[(int) ((val + stripe) % n)];
+        }
+    }
+    
+    /**
+     * Prefers nodes from the local zone. Nodes are weighted by their spare
+     * slots (up to {@code maxLoadPerNode} requests in flight) and by their
+     * health so that a node which fails fast, and so always looks idle,
+     * gets only a small share of the load. Saturated nodes and nodes which
+     * are out of rate tokens are not selected.
+     * 
+     * While the healthy spare capacity of the local zone is above
+     * {@link #SPILL_SPARE_SHARE} of its full capacity all requests stay in
+     * the zone. Below that the load spills over to other zones in
+     * proportion: the less spare capacity is left, the more requests go
+     * to remote nodes, up to all of them when the local zone has none.
+     */
+    private class ZoneAwareSelector implements Selector
+    {
+        @Override
+        public int select()
+        {
+            final int[] activeIdxs = activeNodes;
+            final Node[] nodes = instances;
+            final int n = activeIdxs.length;
+            if (n == 0) {
+                throw new IllegalStateException("No active instances.");
+            }
+            /* Summing weights first to select a node proportionally without
+             * allocating memory. The number of nodes is small so two passes
+             * are cheap.
+             */
+            int localCount = 0;
+            long localWeight = 0;
+            long remoteWeight = 0;
+            for (int i = 0; i < n; ++i) {
+                final Node node = nodes[activeIdxs[i]];
+                if (isLocal(node)) {
+                    ++localCount;
+                    localWeight += weight(node);
+                } else {
+                    remoteWeight += weight(node);
+                }
+            }
+            final Random rnd = random.get();
+            if (localWeight == 0 && remoteWeight == 0) {
+                /* All nodes are saturated by concurrent requests. Admission
+                 * control still holds the total limit so any node is fine.
+                 */
+                return activeIdxs[rnd.nextInt(n)];
+            }
+            final boolean local;
+            if (localWeight == 0 || remoteWeight == 0) {
+                local = localWeight > 0;
+            } else {
+                final double spareShare = (double) localWeight /
+                        ((long) localCount * maxLoadPerNode *
+                                MAX_FAILURE_SCORE);
+                local = spareShare >= SPILL_SPARE_SHARE ||
+                        rnd.nextDouble() * SPILL_SPARE_SHARE < spareShare;
+            }
+            long k = (long) (rnd.nextDouble() *
+                    (local ? localWeight : remoteWeight));
+            for (int i = 0; i < n; ++i) {
+                final int idx = activeIdxs[i];
+                final Node node = nodes[idx];
+                if (isLocal(node) == local) {
+                    k -= weight(node);
+                    if (k < 0) {
+                        return idx;
+                    }
+                }
+            }
+            /* Some nodes got saturated between the two passes. Falling back
+             * to a random node.
+             */
+            return activeIdxs[rnd.nextInt(n)];
+        }
+        
+        /**
+         * @return spare slots of the node multiplied by its health. Zero
+         *      if the node cannot take a request.
+         */
+        private long weight(final Node node)
+        {
+            if (!hasCapacity(node)) {
+                return 0;
+            }
+            return (maxLoadPerNode - getLoad(node)) * (long) node.getHealth();
+        }
+        
+        private boolean isLocal(final Node node)
+        {
+            return localZone.equals(node.provider.getZone());
+        }
+    }
+    
+    /**
+     * All instances this load balancer manages. Indices of active
+     * instances are stored in {@code activeNodes}.
+     * 
+     * It is replaced each time a provider is added or removed. Slots
+     * of removed providers are kept as is (they can still be referenced
+     * by a snapshot of {@code activeNodes} taken before removal) until
+     * they are reused by a new provider. It is always written before
+     * {@code activeNodes} so any index read from {@code activeNodes}
+     * is valid for the array read after it.
+     */
+    private volatile Node[] instances;
+    
+    /**
+     * Indices of slots in {@code instances} which are not used by any
+     * provider. Guarded by {@code activeNodeLock}.
+     */
+    private final ArrayDeque<Integer> freeSlots;
+    
+    /** The maximum number of providers. */
+    private final int maxSize;
+    /**
+     * Source of randomness of selection. It is thread-local random except
+     * for simulation which needs it to be reproducible.
+     */
+    private final Supplier<Random> random;
+    /** Source of time in nanoseconds for rate limiting. */
+    private final LongSupplier clock;
     
     /** Strategy to distribute load used by this load balancer. */
     private final Selector selector;
+    /**
+     * The zone this load balancer runs in. It is used by the zone-aware
+     * selector only.
+     */
+    private final String localZone;
     
     /**
      * The maximum number of simultaneous requests allowed
      * for a single node.
      */
     private final int maxLoadPerNode;
-    /** Holds number of requests that are currently being processed. */
-    private long requestCounter;
+    /**
+     * Holds number of requests that are currently being processed.
+     * Modified under {@code requestCounterLock}. It is volatile
+     * to be read without locking.
+     */
+    private volatile long requestCounter;
+    /**
+     * Used instead of {@code requestCounter} in the sharded mode.
+     * Null otherwise.
+     */
+    private final ShardedAdmission shardedAdmission;
     /** This lock is used to count active requests. */
     private final Object requestCounterLock;
+    /* Rejected requests by reason. */
+    private final LongAdder rejectedOverCapacity;
+    private final LongAdder rejectedNoNode;
+    private final LongAdder rejectedClosed;
+    /**
+     * Set when this load balancer is closed. No new requests are
+     * admitted after that. Modified under {@code requestCounterLock}.
+     */
+    private volatile boolean closed;
     
     /**
      * Contains indices of instances in the {@code instances} array
@@ -122,14 +589,32 @@ public class LoadBalancer implements AutoCloseable
      * heartbeat check call.
      */
     private final long heartbeatCheckTimeoutMs;
-    private boolean heartbeatCheckStarted;
+    /** Skip probes of nodes which are proven healthy by live requests. */
+    private final boolean trafficHealth;
+    /** Written under the lock on this. Read by the deadline timer too. */
+    private volatile boolean heartbeatCheckStarted;
+    /**
+     * Periodic heartbeat check tasks of providers (by UUID).
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Future<?>> heartbeatTasks;
+    /** Persists health and latency state of nodes. Can be null. */
+    private final HealthSnapshot snapshot;
+    /**
+     * Requests in flight per node shared by all processes on the host.
+     * Null if {@code maxLoadPerNode} is enforced for this load balancer only.
+     */
+    private final SharedNodeCounters sharedCounters;
+    /** Membership and health transitions of nodes. */
+    private final NodeEventStream events;
     
     /**
      * Mapping from node UUID and its index in {@code instances}.
      * Useful to simplify and speedup algorithms that change
-     * set of active nodes.
+     * set of active nodes. It contains only providers which are
+     * not removed. Modified under {@code activeNodeLock}.
      */
-    private final Map<String, Integer> uuidToIdx;
+    private final ConcurrentHashMap<String, Integer> uuidToIdx;
     
     public LoadBalancer(final Provider[] instances, final int maxLoadPerNode)
     {
@@ -142,6 +627,19 @@ public class LoadBalancer implements AutoCloseable
         this(instances, selectorType, maxLoadPerNode, null, null, -1, -1);
     }
     
+    /**
+     * Creates a load balancer with the zone-aware selector.
+     * 
+     * @param localZone the zone this load balancer runs in. Providers
+     *      from this zone are preferred.
+     */
+    public LoadBalancer(final Provider[] instances, final String localZone,
+            final int maxLoadPerNode)
+    {
+        this(instances, SelectorType.ZONE_AWARE, localZone, maxLoadPerNode,
+                null, null, -1, -1);
+    }
+    
     public LoadBalancer(final Provider[] instances,
             final SelectorType selectorType, final int maxLoadPerNode,
             final HeartbeatChecker heartbeatChecker,
@@ -149,30 +647,207 @@ public class LoadBalancer implements AutoCloseable
             final long heartbeatCheckRateMs,
             final long heartbeatCheckTimeoutMs)
     {
-        Objects.requireNonNull(selectorType);
+        this(instances, selectorType, null, maxLoadPerNode,
+                heartbeatChecker, heartbeatHandler,
+                heartbeatCheckRateMs, heartbeatCheckTimeoutMs);
+    }
+    
+    /**
+     * @param localZone the zone this load balancer runs in. It is required
+     *      by {@link SelectorType#ZONE_AWARE} and ignored by other selectors.
+     */
+    public LoadBalancer(final Provider[] instances,
+            final SelectorType selectorType, final String localZone,
+            final int maxLoadPerNode,
+            final HeartbeatChecker heartbeatChecker,
+            final HeartbeatCheckResultHandler heartbeatHandler,
+            final long heartbeatCheckRateMs,
+            final long heartbeatCheckTimeoutMs)
+    {
+        this(instances, selectorType, localZone, maxLoadPerNode,
+                heartbeatChecker, heartbeatHandler,
+                heartbeatCheckRateMs, heartbeatCheckTimeoutMs, null);
+    }
+    
+    /**
+     * Creates a load balancer which starts with the state restored from
+     * the snapshot (if it is recent) and saves its state to the snapshot
+     * periodically since {@link #startHeartbeatChecking()} is called.
+     * Nodes which were inactive are restored as inactive only if heartbeat
+     * checking is configured so that they can be activated again.
+     * The snapshot is closed together with this load balancer (or if
+     * it cannot be created).
+     * 
+     * @param snapshot the snapshot of health and latency state. Can be null.
+     */
+    public LoadBalancer(final Provider[] instances,
+            final SelectorType selectorType, final String localZone,
+            final int maxLoadPerNode,
+            final HeartbeatChecker heartbeatChecker,
+            final HeartbeatCheckResultHandler heartbeatHandler,
+            final long heartbeatCheckRateMs,
+            final long heartbeatCheckTimeoutMs,
+            final HealthSnapshot snapshot)
+    {
+        this(instances, selectorType, localZone, maxLoadPerNode,
+                heartbeatChecker, heartbeatHandler,
+                heartbeatCheckRateMs, heartbeatCheckTimeoutMs, snapshot, null);
+    }
+    
+    /**
+     * Creates a load balancer which enforces {@code maxLoadPerNode} together
+     * with all load balancers on the host which use the same shared counters.
+     * A node which has reached the limit is not selected. The counters are
+     * not closed together with this load balancer so that they can be
+     * shared by several load balancers of the process.
+     * 
+     * @param sharedCounters per-node counters shared by processes.
+     *      Can be null.
+     */
+    public LoadBalancer(final Provider[] instances,
+            final SelectorType selectorType, final String localZone,
+            final int maxLoadPerNode,
+            final HeartbeatChecker heartbeatChecker,
+            final HeartbeatCheckResultHandler heartbeatHandler,
+            final long heartbeatCheckRateMs,
+            final long heartbeatCheckTimeoutMs,
+            final HealthSnapshot snapshot,
+            final SharedNodeCounters sharedCounters)
+    {
+        this(instances, selectorType, localZone, maxLoadPerNode,
+                heartbeatChecker, heartbeatHandler,
+                heartbeatCheckRateMs, heartbeatCheckTimeoutMs, snapshot,
+                sharedCounters, false);
+    }
+    
+    /**
+     * Creates a load balancer which can use live traffic as heartbeat
+     * checks. A node which is active, has served a request successfully
+     * within the last {@code heartbeatCheckRateMs} and has had no failed
+     * request since its last successful probe is not probed: the check
+     * counts as successful. Idle, excluded and suspect nodes are probed
+     * as usual so failures are detected by probes and by live requests,
+     * and only probes bring an excluded node back. Probes of this mode
+     * are not shared by {@link HeartbeatRegistry} since their results
+     * depend on the traffic of this load balancer.
+     * 
+     * @param trafficHealth {@code true} to skip probes of nodes which
+     *      are proven healthy by live requests.
+     */
+    public LoadBalancer(final Provider[] instances,
+            final SelectorType selectorType, final String localZone,
+            final int maxLoadPerNode,
+            final HeartbeatChecker heartbeatChecker,
+            final HeartbeatCheckResultHandler heartbeatHandler,
+            final long heartbeatCheckRateMs,
+            final long heartbeatCheckTimeoutMs,
+            final HealthSnapshot snapshot,
+            final SharedNodeCounters sharedCounters,
+            final boolean trafficHealth)
+    {
+        this(instances, selectorType, localZone, maxLoadPerNode, MAX_SIZE,
+                heartbeatChecker, heartbeatHandler,
+                heartbeatCheckRateMs, heartbeatCheckTimeoutMs, snapshot,
+                sharedCounters, trafficHealth, ThreadLocalRandom::current,
+                System::nanoTime);
+    }
+    
+    /**
+     * Used by {@link Simulator} to run thousands of nodes against
+     * a virtual clock with reproducible selection.
+     * 
+     * @param maxSize the maximum number of providers.
+     * @param random the source of randomness of selection.
+     * @param clock the source of time in nanoseconds for rate limiting.
+     */
+    LoadBalancer(final Provider[] instances,
+            final SelectorType selectorType, final String localZone,
+            final int maxLoadPerNode, final int maxSize,
+            final HeartbeatChecker heartbeatChecker,
+            final HeartbeatCheckResultHandler heartbeatHandler,
+            final long heartbeatCheckRateMs,
+            final long heartbeatCheckTimeoutMs,
+            final HealthSnapshot snapshot,
+            final SharedNodeCounters sharedCounters,
+            final boolean trafficHealth,
+            final Supplier<Random> random, final LongSupplier clock)
+    {
+        // The zone of a load balancer is its zone as a provider.
+        super(localZone);
         final int n = instances.length;
-        if (n == 0) {
-            throw new IllegalArgumentException("No instances.");
-        }
-        if (n > MAX_SIZE) {
-            throw new IllegalArgumentException(
-                    "Too many instances. Max allowed: " + MAX_SIZE +
-                    ", provided: " + n);
+        final Node[] copy = new Node[n];
+        final Map<String, HealthSnapshot.Entry> saved;
+        try {
+            Objects.requireNonNull(selectorType);
+            Objects.requireNonNull(random);
+            Objects.requireNonNull(clock);
+            if (selectorType == SelectorType.ZONE_AWARE && localZone == null) {
+                throw new IllegalArgumentException(
+                        "Local zone is required for zone-aware selection.");
+            }
+            if (n == 0) {
+                throw new IllegalArgumentException("No instances.");
+            }
+            if (n > maxSize) {
+                throw new IllegalArgumentException(
+                        "Too many instances. Max allowed: " + maxSize +
+                        ", provided: " + n);
+            }
+            this.maxSize = maxSize;
+            this.random = random;
+            this.clock = clock;
+            this.sharedCounters = sharedCounters;
+            final ConcurrentHashMap<String, Integer> uuidToIdx =
+                    new ConcurrentHashMap<>();
+            for (int i = 0; i < n; ++i) {
+                final Provider p = instances[i];
+                Objects.requireNonNull(p, "null provider");
+                copy[i] = newNode(p);
+                uuidToIdx.put(p.getUuid(), i);
+            }
+            this.uuidToIdx = uuidToIdx;
+            
+            saved = snapshot == null ?
+                    Collections.<String, HealthSnapshot.Entry>emptyMap() :
+                    snapshot.load();
         }
-        final Provider[] copy = new Provider[n];
-        final HashMap<String, Integer> uuidToIdx = new HashMap<>();
-        for (int i = 0; i < n; ++i) {
-            final Provider p = instances[i];
-            Objects.requireNonNull(p, "null provider");
-            copy[i] = p;
-            uuidToIdx.put(p.getUuid(), i);
+        catch (RuntimeException ex) {
+            if (sharedCounters != null) {
+                for (final Node node : copy) {
+                    if (node != null) {
+                        sharedCounters.free(node.sharedSlot);
+                    }
+                }
+            }
+            // The snapshot is owned by this load balancer.
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            throw ex;
         }
         this.instances = copy;
-        this.uuidToIdx = uuidToIdx;
+        freeSlots = new ArrayDeque<>();
         
-        final int[] activeIdxs = new int[n];
+        int[] activeIdxs = new int[n];
+        int activeCount = 0;
         for (int i = 0; i < n; ++i) {
-            activeIdxs[i] = i;
+            final Node node = copy[i];
+            final HealthSnapshot.Entry e = saved.get(node.provider.getUuid());
+            if (e != null) {
+                node.latencyNs = e.latencyNs;
+                /* Passed to the heartbeat handler when heartbeat checking
+                 * is started so that this is not exposed before it is
+                 * constructed.
+                 */
+                node.restoredChecks = e.successfulChecks;
+            }
+            // Only heartbeat checking can bring an inactive node back.
+            if (e == null || e.active || heartbeatChecker == null) {
+                activeIdxs[activeCount++] = i;
+            }
+        }
+        if (activeCount < n) {
+            activeIdxs = Arrays.copyOf(activeIdxs, activeCount);
         }
         activeNodes = activeIdxs;
         activeNodeLock = new Object();
@@ -184,65 +859,584 @@ public class LoadBalancer implements AutoCloseable
         case ROUND_ROBIN:
             selector = new RoundRobinSelector();
             break;
+        case ZONE_AWARE:
+            selector = new ZoneAwareSelector();
+            break;
+        case SHARDED_ROUND_ROBIN:
+            selector = new ShardedRoundRobinSelector(
+                    StripedCounter.defaultStripeCount());
+            break;
         default:
             throw new AssertionError(
                     "Unsupported selector type: " + selectorType);
         }
+        this.localZone = localZone;
         
         this.maxLoadPerNode = maxLoadPerNode;
         requestCounter = 0;
         requestCounterLock = new Object();
+        rejectedOverCapacity = new LongAdder();
+        rejectedNoNode = new LongAdder();
+        rejectedClosed = new LongAdder();
+        shardedAdmission = selectorType == SelectorType.SHARDED_ROUND_ROBIN ?
+                new ShardedAdmission(StripedCounter.defaultStripeCount()) :
+                null;
         
         this.heartbeatChecker = heartbeatChecker;
         this.heartbeatHandler = heartbeatHandler;
         this.heartbeatCheckRateMs = heartbeatCheckRateMs;
         this.heartbeatCheckTimeoutMs = heartbeatCheckTimeoutMs;
+        this.trafficHealth = trafficHealth;
+        heartbeatTasks = new HashMap<>();
+        this.snapshot = snapshot;
+        events = new NodeEventStream(EVENT_BUFFER_SIZE);
     }
     
+    @Override
     public String get()
     {
-        boolean accepted = false;
-        final long maxRequests = maxLoadPerNode * activeNodes.length;
-        synchronized (requestCounterLock) {
-            if (requestCounter < maxRequests) {
-                ++requestCounter;
-                accepted = true;
-            }
+        final Node node = acquire(1);
+        final long start = System.nanoTime();
+        try {
+            final String result = node.provider.get();
+            node.recordSuccess(start);
+            return result;
         }
-        if (accepted) {
-            try {
-                final int idx = selector.select();
-                final Provider provider = instances[idx];
-                return provider.get();
-            }
-            finally {
-                synchronized (requestCounterLock) {
-                    --requestCounter;
-                }
-            }
-        } else {
-            throw new IllegalStateException(
-                    "Max number of simultaneous requests reached.");
+        catch (RuntimeException ex) {
+            node.recordFailure();
+            throw ex;
+        }
+        finally {
+            release(node, 1);
         }
     }
     
-    public void excludeNode(final String uuid)
+    /**
+     * Same as {@link #get()} but the request is identified by the given key
+     * which is passed to the selected provider.
+     * 
+     * @param key the request key.
+     * @return the response of the selected provider.
+     */
+    @Override
+    public String get(final String key)
     {
-        /* 
-         * It costs O(activeNodes.length) which can be too expensive
-         * for large instance pools. If it is the case and if active
-         * nodes updated frequently then adapt data structures to support
-         * complexity closer to the number of nodes to exclude.
-         */
-        
-        final int nodeIdx = getNodeIdx(uuid);
-        
-        /* Checking if it is already excluded (to increase parallelism
-         * and produce less memory garbage).
-         */
-        if (!contains(activeNodes, nodeIdx)) {
-            /* It is already inactive. No need to change any supplementary
-             * structure. (Of course this can become obsolete a moment
+        return get(acquire(1), key);
+    }
+    
+    /**
+     * Sends the request to the node which is admitted already with
+     * {@link #acquire(int)} and releases it. It is used directly by
+     * {@link FlowProcessor} which retries requests rejected by admission.
+     */
+    String get(final Node node, final String key)
+    {
+        final long start = System.nanoTime();
+        try {
+            final String result = node.provider.get(key);
+            node.recordSuccess(start);
+            return result;
+        }
+        catch (RuntimeException ex) {
+            node.recordFailure();
+            throw ex;
+        }
+        finally {
+            release(node, 1);
+        }
+    }
+    
+    /**
+     * Same as {@link #get()} but the response is written into the given
+     * buffer by the selected provider. Nothing is allocated by the load
+     * balancer so the whole round trip is garbage-free if the provider
+     * writes its response without allocation.
+     * 
+     * @param dst the buffer to write the response into. Its position is
+     *      advanced past the response.
+     * @return the number of written bytes.
+     */
+    @Override
+    public int get(final ByteBuffer dst)
+    {
+        final Node node = acquire(1);
+        final long start = System.nanoTime();
+        try {
+            final int result = node.provider.get(dst);
+            node.recordSuccess(start);
+            return result;
+        }
+        catch (BufferOverflowException | ReadOnlyBufferException ex) {
+            // The buffer of the caller does not fit. The node is fine.
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            node.recordFailure();
+            throw ex;
+        }
+        finally {
+            release(node, 1);
+        }
+    }
+    
+    /**
+     * Same as {@link #get()} but gives up when the timeout expires.
+     * 
+     * Deadlines are tracked by a timer shared by all load balancers. When
+     * the deadline passes the thread which waits for the provider is
+     * interrupted and the request slot is released right away even if the
+     * provider does not react to interruption. The timeout is fed into the
+     * health of the node: its latency estimate is raised and, if heartbeat
+     * checking is started, the node is checked right away out of schedule.
+     * A node which is just briefly slow is not excluded: only the result
+     * of the check counts as a heartbeat check.
+     * 
+     * @param timeoutMs the maximum time in milliseconds for the request.
+     * @return the response of the selected provider.
+     * @throws IllegalStateException if the deadline passes.
+     */
+    public String get(final long timeoutMs)
+    {
+        return get(null, timeoutMs);
+    }
+    
+    /**
+     * Same as {@link #get(String)} but gives up when the timeout expires.
+     * See {@link #get(long)} for details.
+     * 
+     * @param key the request key. If null then {@link Provider#get()}
+     *      is called.
+     * @param timeoutMs the maximum time in milliseconds for the request.
+     * @return the response of the selected provider.
+     * @throws IllegalStateException if the deadline passes.
+     */
+    public String get(final String key, final long timeoutMs)
+    {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Non-positive timeout.");
+        }
+        final long timeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final Node node = acquire(1);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger state = new AtomicInteger(CALL_RUNNING);
+        final DeadlineTimer.Timeout timeout = DeadlineTimer.shared().schedule(
+                () -> expireCall(node, caller, state, timeoutNs), timeoutNs);
+        final long start = System.nanoTime();
+        final String result;
+        try {
+            result = key == null ? node.provider.get() :
+                    node.provider.get(key);
+        }
+        catch (RuntimeException ex) {
+            if (finishCall(node, state, timeout)) {
+                node.recordFailure();
+                throw ex;
+            }
+            // Most likely it is caused by interruption on the deadline.
+            throw new IllegalStateException("Request deadline exceeded.", ex);
+        }
+        catch (Error ex) {
+            finishCall(node, state, timeout);
+            throw ex;
+        }
+        if (!finishCall(node, state, timeout)) {
+            throw new IllegalStateException("Request deadline exceeded.");
+        }
+        node.recordSuccess(start);
+        return result;
+    }
+    
+    /**
+     * Completes the request with a deadline unless the deadline has passed.
+     * 
+     * @return {@code true} if the request is completed in time. Its slot
+     *      is released. Otherwise the slot is released by the timer.
+     */
+    private boolean finishCall(final Node node, final AtomicInteger state,
+            final DeadlineTimer.Timeout timeout)
+    {
+        if (state.compareAndSet(CALL_RUNNING, CALL_DONE)) {
+            timeout.cancel();
+            release(node, 1);
+            return true;
+        }
+        /* Waiting for the timer to interrupt this thread so that
+         * the interruption is cleared and does not leak to the caller.
+         */
+        while (state.get() != CALL_EXPIRED) {
+            Thread.onSpinWait();
+        }
+        Thread.interrupted();
+        return false;
+    }
+    
+    // Runs in the deadline timer thread so it must be short.
+    private void expireCall(final Node node, final Thread caller,
+            final AtomicInteger state, final long timeoutNs)
+    {
+        if (!state.compareAndSet(CALL_RUNNING, CALL_EXPIRING)) {
+            // Completed in time.
+            return;
+        }
+        try {
+            release(node, 1);
+            node.recordLatency(timeoutNs);
+            node.recordFailure();
+            node.deadlineTimeouts.incrementAndGet();
+            caller.interrupt();
+        }
+        finally {
+            state.set(CALL_EXPIRED);
+        }
+        if (heartbeatCheckStarted && heartbeatHandler != null &&
+                node.deadlineCheckPending.compareAndSet(false, true)) {
+            /* The heartbeat handler takes locks so the check and its
+             * result are handled by the threads of the heartbeat checker.
+             * Timeouts of the node are coalesced while it is pending.
+             */
+            try {
+                heartbeatChecker.checkNow(heartbeatCheck(node),
+                        result -> handleDeadlineCheck(node, result),
+                        heartbeatCheckTimeoutMs);
+            }
+            catch (RejectedExecutionException ex) {
+                // The load balancer is closed. Nothing to check.
+                node.deadlineCheckPending.set(false);
+            }
+        }
+    }
+    
+    private void handleDeadlineCheck(final Node node, final boolean result)
+    {
+        node.deadlineCheckPending.set(false);
+        /* The provider can be removed while it is checked. Its periodic
+         * checks are stopped then and so is this one.
+         */
+        if (isLive(node)) {
+            handleHeartbeat(node, result);
+        }
+    }
+    
+    /**
+     * Processes {@code n} requests at once. All of them are admitted
+     * together and sent to a single provider as one batch.
+     * 
+     * @param n the number of requests in the batch.
+     * @return the responses of the selected provider. Its length is {@code n}.
+     */
+    @Override
+    public String[] getBatch(final int n)
+    {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Non-positive batch size.");
+        }
+        final Node node = acquire(n);
+        try {
+            final String[] result = node.provider.getBatch(n);
+            if (result.length != n) {
+                throw new IllegalStateException(
+                        "Provider returned " + result.length +
+                        " responses for a batch of " + n + ".");
+            }
+            node.recordBatchSuccess();
+            return result;
+        }
+        catch (RuntimeException ex) {
+            node.recordFailure();
+            throw ex;
+        }
+        finally {
+            release(node, n);
+        }
+    }
+    
+    /**
+     * Admits new requests and selects the node to process them. Each
+     * successful call must be followed by {@link #release(Node, int)} with
+     * the same number of requests. It is used directly by {@link Simulator}
+     * which completes requests in virtual time.
+     * 
+     * @param n the number of requests to admit.
+     * @return the selected node. Its load is increased by {@code n}.
+     */
+    Node acquire(final int n)
+    {
+        if (admit(n)) {
+            boolean success = false;
+            try {
+                final Node node = takeNode(selector.select(), n);
+                node.load.addAndGet(n);
+                success = true;
+                return node;
+            }
+            finally {
+                if (!success) {
+                    releaseAdmission(n);
+                }
+            }
+        } else {
+            rejectedOverCapacity.increment();
+            throw new IllegalStateException(
+                    "Max number of simultaneous requests reached.");
+        }
+    }
+    
+    /**
+     * Takes rate tokens for the requests from the selected node. If it
+     * is out of tokens or its provider cannot accept more requests then
+     * it is treated as a saturated node and another node is used.
+     * 
+     * @return the node to process the requests.
+     */
+    private Node takeNode(final int selectedIdx, final int n)
+    {
+        final Node selected = instances[selectedIdx];
+        if (selected.canAccept(n) && tryTake(selected, n)) {
+            return selected;
+        }
+        // Reading active nodes first so that all their indices are valid.
+        final int[] activeIdxs = activeNodes;
+        final Node[] nodes = instances;
+        final int count = activeIdxs.length;
+        final int start = count == 0 ? 0 : random.get().nextInt(count);
+        Node fallback = null;
+        for (int i = 0; i < count; ++i) {
+            final int j = start + i;
+            final Node node = nodes[activeIdxs[j < count ? j : j - count]];
+            if (node == selected || !node.hasTokens() || !node.canAccept(n)) {
+                continue;
+            }
+            if (getLoad(node) >= maxLoadPerNode) {
+                // Saturated nodes are used only if there is no other choice.
+                if (fallback == null) {
+                    fallback = node;
+                }
+                continue;
+            }
+            if (tryTake(node, n)) {
+                return node;
+            }
+        }
+        if (fallback != null && tryTake(fallback, n)) {
+            return fallback;
+        }
+        rejectedNoNode.increment();
+        throw new IllegalStateException("No node has spare capacity.");
+    }
+    
+    /**
+     * Takes rate tokens of the node and, if counters are shared, its
+     * host-wide budget for the requests.
+     * 
+     * @return {@code true} if the node can process the requests.
+     */
+    private boolean tryTake(final Node node, final int n)
+    {
+        if (sharedCounters != null && !sharedCounters.tryAcquire(
+                node.sharedSlot, n, maxLoadPerNode)) {
+            return false;
+        }
+        if (node.tryTakeTokens(n)) {
+            return true;
+        }
+        if (sharedCounters != null) {
+            sharedCounters.release(node.sharedSlot, n);
+        }
+        return false;
+    }
+    
+    /**
+     * @return the number of requests in flight to the node from this load
+     *      balancer or, if counters are shared, from all processes.
+     */
+    private long getLoad(final Node node)
+    {
+        return sharedCounters == null ?
+                node.load.get() : sharedCounters.get(node.sharedSlot);
+    }
+    
+    private boolean hasCapacity(final Node node)
+    {
+        return getLoad(node) < maxLoadPerNode && node.hasTokens() &&
+                node.canAccept(1);
+    }
+    
+    void release(final Node node, final int n)
+    {
+        final int load = node.load.addAndGet(-n);
+        if (sharedCounters != null) {
+            sharedCounters.release(node.sharedSlot, n);
+            if (load == 0 && node.removed) {
+                // The removed provider is drained.
+                freeSharedSlot(node);
+            }
+        }
+        releaseAdmission(n);
+    }
+    
+    /**
+     * Frees the slot of the node in shared counters once. It is done when
+     * the provider is removed and its requests in flight are released.
+     */
+    private void freeSharedSlot(final Node node)
+    {
+        if (sharedCounters != null &&
+                node.sharedSlotFreed.compareAndSet(false, true)) {
+            sharedCounters.free(node.sharedSlot);
+        }
+    }
+    
+    private Node newNode(final Provider provider)
+    {
+        return new Node(provider, clock, sharedCounters == null ? -1 :
+                sharedCounters.slot(provider.getUuid()));
+    }
+    
+    /**
+     * @return {@code true} if the requests are admitted.
+     */
+    private boolean admit(final int n)
+    {
+        final long maxRequests = getCapacity();
+        if (shardedAdmission == null) {
+            synchronized (requestCounterLock) {
+                if (closed) {
+                    rejectedClosed.increment();
+                    throw new IllegalStateException(
+                            "Load balancer is closed.");
+                }
+                if (requestCounter + n <= maxRequests) {
+                    requestCounter += n;
+                    return true;
+                }
+                return false;
+            }
+        }
+        
+        if (closed) {
+            rejectedClosed.increment();
+            throw new IllegalStateException("Load balancer is closed.");
+        }
+        if (!shardedAdmission.tryAcquire(n, maxRequests)) {
+            return false;
+        }
+        /* Checking again in case it is closed concurrently: either
+         * shutdown() sees these requests or they are rejected.
+         */
+        if (closed) {
+            releaseAdmission(n);
+            rejectedClosed.increment();
+            throw new IllegalStateException("Load balancer is closed.");
+        }
+        return true;
+    }
+    
+    private void releaseAdmission(final int n)
+    {
+        if (shardedAdmission == null) {
+            synchronized (requestCounterLock) {
+                requestCounter -= n;
+                if (requestCounter == 0 && closed) {
+                    // Waking up shutdown() waiting for draining.
+                    requestCounterLock.notifyAll();
+                }
+            }
+        } else {
+            shardedAdmission.release(n);
+            if (closed) {
+                synchronized (requestCounterLock) {
+                    requestCounterLock.notifyAll();
+                }
+            }
+        }
+    }
+    
+    /** @return the number of requests which are being processed. */
+    long getInFlight()
+    {
+        return shardedAdmission == null ?
+                requestCounter : shardedAdmission.getInFlight();
+    }
+    
+    /**
+     * @return the maximum number of simultaneous requests which can be
+     *      currently admitted. It depends on the number of active nodes.
+     */
+    public long getCapacity()
+    {
+        return (long) maxLoadPerNode * activeNodes.length;
+    }
+    
+    /**
+     * @return the number of requests which can be admitted right now.
+     *      Zero if this load balancer is closed.
+     */
+    @Override
+    public long getAvailableCapacity()
+    {
+        if (closed) {
+            return 0;
+        }
+        return Math.max(0, getCapacity() - getInFlight());
+    }
+    
+    /**
+     * @return the moving average of response time of the provider
+     *      in nanoseconds. Zero if it is unknown.
+     */
+    public long getLatencyEstimateNs(final String uuid)
+    {
+        final int nodeIdx = getNodeIdx(uuid);
+        return instances[nodeIdx].latencyNs;
+    }
+    
+    /**
+     * A load balancer is healthy while it is not closed and has
+     * at least one active node.
+     */
+    @Override
+    public boolean check()
+    {
+        return !closed && activeNodes.length > 0;
+    }
+    
+    /**
+     * Subscribes to membership and health transitions of nodes. Events
+     * are published without waiting for subscribers so a subscription
+     * must be polled often enough not to miss events.
+     * 
+     * @return a subscription which receives events from now on.
+     */
+    public NodeEventStream.Subscription subscribe()
+    {
+        return events.subscribe();
+    }
+    
+    public void excludeNode(final String uuid)
+    {
+        /* 
+         * It costs O(activeNodes.length) which can be too expensive
+         * for large instance pools. If it is the case and if active
+         * nodes updated frequently then adapt data structures to support
+         * complexity closer to the number of nodes to exclude.
+         */
+        
+        excludeNode(uuid, getNodeIdx(uuid));
+    }
+    
+    /**
+     * Excludes the node by its index which is read before. The index
+     * can be stale: the provider can be removed since then and its slot
+     * can be reused by a new provider.
+     */
+    void excludeNode(final String uuid, final int nodeIdx)
+    {
+        /* Checking if it is already excluded (to increase parallelism
+         * and produce less memory garbage).
+         */
+        if (!contains(activeNodes, nodeIdx)) {
+            /* It is already inactive. No need to change any supplementary
+             * structure. (Of course this can become obsolete a moment
              * after taking a snapshot of active nodes).
              */
             return;
@@ -254,18 +1448,17 @@ public class LoadBalancer implements AutoCloseable
                 // It was deactivated concurrently. Nothing to do.
                 return;
             }
-            final int[] newActiveNodes = new int[activeIdxs.length - 1];
-            /* TODO it can be made more CPU-efficient by taking into
-             * account the position of nodeIdx in activeNodes.
-             */
-            for (int i = 0, j = 0, n = activeIdxs.length; i < n; ++i) {
-                final int activeIdx = activeIdxs[i];
-                if (nodeIdx != activeIdx) {
-                    newActiveNodes[j++] = activeIdx;
-                }
+            if (!isLive(uuid, nodeIdx)) {
+                /* The provider was removed concurrently. A late heartbeat
+                 * result or timed out request must not exclude another
+                 * provider which reuses its slot.
+                 */
+                return;
             }
             // --- happens-before w.r.t. volatile write to activeNodes ---
-            activeNodes = newActiveNodes;
+            activeNodes = remove(activeIdxs, nodeIdx);
+            // Published under the lock to keep the order of transitions.
+            events.publish(NodeEventType.EXCLUDED, uuid);
         }
     }
     
@@ -299,14 +1492,205 @@ public class LoadBalancer implements AutoCloseable
                 // It was activated concurrently. Nothing to do.
                 return;
             }
-            final int n = activeIdxs.length;
-            final int[] newActiveIdxs = Arrays.copyOf(activeIdxs, n + 1);
-            newActiveIdxs[n] = nodeIdx;
+            if (!isLive(uuid, nodeIdx)) {
+                /* The provider was removed concurrently. A late heartbeat
+                 * result must not bring it back.
+                 */
+                return;
+            }
             // --- happens-before w.r.t. volatile write to activeNodes ---
-            activeNodes = newActiveIdxs;
+            activeNodes = append(activeIdxs, nodeIdx);
+            events.publish(NodeEventType.INCLUDED, uuid);
         }
     }
     
+    /**
+     * Adds a new provider to this load balancer. The provider is active
+     * right away. If heartbeat checking is started then it is started
+     * for this provider as well.
+     * 
+     * @param provider the provider to add. Its UUID must be unique
+     *      among the providers of this load balancer.
+     */
+    public void addProvider(final Provider provider)
+    {
+        Objects.requireNonNull(provider, "null provider");
+        final String uuid = provider.getUuid();
+        
+        // Membership and heartbeat registration are guarded by this.
+        synchronized (this) {
+            synchronized (activeNodeLock) {
+                if (uuidToIdx.containsKey(uuid)) {
+                    throw new IllegalArgumentException("Duplicate UUID.");
+                }
+                final int n = uuidToIdx.size();
+                if (n >= maxSize) {
+                    throw new IllegalStateException(
+                            "Too many instances. Max allowed: " + maxSize);
+                }
+            }
+            /* Created before anything is changed since it can fail
+             * (e.g. if shared counters have no free slots).
+             */
+            addNode(newNode(provider));
+        }
+    }
+    
+    /**
+     * Adds the node which is validated already. It does not fail
+     * so membership is not changed partially. Must be called under
+     * the lock on this.
+     */
+    private void addNode(final Node node)
+    {
+        final String uuid = node.provider.getUuid();
+        synchronized (activeNodeLock) {
+            final Node[] nodes = instances;
+            final Integer freeSlot = freeSlots.poll();
+            final int nodeIdx;
+            final Node[] newInstances;
+            if (freeSlot == null) {
+                nodeIdx = nodes.length;
+                newInstances = Arrays.copyOf(nodes, nodeIdx + 1);
+            } else {
+                /* A stale snapshot of active nodes can still refer to
+                 * this slot. It is fine for such a request to be
+                 * served by the new provider.
+                 */
+                nodeIdx = freeSlot.intValue();
+                newInstances = nodes.clone();
+            }
+            newInstances[nodeIdx] = node;
+            // Must be visible before activeNodes refers to nodeIdx.
+            instances = newInstances;
+            uuidToIdx.put(uuid, nodeIdx);
+            // --- happens-before w.r.t. volatile write to activeNodes ---
+            activeNodes = append(activeNodes, nodeIdx);
+            events.publish(NodeEventType.ADDED, uuid);
+        }
+        if (heartbeatCheckStarted) {
+            registerHeartbeatChecker(node);
+        }
+    }
+    
+    /**
+     * Removes and adds providers as one change of membership. The change
+     * is validated before anything is changed so either all of it is
+     * applied or none of it. Concurrent requests can see the providers
+     * removed before the new ones are added. Removed providers are drained
+     * as with {@link #removeProvider(String)}.
+     * 
+     * @param removedUuids the UUIDs of the providers to remove. UUIDs which
+     *      are unknown (e.g. the providers are removed already) are skipped.
+     * @param added the providers to add. Their UUIDs must be unique among
+     *      the providers which are left after the removal.
+     */
+    public void updateProviders(final String[] removedUuids,
+            final Provider[] added)
+    {
+        Objects.requireNonNull(removedUuids, "null removedUuids");
+        Objects.requireNonNull(added, "null added");
+        // Membership is changed under this only, so it stays validated.
+        synchronized (this) {
+            synchronized (activeNodeLock) {
+                final HashSet<String> uuids =
+                        new HashSet<>(uuidToIdx.keySet());
+                for (final String uuid : removedUuids) {
+                    uuids.remove(uuid);
+                }
+                for (final Provider p : added) {
+                    Objects.requireNonNull(p, "null provider");
+                    if (!uuids.add(p.getUuid())) {
+                        throw new IllegalArgumentException(
+                                "Duplicate UUID: " + p.getUuid());
+                    }
+                }
+                if (uuids.size() > maxSize) {
+                    throw new IllegalStateException(
+                            "Too many instances. Max allowed: " + maxSize);
+                }
+            }
+            /* Nodes are created before anything is changed since it can
+             * fail (e.g. if shared counters have no free slots).
+             */
+            final Node[] addedNodes = new Node[added.length];
+            boolean success = false;
+            try {
+                for (int i = 0; i < added.length; ++i) {
+                    addedNodes[i] = newNode(added[i]);
+                }
+                success = true;
+            }
+            finally {
+                if (!success) {
+                    for (final Node node : addedNodes) {
+                        if (node != null) {
+                            freeSharedSlot(node);
+                        }
+                    }
+                }
+            }
+            for (final String uuid : removedUuids) {
+                if (uuidToIdx.containsKey(uuid)) {
+                    removeProvider(uuid);
+                }
+            }
+            for (final Node node : addedNodes) {
+                addNode(node);
+            }
+        }
+    }
+    
+    /**
+     * Removes the provider from this load balancer and stops its heartbeat
+     * checking. The provider is drained: it is not selected for new requests
+     * while requests which are already being processed by it are allowed
+     * to finish.
+     * 
+     * @param uuid the UUID of the provider to remove.
+     */
+    public void removeProvider(final String uuid)
+    {
+        synchronized (this) {
+            final Node node;
+            synchronized (activeNodeLock) {
+                final Integer nodeIdx = uuidToIdx.remove(uuid);
+                if (nodeIdx == null) {
+                    throw new IllegalStateException("Unknown UUID.");
+                }
+                node = instances[nodeIdx.intValue()];
+                final int[] activeIdxs = activeNodes;
+                if (contains(activeIdxs, nodeIdx.intValue())) {
+                    // --- happens-before w.r.t. volatile write to activeNodes ---
+                    activeNodes = remove(activeIdxs, nodeIdx.intValue());
+                }
+                /* The provider is not released from instances so that
+                 * requests that selected it before removal are served.
+                 */
+                freeSlots.add(nodeIdx);
+                events.publish(NodeEventType.REMOVED, uuid);
+            }
+            final Future<?> task = heartbeatTasks.remove(uuid);
+            if (task != null) {
+                task.cancel(false);
+            }
+            forgetHeartbeatState(node);
+            if (sharedCounters != null) {
+                node.removed = true;
+                // Otherwise it is freed when its last request is released.
+                if (node.load.get() == 0) {
+                    freeSharedSlot(node);
+                }
+            }
+        }
+    }
+    
+    private boolean isLive(final String uuid, final int nodeIdx)
+    {
+        final Integer uuidIdx = uuidToIdx.get(uuid);
+        return uuidIdx != null && uuidIdx.intValue() == nodeIdx;
+    }
+    
     private static boolean contains(final int[] values, final int val)
     {
         for (int v : values) {
@@ -317,7 +1701,30 @@ public class LoadBalancer implements AutoCloseable
         return false;
     }
     
-    private int getNodeIdx(final String uuid)
+    private static int[] append(final int[] values, final int val)
+    {
+        final int n = values.length;
+        final int[] result = Arrays.copyOf(values, n + 1);
+        result[n] = val;
+        return result;
+    }
+    
+    private static int[] remove(final int[] values, final int val)
+    {
+        final int[] result = new int[values.length - 1];
+        /* TODO it can be made more CPU-efficient by taking into
+         * account the position of val in values.
+         */
+        for (int i = 0, j = 0, n = values.length; i < n; ++i) {
+            final int v = values[i];
+            if (val != v) {
+                result[j++] = v;
+            }
+        }
+        return result;
+    }
+    
+    int getNodeIdx(final String uuid)
     {
         final Integer uuidIdx = uuidToIdx.get(uuid);
         if (uuidIdx == null) {
@@ -334,24 +1741,292 @@ public class LoadBalancer implements AutoCloseable
         if (heartbeatChecker != null) {
             synchronized (this) {
                 if (!heartbeatCheckStarted) {
-                    for (final Provider node : instances) {
-                        heartbeatChecker.registerChecker(
-                                () -> node.check(),
-                                result -> heartbeatHandler.handle(
-                                        result, this, node),
-                                heartbeatCheckRateMs, heartbeatCheckTimeoutMs);
+                    final Node[] nodes = instances;
+                    for (final Integer nodeIdx : uuidToIdx.values()) {
+                        final Node node = nodes[nodeIdx.intValue()];
+                        if (heartbeatHandler != null &&
+                                node.restoredChecks >= 0) {
+                            heartbeatHandler.setSuccessfulChecks(
+                                    this, node.provider, node.restoredChecks);
+                        }
+                        registerHeartbeatChecker(node);
                     }
                     heartbeatCheckStarted = true;
                 }
             }
         }
+        if (snapshot != null) {
+            // Health state is changed by heartbeat checks from now on.
+            snapshot.start(this::saveSnapshot);
+        }
+    }
+    
+    /**
+     * Saves the state of providers which are not removed to the snapshot.
+     */
+    private void saveSnapshot()
+    {
+        // Reading active nodes first so that all their indices are valid.
+        final int[] activeIdxs = activeNodes;
+        final Node[] nodes = instances;
+        final ArrayList<HealthSnapshot.Entry> entries = new ArrayList<>();
+        for (final Map.Entry<String, Integer> e : uuidToIdx.entrySet()) {
+            final int idx = e.getValue().intValue();
+            if (idx >= nodes.length) {
+                // Added after the instances are read.
+                continue;
+            }
+            final Provider provider = nodes[idx].provider;
+            if (!provider.getUuid().equals(e.getKey())) {
+                // The slot is reused after the instances are read.
+                continue;
+            }
+            entries.add(new HealthSnapshot.Entry(e.getKey(),
+                    contains(activeIdxs, idx),
+                    successfulChecks(nodes[idx]),
+                    nodes[idx].latencyNs));
+        }
+        snapshot.save(
+                entries.toArray(new HealthSnapshot.Entry[entries.size()]));
+    }
+    
+    /**
+     * @return the number of consecutive successful heartbeat checks of
+     *      the node to be saved to the snapshot.
+     */
+    private int successfulChecks(final Node node)
+    {
+        if (heartbeatHandler == null) {
+            return 0;
+        }
+        if (!heartbeatCheckStarted) {
+            // The handler is not given the restored count yet.
+            return Math.max(0, node.restoredChecks);
+        }
+        return heartbeatHandler.getSuccessfulChecks(this, node.provider);
+    }
+    
+    // Must be called under the lock on this.
+    private void registerHeartbeatChecker(final Node node)
+    {
+        if (heartbeatChecker == null) {
+            return;
+        }
+        final Provider provider = node.provider;
+        final Consumer<Boolean> resultHandler =
+                result -> handleHeartbeat(node, result);
+        final Future<?> task = trafficHealth ?
+                heartbeatChecker.registerChecker(heartbeatCheck(node),
+                        resultHandler, heartbeatCheckRateMs,
+                        heartbeatCheckTimeoutMs) :
+                heartbeatChecker.registerChecker(provider, resultHandler,
+                        heartbeatCheckRateMs, heartbeatCheckTimeoutMs);
+        heartbeatTasks.put(provider.getUuid(), task);
+    }
+    
+    private BooleanSupplier heartbeatCheck(final Node node)
+    {
+        return trafficHealth ? () -> probe(node) : () -> node.provider.check();
+    }
+    
+    private void handleHeartbeat(final Node node, final boolean result)
+    {
+        node.recordHeartbeat(result);
+        synchronized (node) {
+            /* A result which comes after the node is forgotten would
+             * make the handler keep its state again.
+             */
+            if (!node.heartbeatForgotten) {
+                heartbeatHandler.handle(result, this, node.provider);
+            }
+        }
+    }
+    
+    /**
+     * Makes the heartbeat handler forget the state it keeps for the node.
+     * Results of checks of the node which are still in flight are ignored.
+     */
+    private void forgetHeartbeatState(final Node node)
+    {
+        if (heartbeatHandler == null) {
+            return;
+        }
+        synchronized (node) {
+            node.heartbeatForgotten = true;
+            heartbeatHandler.remove(this, node.provider);
+        }
+    }
+    
+    /**
+     * Heartbeat check of a node in the traffic health mode.
+     * 
+     * @return {@code true} if the node is proven healthy by live requests
+     *      or its probe succeeds.
+     */
+    private boolean probe(final Node node)
+    {
+        if (isActive(node) && node.isHealthyByTraffic(
+                TimeUnit.MILLISECONDS.toNanos(heartbeatCheckRateMs))) {
+            node.probeSkipped = true;
+            return true;
+        }
+        final boolean result = node.provider.check();
+        if (result) {
+            /* Live requests which fail from now on make it suspect
+             * again. A probe which succeeds after its timeout clears it
+             * too but the node is excluded then and it is probed until
+             * it is included.
+             */
+            node.suspect = false;
+        }
+        return result;
+    }
+    
+    /**
+     * @return {@code true} if the node is not removed. Its slot is not
+     *      reused by another provider either.
+     */
+    private boolean isLive(final Node node)
+    {
+        final Integer nodeIdx = uuidToIdx.get(node.provider.getUuid());
+        // Instances are written before the index so they are read after.
+        final Node[] nodes = instances;
+        return nodeIdx != null && nodeIdx.intValue() < nodes.length &&
+                nodes[nodeIdx.intValue()] == node;
+    }
+    
+    /**
+     * @return {@code true} if the node is not removed and is selected
+     *      for requests.
+     */
+    private boolean isActive(final Node node)
+    {
+        // Reading active nodes first so that all their indices are valid.
+        final int[] activeIdxs = activeNodes;
+        final Node[] nodes = instances;
+        final Integer nodeIdx = uuidToIdx.get(node.provider.getUuid());
+        if (nodeIdx == null) {
+            return false;
+        }
+        final int idx = nodeIdx.intValue();
+        // The UUID can be reused by a provider added after the read.
+        return idx < nodes.length && nodes[idx] == node &&
+                contains(activeIdxs, idx);
+    }
+    
+    /**
+     * Takes statistics of providers which are not removed. No lock is
+     * taken so it does not interfere with requests and heartbeat handling.
+     * The result is not an atomic snapshot.
+     */
+    List<NodeStats> getNodeStats()
+    {
+        // Reading active nodes first so that all their indices are valid.
+        final int[] activeIdxs = activeNodes;
+        final Node[] nodes = instances;
+        final ArrayList<NodeStats> result = new ArrayList<>();
+        for (final Map.Entry<String, Integer> e : uuidToIdx.entrySet()) {
+            final int idx = e.getValue().intValue();
+            if (idx >= nodes.length ||
+                    !nodes[idx].provider.getUuid().equals(e.getKey())) {
+                // Added or reused after the instances are read.
+                continue;
+            }
+            result.add(new NodeStats(nodes[idx], contains(activeIdxs, idx)));
+        }
+        return result;
+    }
+    
+    /** @return requests rejected since the capacity is reached. */
+    long getRejectedOverCapacity()
+    {
+        return rejectedOverCapacity.sum();
+    }
+    
+    /** @return admitted requests rejected since no node could take them. */
+    long getRejectedNoNode()
+    {
+        return rejectedNoNode.sum();
+    }
+    
+    /** @return requests rejected since this load balancer is closed. */
+    long getRejectedClosed()
+    {
+        return rejectedClosed.sum();
+    }
+    
+    boolean isClosed()
+    {
+        return closed;
+    }
+    
+    
+    /**
+     * Gracefully shuts this load balancer down. New requests are rejected
+     * right away while requests which are already being processed are
+     * given a chance to finish within the given timeout. Heartbeat checking
+     * is stopped after that.
+     * 
+     * @param timeoutMs the maximum time in milliseconds to wait for
+     *      in-flight requests to finish. Zero means no waiting.
+     * @return the number of requests which were still in flight when
+     *      the timeout expired. Zero if all requests are drained.
+     * @throws InterruptedException if interrupted while waiting.
+     *      Heartbeat checking is stopped in this case as well.
+     */
+    public long shutdown(final long timeoutMs) throws InterruptedException
+    {
+        try {
+            synchronized (requestCounterLock) {
+                closed = true;
+                final long deadline = System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                long remainingNs = deadline - System.nanoTime();
+                while (getInFlight() > 0 && remainingNs > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(
+                            requestCounterLock, remainingNs);
+                    remainingNs = deadline - System.nanoTime();
+                }
+                return getInFlight();
+            }
+        }
+        finally {
+            close();
+        }
     }
     
+    /**
+     * Stops admission of new requests and heartbeat checking. Requests
+     * which are already being processed are not waited for. Use
+     * {@link #shutdown(long)} to drain them.
+     */
     @Override
     public void close()
     {
+        synchronized (requestCounterLock) {
+            closed = true;
+        }
         if (heartbeatChecker != null) {
             heartbeatChecker.close();
         }
+        try {
+            if (snapshot != null) {
+                try {
+                    saveSnapshot();
+                }
+                finally {
+                    snapshot.close();
+                }
+            }
+        }
+        finally {
+            // The heartbeat state is saved by now.
+            synchronized (this) {
+                final Node[] nodes = instances;
+                for (final Integer nodeIdx : uuidToIdx.values()) {
+                    forgetHeartbeatState(nodes[nodeIdx.intValue()]);
+                }
+            }
+        }
     }
 }
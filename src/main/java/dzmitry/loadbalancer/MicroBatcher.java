@@ -0,0 +1,153 @@
+package dzmitry.loadbalancer;
+
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Gathers concurrent single requests into batches which are processed
+ * with one call, e.g. {@code new MicroBatcher(balancer::getBatch, 16, 2)}.
+ * 
+ * A batch is sent when it reaches the maximum size or when the maximum
+ * delay since its first request expires, whichever comes first. No
+ * dedicated thread is used: the first request of a batch waits for the
+ * batch window and the request that fills the batch or the first one
+ * sends the batch in its own thread. Responses are split back to
+ * the callers by their position in the batch.
+ */
+public class MicroBatcher
+{
+    /* Batch state is guarded by MicroBatcher.lock while it is open.
+     * Responses are published via the done latch.
+     */
+    private static class Batch
+    {
+        private int size;
+        /** Released when the batch is full and is being sent. */
+        private final CountDownLatch full = new CountDownLatch(1);
+        /** Released when responses or failure are available. */
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String[] responses;
+        /** Either a RuntimeException or an Error. */
+        private Throwable failure;
+    }
+    
+    private final IntFunction<String[]> batchLoader;
+    private final int maxBatchSize;
+    private final long maxDelayNs;
+    
+    /** The batch new requests join. Guarded by {@code lock}. */
+    private Batch current;
+    private final Object lock;
+    
+    /**
+     * @param batchLoader the function which processes a batch of the given
+     *      size. Normally it is {@link LoadBalancer#getBatch(int)}.
+     * @param maxBatchSize the maximum number of requests in a batch.
+     * @param maxDelayMs the maximum time in milliseconds the first request
+     *      of a batch waits for other requests to join.
+     */
+    public MicroBatcher(final IntFunction<String[]> batchLoader,
+            final int maxBatchSize, final long maxDelayMs)
+    {
+        Objects.requireNonNull(batchLoader);
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Non-positive max batch size.");
+        }
+        if (maxDelayMs < 0) {
+            throw new IllegalArgumentException("Negative max delay.");
+        }
+        this.batchLoader = batchLoader;
+        this.maxBatchSize = maxBatchSize;
+        maxDelayNs = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        lock = new Object();
+    }
+    
+    public String get()
+    {
+        final Batch batch;
+        final int pos;
+        final boolean first;
+        final boolean filled;
+        synchronized (lock) {
+            Batch b = current;
+            first = b == null;
+            if (first) {
+                b = new Batch();
+                current = b;
+            }
+            pos = b.size++;
+            filled = b.size == maxBatchSize;
+            if (filled) {
+                // No more requests can join this batch.
+                current = null;
+            }
+            batch = b;
+        }
+        
+        if (filled) {
+            batch.full.countDown();
+            send(batch);
+        } else if (first) {
+            boolean interrupted = false;
+            try {
+                batch.full.await(maxDelayNs, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException ex) {
+                /* Other requests of the batch rely on this one to send it.
+                 * The batch is sent before reporting interruption.
+                 */
+                interrupted = true;
+            }
+            boolean expired = false;
+            synchronized (lock) {
+                if (current == batch) {
+                    current = null;
+                    expired = true;
+                }
+            }
+            if (expired) {
+                // The batch window is over before the batch is full.
+                send(batch);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            batch.done.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        
+        final Throwable failure = batch.failure;
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+        return batch.responses[pos];
+    }
+    
+    private void send(final Batch batch)
+    {
+        try {
+            batch.responses = batchLoader.apply(batch.size);
+        }
+        catch (RuntimeException | Error ex) {
+            /* All requests of the batch fail the same way. Otherwise
+             * the other requests would find neither responses nor
+             * failure.
+             */
+            batch.failure = ex;
+        }
+        finally {
+            // --- happens-before w.r.t. waiting for the done latch ---
+            batch.done.countDown();
+        }
+    }
+}
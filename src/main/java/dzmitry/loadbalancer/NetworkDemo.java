@@ -0,0 +1,70 @@
+package dzmitry.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NetworkDemo
+{
+    public static void main(String[] args) throws Exception
+    {
+        final SelectorType selector = SelectorType.ROUND_ROBIN;
+        final int nodeCount = 4; // number of local stand-in backends.
+        final int connectionCount = 2; // pipelined connections per backend.
+        final int maxLoadPerNode = 64; // max number of simultaneous requests per node.
+        final long timeoutMs = 1000; // response timeout.
+        final int threadCount = 32; // number of clients.
+        final int clientCallCount = 20_000; // number of calls per client during demo.
+        
+        final StandInServer[] servers = new StandInServer[nodeCount];
+        final SocketProvider[] providers = new SocketProvider[nodeCount];
+        try {
+            for (int i = 0; i < nodeCount; ++i) {
+                final String val = "node" + i;
+                servers[i] = new StandInServer(key -> val);
+                providers[i] = new SocketProvider(
+                        servers[i].getAddress(), connectionCount, timeoutMs);
+            }
+            
+            final AtomicLong failures = new AtomicLong();
+            try (final LoadBalancer balancer = new LoadBalancer(
+                    providers, selector, maxLoadPerNode)) {
+                final long start = System.nanoTime();
+                final Thread[] threads = new Thread[threadCount];
+                for (int i = 0; i < threads.length; ++i) {
+                    threads[i] = new Thread(() -> {
+                        for (int j = 0; j < clientCallCount; ++j) {
+                            try {
+                                balancer.get();
+                            }
+                            catch (RuntimeException ex) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    });
+                    threads[i].start();
+                }
+                for (int i = 0; i < threads.length; ++i) {
+                    threads[i].join();
+                }
+                final long elapsedNs = System.nanoTime() - start;
+                
+                final long total = (long) threadCount * clientCallCount;
+                System.out.println("Requests: " + total +
+                        ", failures: " + failures.get());
+                System.out.println("Throughput: " +
+                        total * 1_000_000_000L / elapsedNs + " requests/s");
+                System.out.println("Mean latency: " +
+                        elapsedNs * threadCount / total / 1000 + " us");
+            }
+        }
+        finally {
+            for (int i = 0; i < nodeCount; ++i) {
+                if (providers[i] != null) {
+                    providers[i].close();
+                }
+                if (servers[i] != null) {
+                    servers[i].close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package dzmitry.loadbalancer;
+
+/**
+ * Receives node events drained from a {@link NodeEventStream.Subscription}.
+ */
+public interface NodeEventListener
+{
+    void onEvent(NodeEventType type, String uuid);
+    
+    /**
+     * Called when the subscription lags behind the stream and the given
+     * number of events is overwritten before they are delivered.
+     */
+    default void onMissed(final long count)
+    {
+    }
+}
@@ -0,0 +1,151 @@
+package dzmitry.loadbalancer;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream of node events backed by a preallocated ring buffer.
+ * 
+ * Publishing is lock-free and never waits for subscribers: an event gets
+ * a sequence number and is written into its slot overwriting the event
+ * which is one buffer length older. Each subscription has its own cursor
+ * and drains events in its own thread. A subscription which lags behind
+ * by more than the buffer length is told how many events it missed and
+ * continues from the oldest event which is still available.
+ * 
+ * Each slot is a sequence lock: its sequence number is {@code WRITING}
+ * while the event is being written so a reader never sees a partially
+ * written event.
+ */
+public class NodeEventStream
+{
+    private static final long WRITING = -1;
+    
+    private static class Slot
+    {
+        /** The sequence number of the event in this slot or WRITING. */
+        private final AtomicLong seq;
+        private volatile NodeEventType type;
+        private volatile String uuid;
+        
+        public Slot()
+        {
+            // No event is published to this slot yet.
+            seq = new AtomicLong(Long.MIN_VALUE);
+        }
+    }
+    
+    /**
+     * Consumer side of the stream. A subscription must be polled by one
+     * thread at a time.
+     */
+    public class Subscription
+    {
+        /** The sequence number of the next event to deliver. */
+        private long cursor;
+        
+        private Subscription(final long cursor)
+        {
+            this.cursor = cursor;
+        }
+        
+        /**
+         * Delivers available events to the listener in the order they were
+         * published. Does not wait for new events.
+         * 
+         * @param maxEvents the maximum number of events to deliver.
+         * @return the number of delivered events.
+         */
+        public int poll(final NodeEventListener listener, final int maxEvents)
+        {
+            Objects.requireNonNull(listener);
+            int delivered = 0;
+            while (delivered < maxEvents) {
+                final Slot slot = slots[(int) cursor & mask];
+                final long seq = slot.seq.get();
+                if (seq == cursor) {
+                    final NodeEventType type = slot.type;
+                    final String uuid = slot.uuid;
+                    if (slot.seq.get() == cursor) {
+                        listener.onEvent(type, uuid);
+                        ++cursor;
+                        ++delivered;
+                        continue;
+                    }
+                } else if (seq < cursor &&
+                        next.get() - cursor <= slots.length) {
+                    // The next event is not published yet.
+                    return delivered;
+                }
+                /* The event is overwritten. Skipping to the oldest event
+                 * which can still be in the buffer.
+                 */
+                final long oldest = Math.max(cursor + 1,
+                        next.get() - slots.length);
+                listener.onMissed(oldest - cursor);
+                cursor = oldest;
+            }
+            return delivered;
+        }
+    }
+    
+    private final Slot[] slots;
+    private final int mask;
+    /** The sequence number of the next event to publish. */
+    private final AtomicLong next;
+    
+    /**
+     * @param capacity the number of events kept for lagging subscribers.
+     *      It is rounded up to a power of two.
+     */
+    public NodeEventStream(final int capacity)
+    {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "Capacity must be within [1, 2^30].");
+        }
+        final int n = capacity == 1 ? 1 :
+                Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Slot[n];
+        for (int i = 0; i < n; ++i) {
+            slots[i] = new Slot();
+        }
+        mask = n - 1;
+        next = new AtomicLong();
+    }
+    
+    /**
+     * @return a subscription which receives events published from now on.
+     */
+    public Subscription subscribe()
+    {
+        return new Subscription(next.get());
+    }
+    
+    void publish(final NodeEventType type, final String uuid)
+    {
+        final long seq = next.getAndIncrement();
+        final Slot slot = slots[(int) seq & mask];
+        while (true) {
+            final long cur = slot.seq.get();
+            if (cur == WRITING) {
+                /* Another publisher which is a buffer length behind is
+                 * writing into this slot. It is about to finish.
+                 */
+                Thread.onSpinWait();
+                continue;
+            }
+            if (cur > seq) {
+                // Overwritten by a newer event already. Subscribers skip it.
+                return;
+            }
+            if (slot.seq.compareAndSet(cur, WRITING)) {
+                break;
+            }
+        }
+        slot.type = type;
+        slot.uuid = uuid;
+        // --- happens-before w.r.t. reading the sequence by subscribers ---
+        slot.seq.set(seq);
+    }
+}
@@ -0,0 +1,16 @@
+package dzmitry.loadbalancer;
+
+/**
+ * Membership and health transitions of nodes of a {@link LoadBalancer}.
+ */
+public enum NodeEventType
+{
+    /** The provider is added to the load balancer. */
+    ADDED,
+    /** The provider is removed from the load balancer. */
+    REMOVED,
+    /** The node becomes active (e.g. it passes heartbeat checks again). */
+    INCLUDED,
+    /** The node becomes inactive (e.g. it fails a heartbeat check). */
+    EXCLUDED
+}
@@ -0,0 +1,85 @@
+package dzmitry.loadbalancer;
+
+import java.util.Objects;
+
+/**
+ * Behaviour of a simulated provider for {@link Simulator}.
+ */
+public class NodeModel
+{
+    /** Locality of the node. Can be null. */
+    private final String zone;
+    private final LatencyDistribution latency;
+    /**
+     * The number of requests the node processes in parallel. Other
+     * requests wait in its queue.
+     */
+    private final int concurrency;
+    /** Probability for a request or a heartbeat check to fail. */
+    private final double failureRate;
+    /**
+     * The node flaps: it is up for {@code upMs} and then down (all
+     * requests and checks fail) for {@code downMs}. Zero {@code downMs}
+     * means the node never goes down.
+     */
+    private final long upMs;
+    private final long downMs;
+    
+    public NodeModel(final LatencyDistribution latency, final int concurrency)
+    {
+        this(null, latency, concurrency, 0, 0, 0);
+    }
+    
+    public NodeModel(final String zone, final LatencyDistribution latency,
+            final int concurrency, final double failureRate,
+            final long upMs, final long downMs)
+    {
+        Objects.requireNonNull(latency);
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Non-positive concurrency.");
+        }
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException(
+                    "Failure rate must be within [0, 1].");
+        }
+        if (upMs < 0 || downMs < 0 || (downMs > 0 && upMs == 0)) {
+            throw new IllegalArgumentException("Invalid flapping periods.");
+        }
+        this.zone = zone;
+        this.latency = latency;
+        this.concurrency = concurrency;
+        this.failureRate = failureRate;
+        this.upMs = upMs;
+        this.downMs = downMs;
+    }
+    
+    public String getZone()
+    {
+        return zone;
+    }
+    
+    public LatencyDistribution getLatency()
+    {
+        return latency;
+    }
+    
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+    
+    public double getFailureRate()
+    {
+        return failureRate;
+    }
+    
+    public long getUpMs()
+    {
+        return upMs;
+    }
+    
+    public long getDownMs()
+    {
+        return downMs;
+    }
+}
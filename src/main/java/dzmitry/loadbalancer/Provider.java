@@ -1,14 +1,51 @@
 package dzmitry.loadbalancer;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 import java.util.UUID;
 
 public class Provider
 {
     private final String uuid;
+    /** Locality of the provider (e.g. availability zone). Can be null. */
+    private final String zone;
+    /**
+     * The maximum number of requests per second the provider accepts.
+     * Zero means no limit.
+     */
+    private final int maxRequestsPerSecond;
     
     public Provider()
     {
-        uuid = UUID.randomUUID().toString();
+        this(null);
+    }
+    
+    public Provider(final String zone)
+    {
+        this(zone, 0);
+    }
+    
+    public Provider(final String zone, final int maxRequestsPerSecond)
+    {
+        this(UUID.randomUUID().toString(), zone, maxRequestsPerSecond);
+    }
+    
+    /**
+     * @param uuid the identifier of the provider. A stable identifier (e.g.
+     *      the address of the backend) lets state saved by a load balancer
+     *      be matched after a restart.
+     */
+    public Provider(final String uuid, final String zone,
+            final int maxRequestsPerSecond)
+    {
+        Objects.requireNonNull(uuid);
+        if (maxRequestsPerSecond < 0) {
+            throw new IllegalArgumentException("Negative rate limit.");
+        }
+        this.uuid = uuid;
+        this.zone = zone;
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
     }
     
     public String getUuid()
@@ -16,11 +53,73 @@ public class Provider
         return uuid;
     }
     
+    public String getZone()
+    {
+        return zone;
+    }
+    
+    public int getMaxRequestsPerSecond()
+    {
+        return maxRequestsPerSecond;
+    }
+    
     public String get()
     {
         return uuid;
     }
     
+    /**
+     * Returns the response to the request identified by the given key.
+     * By default the key is ignored and {@link #get()} is used.
+     */
+    public String get(final String key)
+    {
+        return get();
+    }
+    
+    /**
+     * Writes the response into the given buffer starting at its position
+     * which is advanced past the response. The buffer is supplied by the
+     * caller (it can be pooled or direct) so that providers which override
+     * this method can serve requests without allocating anything. By default
+     * the result of {@link #get()} is encoded in UTF-8 which allocates.
+     * 
+     * @param dst the buffer to write the response into.
+     * @return the number of written bytes.
+     * @throws java.nio.BufferOverflowException if the response does not fit
+     *      into the remaining space of the buffer.
+     */
+    public int get(final ByteBuffer dst)
+    {
+        final byte[] bytes = get().getBytes(StandardCharsets.UTF_8);
+        dst.put(bytes);
+        return bytes.length;
+    }
+    
+    /**
+     * Returns responses to {@code n} requests at once. By default
+     * {@link #get()} is called {@code n} times. Providers which are
+     * cheaper per item when asked for many results should override it.
+     */
+    public String[] getBatch(final int n)
+    {
+        final String[] result = new String[n];
+        for (int i = 0; i < n; ++i) {
+            result[i] = get();
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the number of requests the provider can accept right now.
+     * Load balancers avoid selecting providers which have no spare
+     * capacity. By default the capacity is not limited.
+     */
+    public long getAvailableCapacity()
+    {
+        return Long.MAX_VALUE;
+    }
+    
     public boolean check()
     {
         return true;
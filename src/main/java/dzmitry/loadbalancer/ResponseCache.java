@@ -0,0 +1,228 @@
+package dzmitry.loadbalancer;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of responses with time-to-live. It is put in front of
+ * a load balancer, e.g. {@code new ResponseCache(balancer::get, 1024, 500)}.
+ * 
+ * Entries are evicted with the CLOCK (second chance) policy. Cache hits
+ * are lock-free: they only set the reference bit of the entry. Concurrent
+ * misses of the same key share a single call to the loader (single-flight)
+ * so that a burst of identical requests results in one upstream request.
+ */
+public class ResponseCache
+{
+    private static class Entry
+    {
+        private final String key;
+        private final String value;
+        private final long expiresAtNs;
+        /** CLOCK reference bit. It is set on each cache hit. */
+        private volatile boolean referenced;
+        /**
+         * Set when the entry is removed from the cache but its slot
+         * is not reused yet. Guarded by {@code clockLock}.
+         */
+        private boolean removed;
+        
+        public Entry(final String key, final String value,
+                final long expiresAtNs)
+        {
+            this.key = key;
+            this.value = value;
+            this.expiresAtNs = expiresAtNs;
+        }
+    }
+    
+    private final Function<String, String> loader;
+    private final long ttlNs;
+    /** Source of time in nanoseconds. */
+    private final LongSupplier clock;
+    
+    private final ConcurrentHashMap<String, Entry> entries;
+    /** Loads which are in progress (by key). */
+    private final ConcurrentHashMap<String, CompletableFuture<String>> loads;
+    
+    /** Slots of the CLOCK. Guarded by {@code clockLock}. */
+    private final Entry[] ring;
+    /** The current position of the CLOCK hand. */
+    private int hand;
+    private final Object clockLock;
+    
+    /**
+     * @param loader the function which loads the response for the key
+     *      in case of a cache miss. Normally it is {@link LoadBalancer#get(String)}.
+     * @param maxSize the maximum number of cached responses.
+     * @param ttlMs time in milliseconds a response is valid after it is loaded.
+     */
+    public ResponseCache(final Function<String, String> loader,
+            final int maxSize, final long ttlMs)
+    {
+        this(loader, maxSize, ttlMs, System::nanoTime);
+    }
+    
+    ResponseCache(final Function<String, String> loader,
+            final int maxSize, final long ttlMs, final LongSupplier clock)
+    {
+        Objects.requireNonNull(loader);
+        Objects.requireNonNull(clock);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Non-positive max size.");
+        }
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("Non-positive TTL.");
+        }
+        this.loader = loader;
+        ttlNs = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.clock = clock;
+        entries = new ConcurrentHashMap<>();
+        loads = new ConcurrentHashMap<>();
+        ring = new Entry[maxSize];
+        hand = 0;
+        clockLock = new Object();
+    }
+    
+    public String get(final String key)
+    {
+        Objects.requireNonNull(key);
+        final Entry cached = lookup(key);
+        if (cached != null) {
+            return cached.value;
+        }
+        
+        final CompletableFuture<String> load = new CompletableFuture<>();
+        final CompletableFuture<String> existingLoad =
+                loads.putIfAbsent(key, load);
+        if (existingLoad != null) {
+            // Another thread is already loading this key. Sharing its result.
+            return await(existingLoad);
+        }
+        try {
+            /* The previous load could finish between the cache miss
+             * and registering this load.
+             */
+            final Entry e = lookup(key);
+            final String value;
+            if (e != null) {
+                value = e.value;
+            } else {
+                value = loader.apply(key);
+                put(key, value);
+            }
+            load.complete(value);
+            return value;
+        }
+        catch (RuntimeException | Error ex) {
+            // Failures are shared with waiters but not cached.
+            load.completeExceptionally(ex);
+            throw ex;
+        }
+        finally {
+            loads.remove(key, load);
+        }
+    }
+    
+    public void invalidate(final String key)
+    {
+        synchronized (clockLock) {
+            final Entry e = entries.remove(key);
+            if (e != null) {
+                e.removed = true;
+            }
+        }
+    }
+    
+    /**
+     * @return the number of cached responses including expired ones
+     *      which are not evicted yet.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    private Entry lookup(final String key)
+    {
+        final Entry e = entries.get(key);
+        if (e == null || clock.getAsLong() - e.expiresAtNs >= 0) {
+            return null;
+        }
+        if (!e.referenced) {
+            // Issuing write only when data is really changed.
+            e.referenced = true;
+        }
+        return e;
+    }
+    
+    private void put(final String key, final String value)
+    {
+        final Entry e = new Entry(key, value, clock.getAsLong() + ttlNs);
+        synchronized (clockLock) {
+            final Entry old = entries.put(key, e);
+            if (old != null) {
+                // An expired entry is replaced. Its slot can be reused.
+                old.removed = true;
+            }
+            ring[evict()] = e;
+        }
+    }
+    
+    /**
+     * Moves the CLOCK hand to the first slot which is free or holds an
+     * entry that is removed, expired or not referenced since the last pass
+     * of the hand. The entry in this slot is evicted.
+     * 
+     * Must be called under {@code clockLock}.
+     * 
+     * @return the index of the slot to be reused.
+     */
+    private int evict()
+    {
+        final long now = clock.getAsLong();
+        final int n = ring.length;
+        while (true) {
+            final int idx = hand;
+            hand = idx + 1 == n ? 0 : idx + 1;
+            final Entry e = ring[idx];
+            if (e == null || e.removed) {
+                return idx;
+            }
+            if (e.referenced && now - e.expiresAtNs < 0) {
+                // Giving the entry the second chance.
+                e.referenced = false;
+                continue;
+            }
+            entries.remove(e.key, e);
+            e.removed = true;
+            return idx;
+        }
+    }
+    
+    private static String await(final CompletableFuture<String> load)
+    {
+        try {
+            return load.get();
+        }
+        catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+}
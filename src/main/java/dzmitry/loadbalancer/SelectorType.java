@@ -2,5 +2,14 @@ package dzmitry.loadbalancer;
 
 public enum SelectorType {
     RANDOM,
-    ROUND_ROBIN
+    ROUND_ROBIN,
+    /** Prefers providers from the local zone. */
+    ZONE_AWARE,
+    /**
+     * Round-robin with selector and admission state partitioned per
+     * stripe of threads (one stripe per CPU) to scale with cores.
+     * The total number of requests in flight is still limited exactly.
+     * The distribution is even within the number of stripes.
+     */
+    SHARDED_ROUND_ROBIN
 }
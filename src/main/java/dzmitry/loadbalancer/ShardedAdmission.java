@@ -0,0 +1,88 @@
+package dzmitry.loadbalancer;
+
+/**
+ * Counts requests in flight with a striped counter instead of a single
+ * shared one. The capacity is split evenly between stripes and each
+ * thread admits requests into the budget of its own stripe. When it is
+ * exhausted the budgets of other stripes are used, so a request is
+ * rejected only when all stripes are full.
+ * 
+ * Requests are released from the stripe of the releasing thread which
+ * can differ from the stripe they were admitted to. If it does not hold
+ * enough requests then the rest is released from other stripes. Stripes
+ * are only decremented while they are positive so the counter of a
+ * stripe is never negative and never above its budget. So the total
+ * number of requests in flight never exceeds the capacity (unless the
+ * capacity is reduced while requests are in flight, which is the same
+ * for non-sharded admission).
+ * A batch of requests must fit into the budget of a single stripe.
+ */
+class ShardedAdmission
+{
+    private final StripedCounter counter;
+    private final int stripes;
+    
+    public ShardedAdmission(final int stripes)
+    {
+        counter = new StripedCounter(stripes);
+        this.stripes = stripes;
+    }
+    
+    /**
+     * @param n the number of requests to admit.
+     * @param capacity the current maximum number of requests in flight.
+     * @return {@code true} if the requests are admitted.
+     */
+    public boolean tryAcquire(final int n, final long capacity)
+    {
+        final long base = capacity / stripes;
+        final long extra = capacity % stripes;
+        final int home = counter.currentStripe();
+        for (int i = 0; i < stripes; ++i) {
+            final int stripe = (home + i) & (stripes - 1);
+            final long budget = stripe < extra ? base + 1 : base;
+            while (true) {
+                final long val = counter.get(stripe);
+                if (val + n > budget) {
+                    break;
+                }
+                if (counter.compareAndSet(stripe, val, val + n)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    public void release(final int n)
+    {
+        final int home = counter.currentStripe();
+        long left = n;
+        /* The sum of stripes is the number of requests in flight which
+         * includes the released ones, so the loop finds them even if
+         * other threads release concurrently.
+         */
+        for (int i = 0; left > 0; ++i) {
+            final int stripe = (home + i) & (stripes - 1);
+            while (left > 0) {
+                final long val = counter.get(stripe);
+                if (val <= 0) {
+                    break;
+                }
+                final long taken = Math.min(val, left);
+                if (counter.compareAndSet(stripe, val, val - taken)) {
+                    left -= taken;
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the number of requests in flight. It is not an atomic
+     *      snapshot if requests are admitted or released concurrently.
+     */
+    public long getInFlight()
+    {
+        return counter.sum();
+    }
+}
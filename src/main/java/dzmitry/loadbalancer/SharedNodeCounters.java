@@ -0,0 +1,449 @@
+package dzmitry.loadbalancer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-node counters of requests in flight which are shared by all
+ * processes on the host through a memory-mapped file. Load balancers
+ * which use the same file (see {@link LoadBalancer}) respect a single
+ * host-wide {@code maxLoadPerNode} without any network coordination.
+ * 
+ * Counters are updated with atomic operations directly on the mapped
+ * memory. Nodes are matched by provider UUID so processes must use stable
+ * UUIDs (see {@link Provider#Provider(String, String, int)}). Each UUID
+ * claims a slot of an open-addressing table on first use. Each instance
+ * of this class which uses the slot is its holder and counts its own
+ * requests in flight there too.
+ * 
+ * A slot is freed when the provider is removed from load balancers of all
+ * processes and drained (see {@link #free(int)}). It keeps its UUID so that
+ * probing for other UUIDs is not broken. Freed slots are reused for new
+ * UUIDs when the table has no empty slots.
+ * 
+ * If a process crashes then its holders are reclaimed when another process
+ * uses the slot (e.g. the process is restarted): their requests in flight
+ * are not counted any more. Processes are identified by PID so a reused
+ * PID of a crashed process keeps its holders until it exits too.
+ */
+public class SharedNodeCounters implements AutoCloseable
+{
+    static final int MAX_UUID_BYTES = 100;
+    
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(
+                    long[].class, ByteOrder.nativeOrder());
+    
+    private static final long MAGIC = 0x4c42534e4332L;
+    
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int HEADER_SIZE = 64;
+    
+    /* Slots are multiple cache lines so that counters of different nodes
+     * do not share a cache line.
+     */
+    private static final int STATE_OFFSET = 0;
+    private static final int COUNT_OFFSET = 8;
+    private static final int UUID_LENGTH_OFFSET = 16;
+    private static final int UUID_OFFSET = 20;
+    private static final int HOLDERS_OFFSET = 128;
+    private static final int SLOT_SIZE = 384;
+    
+    /* Holders are {owner, count} pairs. The owner is 0 for an unused
+     * holder.
+     */
+    private static final int OWNER_OFFSET = 0;
+    private static final int HOLDER_COUNT_OFFSET = 8;
+    private static final int HOLDER_SIZE = 16;
+    static final int MAX_HOLDERS =
+            (SLOT_SIZE - HOLDERS_OFFSET) / HOLDER_SIZE;
+    
+    private static final long FREE = 0;
+    private static final long CLAIMING = 1;
+    private static final long READY = 2;
+    
+    /** The owner of a holder which is being reclaimed. */
+    private static final long RECLAIMING = -1;
+    /** Owners keep the PID in high bits. */
+    private static final int PID_SHIFT = 20;
+    
+    /** Distinguishes instances of this class within the process. */
+    private static final AtomicInteger instanceCounter = new AtomicInteger();
+    
+    /** How long to wait for another process to finish claiming a slot. */
+    private static final long CLAIM_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(1);
+    
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final int slotCount;
+    /** The owner of holders of this instance. */
+    private final long owner;
+    /**
+     * The number of nodes of this instance which use each holder (by its
+     * offset). Guarded by {@code this}.
+     */
+    private final HashMap<Integer, Integer> holders;
+    
+    /**
+     * Opens the file or creates it if it does not exist. All processes
+     * must use the same {@code maxNodes} for the same file.
+     * 
+     * @param file the file shared by processes.
+     * @param maxNodes the maximum number of distinct providers.
+     */
+    public SharedNodeCounters(final Path file, final int maxNodes)
+            throws IOException
+    {
+        this(file, maxNodes, ProcessHandle.current().pid());
+    }
+    
+    /**
+     * @param pid the PID of the process this instance stands for.
+     */
+    SharedNodeCounters(final Path file, final int maxNodes, final long pid)
+            throws IOException
+    {
+        if (maxNodes <= 0 || maxNodes > 1 << 16) {
+            throw new IllegalArgumentException(
+                    "Max nodes must be within [1, 2^16].");
+        }
+        // The table is kept at most half full to keep probing short.
+        slotCount = Integer.highestOneBit(maxNodes) << 2;
+        owner = pid << PID_SHIFT | (instanceCounter.getAndIncrement() &
+                ((1 << PID_SHIFT) - 1));
+        holders = new HashMap<>();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean success = false;
+        try {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+            if ((long) LONGS.getVolatile(buf, MAGIC_OFFSET) != MAGIC) {
+                // Either a new file or another process is initialising it.
+                LONGS.compareAndSet(buf, SLOT_COUNT_OFFSET, 0L,
+                        (long) slotCount);
+                LONGS.compareAndSet(buf, MAGIC_OFFSET, 0L, MAGIC);
+            }
+            if ((long) LONGS.getVolatile(buf, MAGIC_OFFSET) != MAGIC ||
+                    (long) LONGS.getVolatile(buf, SLOT_COUNT_OFFSET) !=
+                            slotCount) {
+                throw new IllegalArgumentException(
+                        "The file is not compatible: " + file);
+            }
+            success = true;
+        }
+        finally {
+            // Gracefully tearing down in case of exceptions during init.
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+    
+    /**
+     * Finds the slot of the provider or claims a new one and becomes
+     * its holder. Each call must be followed by {@link #free(int)} when
+     * the provider is removed.
+     * 
+     * @return the offset of the holder of the slot to be passed to other
+     *      methods.
+     */
+    synchronized int slot(final String uuid)
+    {
+        final byte[] uuidBytes = uuid.getBytes(StandardCharsets.UTF_8);
+        if (uuidBytes.length > MAX_UUID_BYTES) {
+            throw new IllegalArgumentException("UUID is too long.");
+        }
+        final int mask = slotCount - 1;
+        // The string hash is stable across processes.
+        final int hash = uuid.hashCode();
+        for (int i = 0; i < slotCount; ++i) {
+            final int offset = HEADER_SIZE + ((hash + i) & mask) * SLOT_SIZE;
+            final long state = (long) LONGS.getAcquire(
+                    buf, offset + STATE_OFFSET);
+            if (state == FREE && LONGS.compareAndSet(
+                    buf, offset + STATE_OFFSET, FREE, CLAIMING)) {
+                return claim(offset, uuidBytes);
+            }
+            awaitReady(offset);
+            if (matches(offset, uuidBytes)) {
+                final int holder = attach(offset, uuidBytes);
+                if (holder >= 0) {
+                    return holder;
+                }
+                // The slot is reused for another provider concurrently.
+            }
+        }
+        /* No empty slots. Reusing a freed one. Its UUID is replaced so
+         * probing for other UUIDs still goes past it.
+         */
+        for (int i = 0; i < slotCount; ++i) {
+            final int offset = HEADER_SIZE + ((hash + i) & mask) * SLOT_SIZE;
+            reclaimHolders(offset);
+            if (isUnused(offset) && LONGS.compareAndSet(
+                    buf, offset + STATE_OFFSET, READY, CLAIMING)) {
+                // Checking again since a holder can attach meanwhile.
+                if (isUnused(offset)) {
+                    return claim(offset, uuidBytes);
+                }
+                LONGS.setRelease(buf, offset + STATE_OFFSET, READY);
+            }
+        }
+        throw new IllegalStateException("No free slots in shared counters.");
+    }
+    
+    /**
+     * Stops holding the slot. If the requests of this instance in flight
+     * are not released yet then the slot is held until this is closed.
+     * 
+     * @param holder the offset of the holder returned by
+     *      {@link #slot(String)}.
+     */
+    synchronized void free(final int holder)
+    {
+        final Integer refs = holders.get(holder);
+        if (refs == null) {
+            throw new IllegalStateException("Unknown slot.");
+        }
+        if (refs.intValue() > 1) {
+            // Another node of this instance still uses the slot.
+            holders.put(holder, refs.intValue() - 1);
+            return;
+        }
+        holders.remove(holder);
+        releaseHolder(holder);
+    }
+    
+    /**
+     * Adds {@code n} to the counter if it stays within the limit.
+     * 
+     * @return {@code true} if the counter is increased.
+     */
+    boolean tryAcquire(final int holder, final int n, final int limit)
+    {
+        final int offset = slotOf(holder) + COUNT_OFFSET;
+        while (true) {
+            final long val = (long) LONGS.getVolatile(buf, offset);
+            if (val + n > limit) {
+                return false;
+            }
+            if (LONGS.compareAndSet(buf, offset, val, val + n)) {
+                LONGS.getAndAdd(buf, holder + HOLDER_COUNT_OFFSET, (long) n);
+                return true;
+            }
+        }
+    }
+    
+    void release(final int holder, final int n)
+    {
+        LONGS.getAndAdd(buf, holder + HOLDER_COUNT_OFFSET, (long) -n);
+        LONGS.getAndAdd(buf, slotOf(holder) + COUNT_OFFSET, (long) -n);
+    }
+    
+    /** @return requests in flight to the node from all processes. */
+    long get(final int holder)
+    {
+        return (long) LONGS.getVolatile(buf, slotOf(holder) + COUNT_OFFSET);
+    }
+    
+    /**
+     * Stops holding all slots and closes the file. The counters must not
+     * be used after that. Slots with requests of this instance in flight
+     * are held until the process exits.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            for (final Integer holder : holders.keySet()) {
+                releaseHolder(holder.intValue());
+            }
+            holders.clear();
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            // Nothing to do. The mapping stays valid anyway.
+        }
+    }
+    
+    /**
+     * Writes the UUID to the slot which is being claimed by this instance
+     * and becomes its holder.
+     */
+    // Must be called under lock.
+    private int claim(final int offset, final byte[] uuidBytes)
+    {
+        buf.putInt(offset + UUID_LENGTH_OFFSET, uuidBytes.length);
+        for (int j = 0; j < uuidBytes.length; ++j) {
+            buf.put(offset + UUID_OFFSET + j, uuidBytes[j]);
+        }
+        /* Holding the slot before it is ready so that it is not seen
+         * as freed by other processes.
+         */
+        final int holder = takeHolder(offset);
+        // --- publishes the UUID to other processes ---
+        LONGS.setRelease(buf, offset + STATE_OFFSET, READY);
+        holders.put(holder, 1);
+        return holder;
+    }
+    
+    /**
+     * Makes this instance a holder of the slot.
+     * 
+     * @return the offset of the holder or -1 if the slot is reused for
+     *      another UUID concurrently.
+     */
+    // Must be called under lock.
+    private int attach(final int offset, final byte[] uuidBytes)
+    {
+        for (int i = 0; i < MAX_HOLDERS; ++i) {
+            final int holder = offset + HOLDERS_OFFSET + i * HOLDER_SIZE;
+            if ((long) LONGS.getVolatile(buf, holder + OWNER_OFFSET) ==
+                    owner) {
+                holders.merge(holder, 1, Integer::sum);
+                return holder;
+            }
+        }
+        // Making room for this instance if holders are left by crashes.
+        reclaimHolders(offset);
+        final int holder = takeHolder(offset);
+        /* The slot can be freed and reused by another process before
+         * this instance becomes its holder.
+         */
+        awaitReady(offset);
+        if (!matches(offset, uuidBytes)) {
+            LONGS.setRelease(buf, holder + OWNER_OFFSET, 0L);
+            return -1;
+        }
+        holders.put(holder, 1);
+        return holder;
+    }
+    
+    /**
+     * @return the offset of an unused holder of the slot which is taken
+     *      by this instance.
+     */
+    private int takeHolder(final int offset)
+    {
+        for (int i = 0; i < MAX_HOLDERS; ++i) {
+            final int holder = offset + HOLDERS_OFFSET + i * HOLDER_SIZE;
+            if (LONGS.compareAndSet(buf, holder + OWNER_OFFSET, 0L, owner)) {
+                return holder;
+            }
+        }
+        throw new IllegalStateException(
+                "Too many processes use the shared counter slot.");
+    }
+    
+    /**
+     * Stops holding the slot if no requests of this instance are in flight.
+     */
+    // Must be called under lock.
+    private void releaseHolder(final int holder)
+    {
+        if ((long) LONGS.getVolatile(buf, holder + HOLDER_COUNT_OFFSET) == 0) {
+            LONGS.setRelease(buf, holder + OWNER_OFFSET, 0L);
+        }
+    }
+    
+    /**
+     * Reclaims holders of processes which do not exist any more. Their
+     * requests in flight are not counted after that.
+     */
+    private void reclaimHolders(final int offset)
+    {
+        for (int i = 0; i < MAX_HOLDERS; ++i) {
+            final int holder = offset + HOLDERS_OFFSET + i * HOLDER_SIZE;
+            final long holderOwner = (long) LONGS.getVolatile(
+                    buf, holder + OWNER_OFFSET);
+            if (holderOwner == 0 || holderOwner == RECLAIMING ||
+                    isAlive(holderOwner)) {
+                continue;
+            }
+            if (LONGS.compareAndSet(buf, holder + OWNER_OFFSET,
+                    holderOwner, RECLAIMING)) {
+                final long count = (long) LONGS.getAndSet(
+                        buf, holder + HOLDER_COUNT_OFFSET, 0L);
+                LONGS.getAndAdd(buf, offset + COUNT_OFFSET, -count);
+                LONGS.setRelease(buf, holder + OWNER_OFFSET, 0L);
+            }
+        }
+    }
+    
+    /**
+     * @return {@code true} if the slot has no holders and no requests
+     *      in flight.
+     */
+    private boolean isUnused(final int offset)
+    {
+        for (int i = 0; i < MAX_HOLDERS; ++i) {
+            final int holder = offset + HOLDERS_OFFSET + i * HOLDER_SIZE;
+            if ((long) LONGS.getVolatile(buf, holder + OWNER_OFFSET) != 0) {
+                return false;
+            }
+        }
+        return (long) LONGS.getVolatile(buf, offset + COUNT_OFFSET) == 0;
+    }
+    
+    private boolean isAlive(final long holderOwner)
+    {
+        if (holderOwner >>> PID_SHIFT == owner >>> PID_SHIFT) {
+            // Another instance of this process.
+            return true;
+        }
+        return ProcessHandle.of(holderOwner >>> PID_SHIFT)
+                .map(ProcessHandle::isAlive).orElse(Boolean.FALSE);
+    }
+    
+    private int slotOf(final int holder)
+    {
+        return holder - (holder - HEADER_SIZE) % SLOT_SIZE;
+    }
+    
+    /**
+     * Waits while another process is writing the UUID of the slot.
+     */
+    private void awaitReady(final int offset)
+    {
+        final long deadline = System.nanoTime() + CLAIM_TIMEOUT_NS;
+        while (true) {
+            final long state = (long) LONGS.getAcquire(
+                    buf, offset + STATE_OFFSET);
+            if (state != CLAIMING) {
+                return;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                // The claiming process must have crashed.
+                throw new IllegalStateException(
+                        "Shared counter slot is not ready.");
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    private boolean matches(final int offset, final byte[] uuidBytes)
+    {
+        if (buf.getInt(offset + UUID_LENGTH_OFFSET) != uuidBytes.length) {
+            return false;
+        }
+        for (int j = 0; j < uuidBytes.length; ++j) {
+            if (buf.get(offset + UUID_OFFSET + j) != uuidBytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,41 @@
+package dzmitry.loadbalancer;
+
+public class SimulationDemo
+{
+    public static void main(String[] args)
+    {
+        final int nodeCount = 1000; // number of simulated providers.
+        final int concurrency = 4; // requests each node processes in parallel.
+        final int maxLoadPerNode = 16; // max number of simultaneous requests per node.
+        final long heartbeatRateMs = 1000; // heartbeat rate (virtual time).
+        final long heartbeatTimeoutMs = 100; // timeout for check().
+        final double medianLatencyMs = 10; // median latency of get().
+        final double latencySigma = 0.5; // heaviness of the latency tail.
+        final double failureRate = 0.001; // chance for get() and check() to fail.
+        final int flappingNodePercent = 5; // nodes which go down periodically.
+        final double load = 0.7; // offered load relative to total node capacity.
+        final int requestCount = 1_000_000; // number of simulated requests.
+        final long seed = 42;
+        
+        final NodeModel[] models = new NodeModel[nodeCount];
+        for (int i = 0; i < nodeCount; ++i) {
+            final boolean flapping = i * 100 < nodeCount * flappingNodePercent;
+            models[i] = new NodeModel("zone" + (i % 3),
+                    LatencyDistribution.logNormal(medianLatencyMs, latencySigma),
+                    concurrency, failureRate,
+                    flapping ? 5000 : 0, flapping ? 3000 : 0);
+        }
+        final double requestsPerSecond =
+                load * nodeCount * concurrency * 1000 / medianLatencyMs;
+        
+        final Simulator simulator = new Simulator(
+                models, heartbeatRateMs, heartbeatTimeoutMs, seed);
+        for (final SelectorType selector : SelectorType.values()) {
+            final long start = System.nanoTime();
+            final SimulationResult result = simulator.run(selector, "zone0",
+                    maxLoadPerNode, requestsPerSecond, requestCount);
+            System.out.println(result + " (simulated in " +
+                    (System.nanoTime() - start) / 1_000_000 + " ms)");
+        }
+    }
+}
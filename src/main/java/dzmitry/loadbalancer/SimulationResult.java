@@ -0,0 +1,108 @@
+package dzmitry.loadbalancer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of a single {@link Simulator} run. Times are virtual.
+ */
+public class SimulationResult
+{
+    private final SelectorType selectorType;
+    /** The number of successfully processed requests. */
+    private final long completed;
+    /** The number of requests which were processed but failed. */
+    private final long failed;
+    /** The number of requests which were not admitted. */
+    private final long rejected;
+    private final long durationNs;
+    /** Latencies of successful requests (queueing included). */
+    private final long p50Ns;
+    private final long p99Ns;
+    private final long p999Ns;
+    /**
+     * Jain's fairness index of requests served by nodes relative to their
+     * concurrency. One means the load is spread exactly in proportion to
+     * node capacity, 1/n means a single node takes all the load.
+     */
+    private final double fairness;
+    
+    public SimulationResult(final SelectorType selectorType,
+            final long completed, final long failed, final long rejected,
+            final long durationNs, final long p50Ns, final long p99Ns,
+            final long p999Ns, final double fairness)
+    {
+        this.selectorType = selectorType;
+        this.completed = completed;
+        this.failed = failed;
+        this.rejected = rejected;
+        this.durationNs = durationNs;
+        this.p50Ns = p50Ns;
+        this.p99Ns = p99Ns;
+        this.p999Ns = p999Ns;
+        this.fairness = fairness;
+    }
+    
+    public SelectorType getSelectorType()
+    {
+        return selectorType;
+    }
+    
+    public long getCompleted()
+    {
+        return completed;
+    }
+    
+    public long getFailed()
+    {
+        return failed;
+    }
+    
+    public long getRejected()
+    {
+        return rejected;
+    }
+    
+    public long getDurationNs()
+    {
+        return durationNs;
+    }
+    
+    /** @return successful requests per second of virtual time. */
+    public double getThroughput()
+    {
+        return durationNs == 0 ? 0 :
+                completed * (double) TimeUnit.SECONDS.toNanos(1) / durationNs;
+    }
+    
+    public long getP50Ns()
+    {
+        return p50Ns;
+    }
+    
+    public long getP99Ns()
+    {
+        return p99Ns;
+    }
+    
+    public long getP999Ns()
+    {
+        return p999Ns;
+    }
+    
+    public double getFairness()
+    {
+        return fairness;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ROOT,
+                "%s: throughput=%.0f/s, p50=%.2f ms, p99=%.2f ms, " +
+                "p99.9=%.2f ms, fairness=%.4f, completed=%d, failed=%d, " +
+                "rejected=%d",
+                selectorType, getThroughput(), p50Ns / 1e6, p99Ns / 1e6,
+                p999Ns / 1e6, fairness, completed, failed, rejected);
+    }
+}
@@ -0,0 +1,353 @@
+package dzmitry.loadbalancer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deterministic discrete-event simulation of a {@link LoadBalancer} in front
+ * of simulated nodes. It is used to compare selectors on large fleets.
+ * 
+ * Nothing sleeps and no threads are started: request arrivals, request
+ * completions and heartbeat checks are events which are processed by the
+ * calling thread in the order of their virtual time. Admission, selection
+ * and heartbeat handling are done by the real load balancer and
+ * {@link HeartbeatCheckResultHandlerImpl}. Randomness comes from the seed
+ * only so runs with the same parameters produce the same results.
+ * 
+ * Requests arrive as a Poisson process. Each node processes up to its
+ * concurrency of requests in parallel and queues the rest.
+ */
+public class Simulator
+{
+    private static final int ARRIVAL = 0;
+    private static final int COMPLETION = 1;
+    private static final int HEARTBEAT = 2;
+    private static final int HEARTBEAT_RESULT = 3;
+    
+    private static class SimulatedNode extends Provider
+    {
+        private final NodeModel model;
+        private final long upNs;
+        private final long cycleNs;
+        /** Offset of the flapping cycle so that nodes do not flap together. */
+        private final long phaseNs;
+        /** The number of requests being processed. */
+        private int busy;
+        private final ArrayDeque<Request> queue;
+        /** The number of successfully processed requests. */
+        private long served;
+        
+        public SimulatedNode(final NodeModel model, final Random rnd)
+        {
+            super(model.getZone());
+            this.model = model;
+            upNs = TimeUnit.MILLISECONDS.toNanos(model.getUpMs());
+            cycleNs = upNs + TimeUnit.MILLISECONDS.toNanos(model.getDownMs());
+            phaseNs = cycleNs == 0 ? 0 : (long) (rnd.nextDouble() * cycleNs);
+            queue = new ArrayDeque<>();
+        }
+        
+        public boolean isUp(final long now)
+        {
+            return cycleNs == upNs || (now + phaseNs) % cycleNs < upNs;
+        }
+        
+        @Override
+        public String get()
+        {
+            throw new UnsupportedOperationException("Simulated node.");
+        }
+        
+        @Override
+        public boolean check()
+        {
+            throw new UnsupportedOperationException("Simulated node.");
+        }
+    }
+    
+    private static class Request
+    {
+        private final long arrivalNs;
+        private final LoadBalancer.Node handle;
+        private boolean failed;
+        
+        public Request(final long arrivalNs, final LoadBalancer.Node handle)
+        {
+            this.arrivalNs = arrivalNs;
+            this.handle = handle;
+        }
+    }
+    
+    private static class Event implements Comparable<Event>
+    {
+        private final long time;
+        /** Orders events of the same time to keep runs reproducible. */
+        private final long seq;
+        private final int type;
+        private final SimulatedNode node;
+        private final Request request;
+        private final boolean checkResult;
+        
+        public Event(final long time, final long seq, final int type,
+                final SimulatedNode node, final Request request,
+                final boolean checkResult)
+        {
+            this.time = time;
+            this.seq = seq;
+            this.type = type;
+            this.node = node;
+            this.request = request;
+            this.checkResult = checkResult;
+        }
+        
+        @Override
+        public int compareTo(final Event o)
+        {
+            final int result = Long.compare(time, o.time);
+            return result != 0 ? result : Long.compare(seq, o.seq);
+        }
+    }
+    
+    /** State of a single simulation run. */
+    private class Run
+    {
+        private final SelectorType selectorType;
+        private final PriorityQueue<Event> events;
+        private long seq;
+        /** Virtual time in nanoseconds. */
+        private long now;
+        private final Random rnd;
+        private final SimulatedNode[] nodes;
+        private final LoadBalancer balancer;
+        private final HeartbeatCheckResultHandler heartbeatHandler;
+        
+        private long completed;
+        private long failed;
+        private long rejected;
+        private final long[] latencies;
+        
+        public Run(final SelectorType selectorType, final String localZone,
+                final int maxLoadPerNode, final int requestCount)
+        {
+            this.selectorType = selectorType;
+            events = new PriorityQueue<>();
+            rnd = new Random(seed);
+            final int n = models.length;
+            nodes = new SimulatedNode[n];
+            for (int i = 0; i < n; ++i) {
+                nodes[i] = new SimulatedNode(models[i], rnd);
+            }
+            final Random balancerRnd = new Random(rnd.nextLong());
+            balancer = new LoadBalancer(nodes, selectorType, localZone,
+                    maxLoadPerNode, n, null, null, -1, -1, null, null,
+                    false, () -> balancerRnd, () -> now);
+            heartbeatHandler = new HeartbeatCheckResultHandlerImpl();
+            latencies = new long[requestCount];
+        }
+        
+        public SimulationResult execute(final double requestsPerSecond,
+                final int requestCount)
+        {
+            final double meanInterArrivalNs =
+                    TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+            if (heartbeatCheckRateNs > 0) {
+                for (final SimulatedNode node : nodes) {
+                    schedule((long) (rnd.nextDouble() * heartbeatCheckRateNs),
+                            HEARTBEAT, node, null, false);
+                }
+            }
+            schedule(0, ARRIVAL, null, null, false);
+            int arrived = 0;
+            while (completed + failed + rejected < requestCount) {
+                final Event e = events.poll();
+                now = e.time;
+                switch (e.type) {
+                case ARRIVAL:
+                    onArrival();
+                    if (++arrived < requestCount) {
+                        schedule(now + (long) (-meanInterArrivalNs *
+                                Math.log(1 - rnd.nextDouble())),
+                                ARRIVAL, null, null, false);
+                    }
+                    break;
+                case COMPLETION:
+                    onCompletion(e.node, e.request);
+                    break;
+                case HEARTBEAT:
+                    onHeartbeat(e.node);
+                    break;
+                case HEARTBEAT_RESULT:
+                    heartbeatHandler.handle(e.checkResult, balancer, e.node);
+                    break;
+                default:
+                    throw new AssertionError("Unknown event type: " + e.type);
+                }
+            }
+            balancer.close();
+            return result();
+        }
+        
+        private void onArrival()
+        {
+            final LoadBalancer.Node handle;
+            try {
+                handle = balancer.acquire(1);
+            }
+            catch (IllegalStateException ex) {
+                // The limit is reached or no nodes are active.
+                ++rejected;
+                return;
+            }
+            final SimulatedNode node = (SimulatedNode) handle.getProvider();
+            final Request request = new Request(now, handle);
+            if (node.busy < node.model.getConcurrency()) {
+                start(node, request);
+            } else {
+                node.queue.add(request);
+            }
+        }
+        
+        private void start(final SimulatedNode node, final Request request)
+        {
+            ++node.busy;
+            final long serviceNs;
+            if (node.isUp(now)) {
+                serviceNs = node.model.getLatency().sampleNs(rnd);
+                request.failed = rnd.nextDouble() < node.model.getFailureRate();
+            } else {
+                // Connection is refused right away.
+                serviceNs = 0;
+                request.failed = true;
+            }
+            schedule(now + serviceNs, COMPLETION, node, request, false);
+        }
+        
+        private void onCompletion(final SimulatedNode node,
+                final Request request)
+        {
+            --node.busy;
+            balancer.release(request.handle, 1);
+            request.handle.recordOutcome(!request.failed);
+            if (request.failed) {
+                ++failed;
+            } else {
+                latencies[(int) completed++] = now - request.arrivalNs;
+                ++node.served;
+            }
+            final Request next = node.queue.poll();
+            if (next != null) {
+                start(node, next);
+            }
+        }
+        
+        private void onHeartbeat(final SimulatedNode node)
+        {
+            schedule(now + heartbeatCheckRateNs, HEARTBEAT, node, null, false);
+            final boolean up = node.isUp(now) &&
+                    rnd.nextDouble() >= node.model.getFailureRate();
+            final long latencyNs = up ?
+                    node.model.getLatency().sampleNs(rnd) : Long.MAX_VALUE;
+            // A check which is down or too slow fails on timeout.
+            final boolean result = latencyNs <= heartbeatCheckTimeoutNs;
+            schedule(now + Math.min(latencyNs, heartbeatCheckTimeoutNs),
+                    HEARTBEAT_RESULT, node, null, result);
+        }
+        
+        private void schedule(final long time, final int type,
+                final SimulatedNode node, final Request request,
+                final boolean checkResult)
+        {
+            events.add(new Event(time, seq++, type, node, request,
+                    checkResult));
+        }
+        
+        private SimulationResult result()
+        {
+            final int count = (int) completed;
+            Arrays.sort(latencies, 0, count);
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (final SimulatedNode node : nodes) {
+                final double x = node.served /
+                        (double) node.model.getConcurrency();
+                sum += x;
+                sumOfSquares += x * x;
+            }
+            final double fairness = sumOfSquares == 0 ? 0 :
+                    sum * sum / (nodes.length * sumOfSquares);
+            return new SimulationResult(selectorType,
+                    completed, failed, rejected, now,
+                    percentile(count, 0.5), percentile(count, 0.99),
+                    percentile(count, 0.999), fairness);
+        }
+        
+        private long percentile(final int count, final double q)
+        {
+            if (count == 0) {
+                return 0;
+            }
+            final int idx = (int) Math.ceil(q * count) - 1;
+            return latencies[Math.max(0, idx)];
+        }
+    }
+    
+    private final NodeModel[] models;
+    private final long heartbeatCheckRateNs;
+    private final long heartbeatCheckTimeoutNs;
+    private final long seed;
+    
+    /**
+     * @param models behaviour of simulated nodes.
+     * @param heartbeatCheckRateMs the period of heartbeat checks of each node
+     *      in virtual time. Zero disables heartbeat checking.
+     * @param heartbeatCheckTimeoutMs the time after which a heartbeat check
+     *      is considered failed.
+     * @param seed the seed of all randomness of the simulation.
+     */
+    public Simulator(final NodeModel[] models, final long heartbeatCheckRateMs,
+            final long heartbeatCheckTimeoutMs, final long seed)
+    {
+        if (models.length == 0) {
+            throw new IllegalArgumentException("No nodes.");
+        }
+        for (final NodeModel model : models) {
+            Objects.requireNonNull(model, "null node model");
+        }
+        if (heartbeatCheckRateMs < 0 || heartbeatCheckTimeoutMs < 0) {
+            throw new IllegalArgumentException("Negative heartbeat timing.");
+        }
+        this.models = models.clone();
+        heartbeatCheckRateNs = TimeUnit.MILLISECONDS.toNanos(
+                heartbeatCheckRateMs);
+        heartbeatCheckTimeoutNs = TimeUnit.MILLISECONDS.toNanos(
+                heartbeatCheckTimeoutMs);
+        this.seed = seed;
+    }
+    
+    /**
+     * Simulates the given number of requests from the start with all nodes
+     * active. Each call is independent from other calls.
+     * 
+     * @param localZone the zone of the load balancer. It is required by
+     *      {@link SelectorType#ZONE_AWARE}.
+     * @param requestsPerSecond the mean arrival rate in virtual time.
+     * @param requestCount the number of requests to simulate.
+     */
+    public SimulationResult run(final SelectorType selectorType,
+            final String localZone, final int maxLoadPerNode,
+            final double requestsPerSecond, final int requestCount)
+    {
+        if (!(requestsPerSecond > 0)) {
+            throw new IllegalArgumentException("Non-positive request rate.");
+        }
+        if (requestCount <= 0) {
+            throw new IllegalArgumentException("Non-positive request count.");
+        }
+        return new Run(selectorType, localZone, maxLoadPerNode, requestCount)
+                .execute(requestsPerSecond, requestCount);
+    }
+}
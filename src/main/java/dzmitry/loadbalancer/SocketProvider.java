@@ -0,0 +1,457 @@
+package dzmitry.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provider backed by a remote service which speaks {@link LineProtocol}.
+ * 
+ * Requests of all caller threads are multiplexed over a small pool of
+ * connections which are served by a single NIO event loop thread. Callers
+ * do not do any I/O: a request is queued to a connection (round-robin)
+ * and the caller waits for its response. Requests are pipelined: they are
+ * written without waiting for responses to earlier requests, and responses
+ * are matched to requests by their order on the connection. A connection
+ * is re-established on the next request after it fails; requests which
+ * were in flight on it fail. When a request times out the connection is
+ * failed as well: the response of the request cannot be told apart from
+ * responses to the requests pipelined after it, and a backend which does
+ * not answer would otherwise block them all.
+ * 
+ * {@link #check()} is a lightweight ping over the same connections.
+ */
+public class SocketProvider extends Provider implements AutoCloseable
+{
+    private static class Call
+    {
+        private final ByteBuffer request;
+        private final CompletableFuture<String> response;
+        private final Connection conn;
+        
+        public Call(final String request, final Connection conn)
+        {
+            this.request = LineProtocol.encode(request);
+            response = new CompletableFuture<>();
+            this.conn = conn;
+        }
+    }
+    
+    private static class Connection
+    {
+        /** Calls submitted by callers and not yet taken by the event loop. */
+        private final ConcurrentLinkedQueue<Call> outbox;
+        /** Set by a caller whose call on this connection has timed out. */
+        private final AtomicBoolean timedOut;
+        /* The fields below are accessed by the event loop thread only. */
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected;
+        /** Calls written (or being written) in the order of requests. */
+        private final ArrayDeque<Call> inFlight;
+        private final ArrayDeque<ByteBuffer> writes;
+        private final ByteBuffer readBuffer;
+        
+        public Connection()
+        {
+            outbox = new ConcurrentLinkedQueue<>();
+            timedOut = new AtomicBoolean();
+            inFlight = new ArrayDeque<>();
+            writes = new ArrayDeque<>();
+            readBuffer = ByteBuffer.allocate(LineProtocol.MAX_LINE_LENGTH);
+        }
+    }
+    
+    private final InetSocketAddress address;
+    private final long timeoutMs;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection;
+    
+    private final Selector selector;
+    private final Thread eventLoop;
+    /**
+     * Set when the event loop is woken up and has not taken new calls yet.
+     * It saves a wake-up system call per request under load.
+     */
+    private final AtomicBoolean wakeupPending;
+    private volatile boolean closed;
+    
+    public SocketProvider(final InetSocketAddress address,
+            final int connectionCount, final long timeoutMs)
+            throws IOException
+    {
+        this(address, null, connectionCount, timeoutMs);
+    }
+    
+    /**
+     * @param address the address of the backend.
+     * @param zone the zone of the backend. Can be null.
+     * @param connectionCount the number of connections to the backend.
+     * @param timeoutMs the maximum time in milliseconds to wait for
+     *      a response.
+     */
+    public SocketProvider(final InetSocketAddress address, final String zone,
+            final int connectionCount, final long timeoutMs)
+            throws IOException
+    {
+        super(zone);
+        Objects.requireNonNull(address);
+        if (connectionCount <= 0) {
+            throw new IllegalArgumentException(
+                    "Non-positive connection count.");
+        }
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Non-positive timeout.");
+        }
+        this.address = address;
+        this.timeoutMs = timeoutMs;
+        connections = new Connection[connectionCount];
+        for (int i = 0; i < connectionCount; ++i) {
+            connections[i] = new Connection();
+        }
+        nextConnection = new AtomicInteger();
+        wakeupPending = new AtomicBoolean();
+        selector = Selector.open();
+        eventLoop = new Thread(this::runEventLoop,
+                "socket-provider-" + address);
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+    
+    @Override
+    public String get()
+    {
+        return await(submit(LineProtocol.GET));
+    }
+    
+    @Override
+    public String get(final String key)
+    {
+        Objects.requireNonNull(key);
+        if (key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Line break in the key.");
+        }
+        return await(submit(LineProtocol.GET + ' ' + key));
+    }
+    
+    /**
+     * Pipelines all requests of the batch before waiting for responses.
+     */
+    @Override
+    public String[] getBatch(final int n)
+    {
+        final Call[] calls = new Call[n];
+        for (int i = 0; i < n; ++i) {
+            calls[i] = submit(LineProtocol.GET);
+        }
+        final String[] result = new String[n];
+        for (int i = 0; i < n; ++i) {
+            result[i] = await(calls[i]);
+        }
+        return result;
+    }
+    
+    /**
+     * @return {@code true} if the backend answers a ping in time.
+     */
+    @Override
+    public boolean check()
+    {
+        try {
+            return LineProtocol.PONG.equals(await(submit(LineProtocol.PING)));
+        }
+        catch (IllegalStateException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Closes all connections. Requests which are in flight fail.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private Call submit(final String request)
+    {
+        if (closed) {
+            throw new IllegalStateException("Provider is closed.");
+        }
+        final int n = connections.length;
+        final Connection conn = connections[
+                (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % n];
+        final Call call = new Call(request, conn);
+        conn.outbox.add(call);
+        wakeup();
+        if (closed) {
+            /* The event loop could finish before the call is queued.
+             * Failing it here so that the caller does not wait in vain.
+             */
+            call.response.completeExceptionally(
+                    new IOException("Provider is closed."));
+        }
+        return call;
+    }
+    
+    private String await(final Call call)
+    {
+        try {
+            return call.response.get(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            if (call.response.completeExceptionally(
+                    new IllegalStateException("Request timed out."))) {
+                // The event loop drops the connection.
+                call.conn.timedOut.set(true);
+                wakeup();
+            }
+            // The call is completed either with the timeout or just in time.
+            return await(call);
+        }
+        catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Request failed.", cause);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private void wakeup()
+    {
+        if (!wakeupPending.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+    
+    private void runEventLoop()
+    {
+        try {
+            while (!closed) {
+                selector.select();
+                // Calls queued after this point wake the selector up again.
+                wakeupPending.set(false);
+                for (final Connection conn : connections) {
+                    if (conn.timedOut.getAndSet(false)) {
+                        dropIfTimedOut(conn);
+                    }
+                    takeCalls(conn);
+                }
+                final Iterator<SelectionKey> it =
+                        selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        finally {
+            final IOException ex = new IOException("Provider is closed.");
+            for (final Connection conn : connections) {
+                fail(conn, ex);
+                Call call;
+                while ((call = conn.outbox.poll()) != null) {
+                    call.response.completeExceptionally(ex);
+                }
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // Nothing to do. The provider is closed anyway.
+            }
+        }
+    }
+    
+    private void takeCalls(final Connection conn)
+    {
+        if (conn.outbox.isEmpty()) {
+            return;
+        }
+        if (conn.channel == null) {
+            try {
+                connect(conn);
+            }
+            catch (IOException ex) {
+                fail(conn, ex);
+            }
+        }
+        Call call;
+        while ((call = conn.outbox.poll()) != null) {
+            if (call.response.isDone()) {
+                // Timed out before it is sent.
+                continue;
+            }
+            if (conn.channel == null) {
+                // Connecting failed. Failing fast instead of timing out.
+                call.response.completeExceptionally(
+                        new IOException("Cannot connect to " + address));
+                continue;
+            }
+            conn.inFlight.add(call);
+            conn.writes.add(call.request);
+        }
+        if (conn.connected) {
+            try {
+                write(conn);
+            }
+            catch (IOException ex) {
+                fail(conn, ex);
+            }
+        }
+    }
+    
+    /**
+     * Fails the connection if a call in flight on it has timed out. Its
+     * response could still come and there is no way to skip it other than
+     * dropping the connection. The calls pipelined after it are failed too
+     * instead of waiting behind it. The connection is re-established on
+     * the next request.
+     */
+    private void dropIfTimedOut(final Connection conn)
+    {
+        for (final Call call : conn.inFlight) {
+            if (call.response.isDone()) {
+                fail(conn, new IOException("A request on the connection " +
+                        "has timed out."));
+                return;
+            }
+        }
+    }
+    
+    private void connect(final Connection conn) throws IOException
+    {
+        final SocketChannel channel = SocketChannel.open();
+        conn.channel = channel;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+        conn.connected = channel.connect(address);
+        conn.key = channel.register(selector, conn.connected ?
+                SelectionKey.OP_READ : SelectionKey.OP_CONNECT, conn);
+    }
+    
+    private void handle(final SelectionKey key)
+    {
+        final Connection conn = (Connection) key.attachment();
+        if (!key.isValid() || conn.key != key) {
+            // A stale key of a failed connection.
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                conn.channel.finishConnect();
+                conn.connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                write(conn);
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(conn);
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(conn);
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            fail(conn, ex);
+        }
+    }
+    
+    private void read(final Connection conn) throws IOException
+    {
+        if (conn.channel.read(conn.readBuffer) < 0) {
+            throw new IOException("Connection is closed by the backend.");
+        }
+        LineProtocol.readLines(conn.readBuffer, line -> {
+            final Call call = conn.inFlight.poll();
+            if (call == null) {
+                throw new IllegalStateException("Unexpected response.");
+            }
+            if (line.startsWith(LineProtocol.OK)) {
+                call.response.complete(
+                        line.substring(LineProtocol.OK.length()));
+            } else if (line.startsWith(LineProtocol.ERR)) {
+                call.response.completeExceptionally(new IllegalStateException(
+                        line.substring(LineProtocol.ERR.length())));
+            } else {
+                call.response.completeExceptionally(
+                        new IllegalStateException("Malformed response."));
+            }
+        });
+    }
+    
+    private void write(final Connection conn) throws IOException
+    {
+        final ArrayDeque<ByteBuffer> writes = conn.writes;
+        while (!writes.isEmpty()) {
+            final ByteBuffer buf = writes.peek();
+            conn.channel.write(buf);
+            if (buf.hasRemaining()) {
+                // The socket buffer is full. Continuing when it is writable.
+                conn.key.interestOps(
+                        SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writes.poll();
+        }
+        conn.key.interestOps(SelectionKey.OP_READ);
+    }
+    
+    /**
+     * Closes the connection and fails all requests in flight on it.
+     */
+    private static void fail(final Connection conn, final Exception cause)
+    {
+        if (conn.key != null) {
+            conn.key.cancel();
+            conn.key = null;
+        }
+        if (conn.channel != null) {
+            try {
+                conn.channel.close();
+            }
+            catch (IOException ex) {
+                // Nothing to do. The connection is dropped anyway.
+            }
+            conn.channel = null;
+        }
+        conn.connected = false;
+        Call call;
+        while ((call = conn.inFlight.poll()) != null) {
+            call.response.completeExceptionally(cause);
+        }
+        conn.writes.clear();
+        conn.readBuffer.clear();
+    }
+}
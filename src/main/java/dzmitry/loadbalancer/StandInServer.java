@@ -0,0 +1,240 @@
+package dzmitry.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Local stand-in for a backend of {@link SocketProvider}. It listens on
+ * an ephemeral port of the loopback interface and answers requests with
+ * the given handler in a single event loop thread. It is meant for tests
+ * and for measuring the overhead of the load balancer together with
+ * the network.
+ */
+public class StandInServer implements AutoCloseable
+{
+    private static class Client
+    {
+        private final ByteBuffer readBuffer;
+        private final ArrayDeque<ByteBuffer> writes;
+        
+        public Client()
+        {
+            readBuffer = ByteBuffer.allocate(LineProtocol.MAX_LINE_LENGTH);
+            writes = new ArrayDeque<>();
+        }
+    }
+    
+    /** Computes the response to the key. The key is null for plain GET. */
+    private final Function<String, String> handler;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread eventLoop;
+    private volatile boolean closed;
+    
+    private final AtomicInteger connectionCount;
+    private final AtomicLong requestCount;
+    
+    public StandInServer(final Function<String, String> handler)
+            throws IOException
+    {
+        Objects.requireNonNull(handler);
+        this.handler = handler;
+        connectionCount = new AtomicInteger();
+        requestCount = new AtomicLong();
+        selector = Selector.open();
+        boolean success = false;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), 0));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            success = true;
+        }
+        finally {
+            // Gracefully tearing down in case of exceptions during init.
+            if (!success) {
+                selector.close();
+            }
+        }
+        eventLoop = new Thread(this::runEventLoop, "stand-in-server");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+    
+    public InetSocketAddress getAddress()
+    {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /** @return the number of connections accepted so far. */
+    public int getConnectionCount()
+    {
+        return connectionCount.get();
+    }
+    
+    /** @return the number of requests answered so far. */
+    public long getRequestCount()
+    {
+        return requestCount.get();
+    }
+    
+    /**
+     * Stops the server and closes all its connections.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private void runEventLoop()
+    {
+        try {
+            while (!closed) {
+                selector.select();
+                final Iterator<SelectionKey> it =
+                        selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                    catch (IOException ex) {
+                        // The client is gone.
+                        closeQuietly(key);
+                    }
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        finally {
+            for (final SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException ex) {
+                // Nothing to do. The server is closed anyway.
+            }
+        }
+    }
+    
+    private void accept() throws IOException
+    {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Client());
+        connectionCount.incrementAndGet();
+    }
+    
+    private void read(final SelectionKey key) throws IOException
+    {
+        final Client client = (Client) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(client.readBuffer) < 0) {
+            closeQuietly(key);
+            return;
+        }
+        LineProtocol.readLines(client.readBuffer,
+                line -> client.writes.add(LineProtocol.encode(respond(line))));
+        write(key);
+    }
+    
+    private void write(final SelectionKey key) throws IOException
+    {
+        final Client client = (Client) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final ArrayDeque<ByteBuffer> writes = client.writes;
+        while (!writes.isEmpty()) {
+            final ByteBuffer buf = writes.peek();
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+                // The socket buffer is full. Continuing when it is writable.
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writes.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+    
+    private String respond(final String request)
+    {
+        requestCount.incrementAndGet();
+        final String key;
+        if (LineProtocol.PING.equals(request)) {
+            return LineProtocol.OK + LineProtocol.PONG;
+        } else if (LineProtocol.GET.equals(request)) {
+            key = null;
+        } else if (request.startsWith(LineProtocol.GET + ' ')) {
+            key = request.substring(LineProtocol.GET.length() + 1);
+        } else {
+            return LineProtocol.ERR + "Unknown request.";
+        }
+        try {
+            return LineProtocol.OK +
+                    LineProtocol.singleLine(String.valueOf(handler.apply(key)));
+        }
+        catch (RuntimeException ex) {
+            return LineProtocol.ERR +
+                    LineProtocol.singleLine(String.valueOf(ex.getMessage()));
+        }
+    }
+    
+    private static void closeQuietly(final SelectionKey key)
+    {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException ex) {
+            // Nothing to do. The connection is dropped anyway.
+        }
+    }
+}
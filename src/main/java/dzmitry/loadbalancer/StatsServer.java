@@ -0,0 +1,244 @@
+package dzmitry.loadbalancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves statistics of a load balancer in the Prometheus text format
+ * at {@code /metrics} with the HTTP server of the JDK.
+ * 
+ * Rendering reads volatile snapshots and atomic counters only. It takes
+ * none of the locks which are used by requests or heartbeat handling so
+ * scraping does not delay them. As a consequence the values are not
+ * an atomic snapshot of the load balancer.
+ * 
+ * The server must be closed to stop its dispatcher thread.
+ */
+public class StatsServer implements AutoCloseable
+{
+    public static final String PATH = "/metrics";
+    
+    private static final String CONTENT_TYPE =
+            "text/plain; version=0.0.4; charset=utf-8";
+    
+    /** Bucket bounds of latency histograms in seconds. */
+    private static final String[] LATENCY_BOUNDS;
+    
+    static {
+        final int n = LatencyHistogram.getBucketCount();
+        LATENCY_BOUNDS = new String[n];
+        for (int i = 0; i < n - 1; ++i) {
+            LATENCY_BOUNDS[i] = BigDecimal.valueOf(
+                    LatencyHistogram.getBoundNs(i), 9)
+                    .stripTrailingZeros().toPlainString();
+        }
+        LATENCY_BOUNDS[n - 1] = "+Inf";
+    }
+    
+    private final LoadBalancer balancer;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    /**
+     * Starts serving statistics.
+     * 
+     * @param balancer the load balancer to report.
+     * @param address the address to listen at. Port zero selects
+     *      an ephemeral port.
+     */
+    public StatsServer(final LoadBalancer balancer,
+            final InetSocketAddress address) throws IOException
+    {
+        Objects.requireNonNull(balancer);
+        Objects.requireNonNull(address);
+        this.balancer = balancer;
+        server = HttpServer.create(address, 0);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread t = new Thread(runnable, "stats-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+    
+    /**
+     * @return the port the server listens at.
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+    
+    @Override
+    public void close()
+    {
+        try {
+            server.stop(0);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private void handle(final HttpExchange exchange) throws IOException
+    {
+        try {
+            final String method = exchange.getRequestMethod();
+            final boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (head) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * @return statistics of the load balancer in the Prometheus text format.
+     */
+    String render()
+    {
+        final List<LoadBalancer.NodeStats> nodes = balancer.getNodeStats();
+        nodes.sort(Comparator.comparing(s -> s.uuid));
+        final StringBuilder out = new StringBuilder(1024 + nodes.size() * 2048);
+        
+        header(out, "lb_capacity", "gauge",
+                "Maximum number of simultaneous requests.");
+        out.append("lb_capacity ").append(balancer.getCapacity()).append('\n');
+        header(out, "lb_in_flight", "gauge",
+                "Requests which are being processed.");
+        out.append("lb_in_flight ").append(balancer.getInFlight())
+                .append('\n');
+        header(out, "lb_rejected_total", "counter",
+                "Rejected requests by reason.");
+        rejected(out, "capacity", balancer.getRejectedOverCapacity());
+        rejected(out, "no_node", balancer.getRejectedNoNode());
+        rejected(out, "closed", balancer.getRejectedClosed());
+        
+        header(out, "lb_node_active", "gauge",
+                "1 if the node is selected for requests, 0 if excluded.");
+        for (final LoadBalancer.NodeStats s : nodes) {
+            sample(out, "lb_node_active", s, null, s.active ? 1 : 0);
+        }
+        header(out, "lb_node_in_flight", "gauge",
+                "Requests which are being processed by the node.");
+        for (final LoadBalancer.NodeStats s : nodes) {
+            sample(out, "lb_node_in_flight", s, null, s.inFlight);
+        }
+        header(out, "lb_node_heartbeat_checks_total", "counter",
+                "Heartbeat checks by result. Timeouts are failures. Checks " +
+                "of nodes proven healthy by live requests are skipped.");
+        for (final LoadBalancer.NodeStats s : nodes) {
+            sample(out, "lb_node_heartbeat_checks_total", s,
+                    "result=\"success\"", s.heartbeatSuccesses);
+            sample(out, "lb_node_heartbeat_checks_total", s,
+                    "result=\"failure\"", s.heartbeatFailures);
+            sample(out, "lb_node_heartbeat_checks_total", s,
+                    "result=\"skipped\"", s.heartbeatSkips);
+        }
+        header(out, "lb_node_deadline_timeouts_total", "counter",
+                "Requests which have missed their deadlines.");
+        for (final LoadBalancer.NodeStats s : nodes) {
+            sample(out, "lb_node_deadline_timeouts_total", s, null,
+                    s.deadlineTimeouts);
+        }
+        header(out, "lb_node_latency_seconds", "histogram",
+                "Response time of the node.");
+        for (final LoadBalancer.NodeStats s : nodes) {
+            long count = 0;
+            for (int i = 0; i < LATENCY_BOUNDS.length; ++i) {
+                count += s.latencies.getCount(i);
+                sample(out, "lb_node_latency_seconds_bucket", s,
+                        "le=\"" + LATENCY_BOUNDS[i] + '"', count);
+            }
+            out.append("lb_node_latency_seconds_sum{node=\"");
+            escape(out, s.uuid);
+            out.append("\"} ").append(BigDecimal.valueOf(
+                    s.latencies.getSumNs(), 9).stripTrailingZeros()
+                    .toPlainString()).append('\n');
+            sample(out, "lb_node_latency_seconds_count", s, null, count);
+        }
+        return out.toString();
+    }
+    
+    private static void header(final StringBuilder out, final String name,
+            final String type, final String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+    
+    private static void rejected(final StringBuilder out,
+            final String reason, final long value)
+    {
+        out.append("lb_rejected_total{reason=\"").append(reason)
+                .append("\"} ").append(value).append('\n');
+    }
+    
+    /**
+     * @param label an additional label with its value. Can be null.
+     */
+    private static void sample(final StringBuilder out, final String name,
+            final LoadBalancer.NodeStats node, final String label,
+            final long value)
+    {
+        out.append(name).append("{node=\"");
+        escape(out, node.uuid);
+        out.append('"');
+        if (label != null) {
+            out.append(',').append(label);
+        }
+        out.append("} ").append(value).append('\n');
+    }
+    
+    /**
+     * Appends a label value escaped as required by the text format.
+     */
+    private static void escape(final StringBuilder out, final String value)
+    {
+        for (int i = 0, n = value.length(); i < n; ++i) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            default:
+                out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package dzmitry.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters (stripes) each of which is used mostly by its own
+ * group of threads. Counters are padded to be in separate cache lines
+ * so that threads working with different stripes do not contend.
+ */
+class StripedCounter
+{
+    /** Distance between counters in longs (two cache lines). */
+    private static final int PAD = 16;
+    private static final int MAX_STRIPES = 64;
+    
+    private final AtomicLongArray cells;
+    private final int mask;
+    
+    /**
+     * @param stripes the number of stripes. Must be a power of two.
+     */
+    public StripedCounter(final int stripes)
+    {
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException(
+                    "Number of stripes must be a power of two.");
+        }
+        cells = new AtomicLongArray(stripes * PAD);
+        mask = stripes - 1;
+    }
+    
+    /**
+     * @return the number of stripes which matches the number of CPUs.
+     */
+    public static int defaultStripeCount()
+    {
+        final int cpus = Math.min(
+                Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+        final int stripes = Integer.highestOneBit(Math.max(1, cpus));
+        return stripes < cpus ? stripes << 1 : stripes;
+    }
+    
+    public int getStripeCount()
+    {
+        return mask + 1;
+    }
+    
+    /**
+     * @return the stripe the current thread is mapped to.
+     */
+    public int currentStripe()
+    {
+        // Thread IDs are sequential. Mixing bits to spread them evenly.
+        final long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+    
+    public long get(final int stripe)
+    {
+        return cells.get(stripe * PAD);
+    }
+    
+    public boolean compareAndSet(final int stripe, final long expect,
+            final long update)
+    {
+        return cells.compareAndSet(stripe * PAD, expect, update);
+    }
+    
+    public long getAndAdd(final int stripe, final long delta)
+    {
+        return cells.getAndAdd(stripe * PAD, delta);
+    }
+    
+    /**
+     * @return the sum of all stripes. It is not an atomic snapshot if
+     *      stripes are modified concurrently.
+     */
+    public long sum()
+    {
+        long result = 0;
+        for (int i = 0, n = mask + 1; i < n; ++i) {
+            result += cells.get(i * PAD);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package dzmitry.loadbalancer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket rate limiter.
+ * 
+ * The whole state is packed into a single word which is updated with CAS:
+ * the upper bits hold the time of the last refill in milliseconds since
+ * the bucket is created and the lower bits hold the number of tokens
+ * in fixed-point format. So the time and the tokens are always
+ * consistent with each other without locking.
+ */
+class TokenBucket
+{
+    private static final int FRACTION_BITS = 10;
+    /** One token in fixed-point format. */
+    private static final long ONE = 1L << FRACTION_BITS;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    /** The maximum number of tokens which fits into the token bits. */
+    static final int MAX_BURST = (int) (TOKEN_MASK >> FRACTION_BITS);
+    
+    /** Source of time in nanoseconds. */
+    private final LongSupplier clock;
+    private final long startNs;
+    /** Tokens (fixed-point) added each millisecond. */
+    private final double refillPerMs;
+    /** The maximum number of tokens (fixed-point). */
+    private final long maxTokens;
+    /** Time of the last refill (upper bits) and tokens (lower bits). */
+    private final AtomicLong state;
+    
+    /**
+     * Creates a full bucket.
+     * 
+     * @param ratePerSecond the number of tokens added per second.
+     * @param burst the maximum number of tokens the bucket can hold.
+     */
+    public TokenBucket(final double ratePerSecond, final int burst)
+    {
+        this(ratePerSecond, burst, System::nanoTime);
+    }
+    
+    TokenBucket(final double ratePerSecond, final int burst,
+            final LongSupplier clock)
+    {
+        if (!(ratePerSecond > 0)) {
+            throw new IllegalArgumentException("Non-positive rate.");
+        }
+        if (burst <= 0 || burst > MAX_BURST) {
+            throw new IllegalArgumentException(
+                    "Burst must be within [1, " + MAX_BURST + "].");
+        }
+        this.clock = clock;
+        startNs = clock.getAsLong();
+        refillPerMs = ratePerSecond * ONE / 1000;
+        maxTokens = burst * ONE;
+        state = new AtomicLong(maxTokens);
+    }
+    
+    /**
+     * Takes the given number of tokens if they are available.
+     * 
+     * @return {@code true} if the tokens are taken.
+     */
+    public boolean tryAcquire(final int permits)
+    {
+        final long required = permits * ONE;
+        final long now = nowMs();
+        while (true) {
+            final long s = state.get();
+            final long last = s >>> TOKEN_BITS;
+            final long tokens = refill(s, now);
+            if (tokens < required) {
+                return false;
+            }
+            final long next = (Math.max(now, last) << TOKEN_BITS) |
+                    (tokens - required);
+            if (state.compareAndSet(s, next)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * @return {@code true} if at least one token is available.
+     *      The result can become obsolete immediately.
+     */
+    public boolean hasTokens()
+    {
+        return refill(state.get(), nowMs()) >= ONE;
+    }
+    
+    /**
+     * @return the number of tokens (fixed-point) in the given state
+     *      after refilling it up to the given time.
+     */
+    private long refill(final long s, final long now)
+    {
+        final long last = s >>> TOKEN_BITS;
+        final long tokens = s & TOKEN_MASK;
+        if (now <= last) {
+            // Concurrent update with a more recent time.
+            return tokens;
+        }
+        final double added = (now - last) * refillPerMs;
+        if (added >= maxTokens - tokens) {
+            return maxTokens;
+        }
+        return tokens + (long) added;
+    }
+    
+    private long nowMs()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - startNs);
+    }
+}
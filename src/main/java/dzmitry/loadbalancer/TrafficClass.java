@@ -0,0 +1,65 @@
+package dzmitry.loadbalancer;
+
+import java.util.Objects;
+
+/**
+ * A class of requests (tenant or priority) for {@link FairShareAdmission}.
+ * Shares are fractions of the capacity of the load balancer.
+ */
+public class TrafficClass
+{
+    private final String name;
+    /** The lower the value the more important requests of this class are. */
+    private final int priority;
+    /** The share of capacity which is always available for this class. */
+    private final double guaranteedShare;
+    /**
+     * The maximum share of capacity this class can use when capacity
+     * is not needed by more important classes.
+     */
+    private final double burstShare;
+    
+    public TrafficClass(final String name, final int priority,
+            final double guaranteedShare, final double burstShare)
+    {
+        Objects.requireNonNull(name);
+        if (guaranteedShare < 0 || guaranteedShare > 1) {
+            throw new IllegalArgumentException(
+                    "Guaranteed share must be within [0, 1].");
+        }
+        if (burstShare < guaranteedShare || burstShare > 1) {
+            throw new IllegalArgumentException(
+                    "Burst share must be within [guaranteedShare, 1].");
+        }
+        this.name = name;
+        this.priority = priority;
+        this.guaranteedShare = guaranteedShare;
+        this.burstShare = burstShare;
+    }
+    
+    public String getName()
+    {
+        return name;
+    }
+    
+    public int getPriority()
+    {
+        return priority;
+    }
+    
+    public double getGuaranteedShare()
+    {
+        return guaranteedShare;
+    }
+    
+    public double getBurstShare()
+    {
+        return burstShare;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
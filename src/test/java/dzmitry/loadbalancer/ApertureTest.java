@@ -0,0 +1,129 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class ApertureTest
+{
+    @Test
+    public void testEvenSpread()
+    {
+        final Provider[] fleet = fleet(10);
+        final int clientCount = 7;
+        final Map<String, Integer> clients = new HashMap<>();
+        for (int i = 0; i < clientCount; ++i) {
+            final Aperture aperture =
+                    new Aperture(fleet, i, clientCount, 3, 3);
+            for (final Provider p : aperture.subset()) {
+                clients.merge(p.getUuid(), 1, Integer::sum);
+            }
+        }
+        
+        // 7 clients * 3 providers over 10 providers.
+        assertEquals(10, clients.size());
+        final int min = Collections.min(clients.values());
+        final int max = Collections.max(clients.values());
+        assertTrue(min >= 2, "min: " + min);
+        assertTrue(max <= 3, "max: " + max);
+    }
+    
+    @Test
+    public void testDeterministic()
+    {
+        final Provider[] fleet = fleet(10);
+        final List<Provider> shuffled = Arrays.asList(fleet.clone());
+        Collections.reverse(shuffled);
+        
+        final Aperture a1 = new Aperture(fleet, 3, 5, 4, 4);
+        final Aperture a2 = new Aperture(
+                shuffled.toArray(new Provider[0]), 3, 5, 4, 4);
+        
+        assertArrayEquals(a1.subset(), a2.subset());
+        // The window starts at 3 * 10 / 5 and wraps around the ring.
+        assertArrayEquals(new Provider[]{fleet[6], fleet[7], fleet[8],
+                fleet[9]}, a1.subset());
+        assertArrayEquals(new Provider[]{fleet[8], fleet[9], fleet[0]},
+                new Aperture(fleet, 4, 5, 3, 3).subset());
+    }
+    
+    @Test
+    public void testAdjust()
+    {
+        final Provider[] fleet = fleet(10);
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        Mockito.when(balancer.getCapacity()).thenReturn(100L);
+        
+        try (final Aperture aperture = new Aperture(fleet, 0, 1, 2, 3)) {
+            aperture.start(balancer, 60_000);
+            
+            Mockito.when(balancer.getAvailableCapacity()).thenReturn(10L);
+            aperture.adjust();
+            
+            Mockito.verify(balancer).addProvider(fleet[2]);
+            assertEquals(3, aperture.getSize());
+            
+            // The maximum size is reached.
+            aperture.adjust();
+            
+            Mockito.verify(balancer, Mockito.times(1)).addProvider(any());
+            
+            Mockito.when(balancer.getAvailableCapacity()).thenReturn(50L);
+            aperture.adjust();
+            
+            Mockito.verify(balancer, Mockito.never()).removeProvider(any());
+            
+            Mockito.when(balancer.getAvailableCapacity()).thenReturn(90L);
+            aperture.adjust();
+            
+            Mockito.verify(balancer).removeProvider("p2");
+            assertEquals(2, aperture.getSize());
+            
+            // The minimum size is reached.
+            aperture.adjust();
+            
+            Mockito.verify(balancer, Mockito.times(1)).removeProvider(any());
+            assertArrayEquals(new Provider[]{fleet[0], fleet[1]},
+                    aperture.subset());
+        }
+    }
+    
+    @Test
+    public void testInvalidArguments()
+    {
+        final Provider[] fleet = fleet(3);
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> new Aperture(new Provider[0], 0, 1, 1, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Aperture(fleet, 1, 1, 1, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Aperture(fleet, 0, 1, 2, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Aperture(fleet, 0, 1, 1, 4));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Aperture(new Provider[]{fleet[0], fleet[0]},
+                        0, 1, 1, 1));
+    }
+    
+    /**
+     * @return providers p0, p1, ... ordered by UUID.
+     */
+    private static Provider[] fleet(final int n)
+    {
+        final Provider[] result = new Provider[n];
+        for (int i = 0; i < n; ++i) {
+            result[i] = Mockito.mock(Provider.class);
+            Mockito.when(result[i].getUuid()).thenReturn("p" + i);
+        }
+        return result;
+    }
+}
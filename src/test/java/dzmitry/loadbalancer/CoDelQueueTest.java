@@ -0,0 +1,189 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class CoDelQueueTest
+{
+    @Test
+    public void testFifoWithoutOverload() throws Exception
+    {
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        final Semaphore gate = new Semaphore(0);
+        final CoDelQueue queue = new CoDelQueue(
+                balancer(calls, gate), 10, 1000, 10_000);
+        
+        final Request a = new Request(queue, "A");
+        awaitCalls(calls, 1);
+        final Request b = new Request(queue, "B");
+        awaitQueueLength(queue, 1);
+        final Request c = new Request(queue, "C");
+        awaitQueueLength(queue, 2);
+        
+        gate.release(3);
+        
+        a.join();
+        b.join();
+        c.join();
+        assertEquals(List.of("A", "B", "C"), calls);
+        assertEquals("B", b.result);
+        assertEquals("C", c.result);
+        assertFalse(queue.isOverloaded());
+        assertEquals(0, queue.getShedCount());
+    }
+    
+    @Test
+    public void testOverloadShedsOldestAndServesNewest() throws Exception
+    {
+        final AtomicLong clock = new AtomicLong();
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        final Semaphore gate = new Semaphore(0);
+        final CoDelQueue queue = new CoDelQueue(
+                balancer(calls, gate), 10, 2000, 20_000, clock::get);
+        
+        final Request a = new Request(queue, "A");
+        awaitCalls(calls, 1);
+        final Request b = new Request(queue, "B");
+        awaitQueueLength(queue, 1);
+        final Request c = new Request(queue, "C");
+        awaitQueueLength(queue, 2);
+        
+        // The first interval is over. Queueing is not seen before it.
+        clock.set(TimeUnit.SECONDS.toNanos(30));
+        gate.release();
+        a.join();
+        awaitCalls(calls, 2);
+        assertFalse(queue.isOverloaded());
+        
+        clock.set(TimeUnit.SECONDS.toNanos(49));
+        final Request d = new Request(queue, "D");
+        awaitQueueLength(queue, 2);
+        
+        /* No request has passed the queue below the target during
+         * the last interval.
+         */
+        clock.set(TimeUnit.SECONDS.toNanos(50));
+        gate.release(2);
+        
+        b.join();
+        c.join();
+        d.join();
+        assertTrue(queue.isOverloaded());
+        assertEquals(List.of("A", "B", "D"), calls);
+        assertTrue(c.failure instanceof IllegalStateException);
+        assertEquals("D", d.result);
+        assertEquals(1, queue.getShedCount());
+    }
+    
+    @Test
+    public void testFullQueueShedsOldest() throws Exception
+    {
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        final Semaphore gate = new Semaphore(0);
+        final CoDelQueue queue = new CoDelQueue(
+                balancer(calls, gate), 1, 1000, 10_000);
+        
+        final Request a = new Request(queue, "A");
+        awaitCalls(calls, 1);
+        final Request b = new Request(queue, "B");
+        awaitQueueLength(queue, 1);
+        final Request c = new Request(queue, "C");
+        b.join();
+        
+        assertTrue(b.failure instanceof IllegalStateException);
+        assertEquals(1, queue.getQueueLength());
+        
+        gate.release(2);
+        a.join();
+        c.join();
+        assertEquals(List.of("A", "C"), calls);
+        assertEquals("C", c.result);
+    }
+    
+    @Test
+    public void testInvalidArguments()
+    {
+        final LoadBalancer balancer = balancer(
+                new CopyOnWriteArrayList<>(), new Semaphore(0));
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> new CoDelQueue(balancer, 0, 10, 100));
+        assertThrows(IllegalArgumentException.class,
+                () -> new CoDelQueue(balancer, 10, 0, 100));
+        assertThrows(IllegalArgumentException.class,
+                () -> new CoDelQueue(balancer, 10, 100, 10));
+    }
+    
+    /* Runs a request in its own thread. Results are read after join()
+     * which gives the happens-before relation.
+     */
+    private static class Request
+    {
+        private final Thread thread;
+        private String result;
+        private RuntimeException failure;
+        
+        public Request(final CoDelQueue queue, final String name)
+        {
+            thread = new Thread(() -> {
+                try {
+                    result = queue.get();
+                }
+                catch (RuntimeException ex) {
+                    failure = ex;
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        public void join() throws InterruptedException
+        {
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+    
+    /**
+     * @return a load balancer which processes one request at a time. Each
+     *      request records its thread name and waits for a gate permit.
+     */
+    private static LoadBalancer balancer(final List<String> calls,
+            final Semaphore gate)
+    {
+        final Provider p1 = Mockito.mock(Provider.class);
+        Mockito.when(p1.getUuid()).thenReturn("p1");
+        Mockito.when(p1.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
+        Mockito.when(p1.get()).thenAnswer(inv -> {
+            final String name = Thread.currentThread().getName();
+            calls.add(name);
+            gate.acquire();
+            return name;
+        });
+        return new LoadBalancer(new Provider[]{p1}, 1);
+    }
+    
+    private static void awaitCalls(final List<String> calls, final int n)
+            throws InterruptedException
+    {
+        while (calls.size() < n) {
+            Thread.sleep(5);
+        }
+    }
+    
+    private static void awaitQueueLength(final CoDelQueue queue, final int n)
+            throws InterruptedException
+    {
+        while (queue.getQueueLength() < n) {
+            Thread.sleep(5);
+        }
+    }
+}
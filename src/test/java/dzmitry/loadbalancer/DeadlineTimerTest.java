@@ -0,0 +1,78 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+public class DeadlineTimerTest
+{
+    @Test
+    public void testExpiresInOrderNotEarly() throws Exception
+    {
+        final List<Long> fired = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        try (final DeadlineTimer timer = new DeadlineTimer(
+                TimeUnit.MILLISECONDS.toNanos(1), "test-timer")) {
+            final long start = System.nanoTime();
+            for (final long delayMs : new long[]{30, 10, 20}) {
+                timer.schedule(() -> {
+                    final long elapsed = System.nanoTime() - start;
+                    assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(
+                            delayMs), "early: " + elapsed);
+                    fired.add(delayMs);
+                    latch.countDown();
+                }, TimeUnit.MILLISECONDS.toNanos(delayMs));
+            }
+            
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        
+        assertEquals(List.of(10L, 20L, 30L), fired);
+    }
+    
+    @Test
+    public void testCancel() throws Exception
+    {
+        final AtomicBoolean cancelledFired = new AtomicBoolean();
+        final CountDownLatch latch = new CountDownLatch(1);
+        try (final DeadlineTimer timer = new DeadlineTimer(
+                TimeUnit.MILLISECONDS.toNanos(1), "test-timer")) {
+            final DeadlineTimer.Timeout timeout = timer.schedule(
+                    () -> cancelledFired.set(true),
+                    TimeUnit.MILLISECONDS.toNanos(10));
+            timer.schedule(latch::countDown,
+                    TimeUnit.MILLISECONDS.toNanos(40));
+            timeout.cancel();
+            
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        
+        assertFalse(cancelledFired.get());
+    }
+    
+    @Test
+    public void testDelayLongerThanWheelRotation() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        // The wheel rotates each 512 * 0.1 ms.
+        try (final DeadlineTimer timer = new DeadlineTimer(
+                TimeUnit.MICROSECONDS.toNanos(100), "test-timer")) {
+            final long start = System.nanoTime();
+            final long[] elapsed = new long[1];
+            timer.schedule(() -> {
+                elapsed[0] = System.nanoTime() - start;
+                latch.countDown();
+            }, TimeUnit.MILLISECONDS.toNanos(120));
+            
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(120),
+                    "early: " + elapsed[0]);
+        }
+    }
+}
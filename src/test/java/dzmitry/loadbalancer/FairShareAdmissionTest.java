@@ -0,0 +1,155 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class FairShareAdmissionTest
+{
+    @Test
+    public void testLessImportantClassShedFirst()
+    {
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        Mockito.when(balancer.getCapacity()).thenReturn(10L);
+        final TrafficClass critical = new TrafficClass("critical", 0, 0.5, 1);
+        final TrafficClass batch = new TrafficClass("batch", 1, 0.2, 0.8);
+        
+        final FairShareAdmission admission = new FairShareAdmission(
+                balancer, new TrafficClass[]{critical, batch});
+        
+        /* Batch requests can burst over their guarantee but not into
+         * the unused guarantee of critical requests.
+         */
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(admission.tryAcquire(batch));
+        }
+        assertFalse(admission.tryAcquire(batch));
+        
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(admission.tryAcquire(critical));
+        }
+        // The pool is saturated.
+        assertFalse(admission.tryAcquire(critical));
+        
+        for (int i = 0; i < 3; ++i) {
+            admission.release(batch);
+        }
+        assertEquals(2, admission.getInFlight(batch));
+        
+        // Critical requests burst into capacity freed by batch requests.
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(admission.tryAcquire(critical));
+        }
+        assertEquals(8, admission.getInFlight(critical));
+        assertFalse(admission.tryAcquire(critical));
+        assertFalse(admission.tryAcquire(batch));
+        
+        admission.release(critical);
+        
+        // Batch requests are always allowed to use their guarantee.
+        assertTrue(admission.tryAcquire(batch));
+    }
+    
+    @Test
+    public void testBurstLimit()
+    {
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        Mockito.when(balancer.getCapacity()).thenReturn(10L);
+        final TrafficClass tenant1 = new TrafficClass("tenant1", 0, 0.3, 1);
+        final TrafficClass tenant2 = new TrafficClass("tenant2", 0, 0.3, 0.6);
+        
+        final FairShareAdmission admission = new FairShareAdmission(
+                balancer, new TrafficClass[]{tenant1, tenant2});
+        
+        // The unused guarantee of a class of the same priority is reserved.
+        for (int i = 0; i < 7; ++i) {
+            assertTrue(admission.tryAcquire(tenant1));
+        }
+        assertFalse(admission.tryAcquire(tenant1));
+        
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(admission.tryAcquire(tenant2));
+        }
+        // The pool is saturated.
+        assertFalse(admission.tryAcquire(tenant2));
+        
+        for (int i = 0; i < 7; ++i) {
+            admission.release(tenant1);
+        }
+        
+        // The burst share is the limit.
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(admission.tryAcquire(tenant2));
+        }
+        assertFalse(admission.tryAcquire(tenant2));
+        assertEquals(6, admission.getInFlight(tenant2));
+    }
+    
+    @Test
+    public void testSmallCapacity()
+    {
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        Mockito.when(balancer.getCapacity()).thenReturn(3L);
+        final TrafficClass small = new TrafficClass("small", 0, 0.3, 0.3);
+        final TrafficClass large = new TrafficClass("large", 0, 0.7, 1);
+        
+        final FairShareAdmission admission = new FairShareAdmission(
+                balancer, new TrafficClass[]{small, large});
+        
+        // The share is less than one request but the class is not starved.
+        assertTrue(admission.tryAcquire(small));
+        assertFalse(admission.tryAcquire(small));
+        
+        for (int i = 0; i < 2; ++i) {
+            assertTrue(admission.tryAcquire(large));
+        }
+        // The pool is saturated.
+        assertFalse(admission.tryAcquire(large));
+        
+        admission.release(small);
+        assertTrue(admission.tryAcquire(small));
+    }
+    
+    @Test
+    public void testGet()
+    {
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        Mockito.when(balancer.getCapacity()).thenReturn(1L);
+        Mockito.when(balancer.get())
+                .thenReturn("val1")
+                .thenThrow(new IllegalStateException());
+        final TrafficClass tenant1 = new TrafficClass("tenant1", 0, 1, 1);
+        
+        final FairShareAdmission admission = new FairShareAdmission(
+                balancer, new TrafficClass[]{tenant1});
+        
+        assertEquals("val1", admission.get(tenant1));
+        assertThrows(IllegalStateException.class, () -> admission.get(tenant1));
+        assertEquals(0, admission.getInFlight(tenant1));
+        
+        assertTrue(admission.tryAcquire(tenant1));
+        assertThrows(IllegalStateException.class, () -> admission.get(tenant1));
+        Mockito.verify(balancer, Mockito.times(2)).get();
+    }
+    
+    @Test
+    public void testInvalidClasses()
+    {
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        final TrafficClass tenant1 = new TrafficClass("tenant1", 0, 0.6, 1);
+        final TrafficClass tenant2 = new TrafficClass("tenant2", 0, 0.6, 1);
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> new TrafficClass("t", 0, 0.6, 0.5));
+        assertThrows(IllegalArgumentException.class, () -> new FairShareAdmission(
+                balancer, new TrafficClass[]{tenant1, tenant2}));
+        assertThrows(IllegalArgumentException.class, () -> new FairShareAdmission(
+                balancer, new TrafficClass[]{tenant1, tenant1}));
+        
+        final FairShareAdmission admission = new FairShareAdmission(
+                balancer, new TrafficClass[]{tenant1});
+        assertThrows(IllegalArgumentException.class,
+                () -> admission.tryAcquire(tenant2));
+    }
+}
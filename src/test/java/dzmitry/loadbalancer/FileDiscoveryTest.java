@@ -0,0 +1,194 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileDiscoveryTest
+{
+    @TempDir
+    Path dir;
+    
+    @Test
+    public void testIncrementalSync() throws Exception
+    {
+        final Path file = dir.resolve("members");
+        write(file, "# membership", "p1 zone1", "p2 zone1", "");
+        final List<String> created = new ArrayList<>();
+        
+        try (final FileDiscovery discovery = new FileDiscovery(file,
+                (uuid, attributes) -> {
+                    created.add(uuid + " " + attributes);
+                    return new Provider(uuid, attributes, 0);
+                })) {
+            final LoadBalancer balancer = new LoadBalancer(
+                    discovery.load(), SelectorType.ROUND_ROBIN, 3);
+            final NodeEventStream.Subscription sub = balancer.subscribe();
+            final List<String> events = new ArrayList<>();
+            final NodeEventListener listener = (type, uuid) -> {
+                events.add(type + ":" + uuid);
+            };
+            
+            discovery.start(balancer);
+            
+            // Nothing changed since loading.
+            assertEquals(0, sub.poll(listener, 10));
+            
+            // p1 is removed, p2 is moved to another zone, p3 is added.
+            write(file, "p2 zone2", "p3 zone1");
+            // Applied once whether the watcher is faster or not.
+            discovery.sync();
+            
+            assertEquals(4, sub.poll(listener, 10));
+            assertEquals(Arrays.asList("REMOVED:p1", "REMOVED:p2",
+                    "ADDED:p2", "ADDED:p3"), events);
+            assertEquals(Arrays.asList("p1 zone1", "p2 zone1", "p2 zone2",
+                    "p3 zone1"), created);
+            assertEquals(new HashSet<>(Arrays.asList("p2", "p3")),
+                    new HashSet<>(Arrays.asList(
+                            balancer.get(), balancer.get())));
+            
+            // A malformed file does not change the membership.
+            write(file, "p2 zone2", "p2 zone3");
+            assertThrows(IllegalArgumentException.class,
+                    () -> discovery.sync());
+            assertEquals(0, sub.poll(listener, 10));
+        }
+    }
+    
+    @Test
+    public void testInvalidMembershipNotApplied() throws Exception
+    {
+        final Path file = dir.resolve("members");
+        final String[] lines = new String[10];
+        for (int i = 0; i < lines.length; ++i) {
+            lines[i] = "p" + i;
+        }
+        write(file, lines);
+        
+        try (final FileDiscovery discovery = new FileDiscovery(file,
+                (uuid, attributes) -> new Provider(uuid, null, 0))) {
+            final LoadBalancer balancer = new LoadBalancer(
+                    discovery.load(), SelectorType.ROUND_ROBIN, 3);
+            discovery.start(balancer);
+            // Syncing explicitly only.
+            discovery.close();
+            final NodeEventStream.Subscription sub = balancer.subscribe();
+            final NodeEventListener listener = (type, uuid) -> {};
+            
+            // p0 is removed but two providers are added over the maximum.
+            lines[0] = "p10";
+            write(file, concat(lines, "p11"));
+            assertThrows(IllegalStateException.class, () -> discovery.sync());
+            
+            assertEquals(0, sub.poll(listener, 10));
+            assertEquals(30, balancer.getCapacity());
+            
+            // The UUID is taken by a provider added directly.
+            balancer.removeProvider("p9");
+            balancer.addProvider(new Provider("p10", null, 0));
+            assertEquals(2, sub.poll(listener, 10));
+            assertThrows(IllegalArgumentException.class,
+                    () -> discovery.sync());
+            
+            assertEquals(0, sub.poll(listener, 10));
+            assertEquals(30, balancer.getCapacity());
+            
+            balancer.removeProvider("p10");
+            assertEquals(1, sub.poll(listener, 10));
+            discovery.sync();
+            
+            // p0 is removed, p10 and p11 are added. p9 is removed already.
+            assertEquals(3, sub.poll(listener, 10));
+            assertEquals(30, balancer.getCapacity());
+        }
+    }
+    
+    @Test
+    public void testWatch() throws Exception
+    {
+        final Path file = dir.resolve("members");
+        write(file, "p1");
+        
+        try (final FileDiscovery discovery = new FileDiscovery(file,
+                (uuid, attributes) -> new Provider(uuid, null, 0))) {
+            final LoadBalancer balancer = new LoadBalancer(
+                    discovery.load(), SelectorType.ROUND_ROBIN, 3);
+            discovery.start(balancer);
+            
+            write(file, "p1", "p2");
+            
+            final long deadline = System.nanoTime() +
+                    TimeUnit.SECONDS.toNanos(30);
+            while (balancer.getCapacity() < 6) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals(new HashSet<>(Arrays.asList("p1", "p2")),
+                    new HashSet<>(Arrays.asList(
+                            balancer.get(), balancer.get())));
+        }
+    }
+    
+    @Test
+    public void testWatch_FileRewrittenInPlace() throws Exception
+    {
+        final Path file = dir.resolve("members");
+        write(file, "p1", "p2");
+        
+        try (final FileDiscovery discovery = new FileDiscovery(file,
+                (uuid, attributes) -> new Provider(uuid, null, 0))) {
+            final LoadBalancer balancer = new LoadBalancer(
+                    discovery.load(), SelectorType.ROUND_ROBIN, 3);
+            final NodeEventStream.Subscription sub = balancer.subscribe();
+            final List<String> events = new ArrayList<>();
+            discovery.start(balancer);
+            
+            // The watcher sees the file truncated before it is written.
+            Files.write(file, new byte[0]);
+            Thread.sleep(FileDiscovery.SETTLE_MS / 5);
+            Files.write(file, Arrays.asList("p1", "p2", "p3"),
+                    StandardCharsets.UTF_8);
+            
+            final long deadline = System.nanoTime() +
+                    TimeUnit.SECONDS.toNanos(30);
+            while (balancer.getCapacity() < 9) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            sub.poll((type, uuid) -> events.add(type + ":" + uuid), 10);
+            assertEquals(Arrays.asList("ADDED:p3"), events);
+        }
+    }
+    
+    private static String[] concat(final String[] lines, final String line)
+    {
+        final String[] result = Arrays.copyOf(lines, lines.length + 1);
+        result[lines.length] = line;
+        return result;
+    }
+    
+    /**
+     * Replaces the file atomically as discovery agents do so that
+     * the watcher never sees a partially written file.
+     */
+    private static void write(final Path file, final String... lines)
+            throws Exception
+    {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
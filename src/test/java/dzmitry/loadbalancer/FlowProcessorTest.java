@@ -0,0 +1,347 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class FlowProcessorTest
+{
+    @Test
+    public void testStreamWithinCapacity() throws Exception
+    {
+        final AtomicInteger concurrency = new AtomicInteger();
+        final AtomicInteger maxConcurrency = new AtomicInteger();
+        final Provider p1 = provider("p1", concurrency, maxConcurrency);
+        final Provider p2 = provider("p2", concurrency, maxConcurrency);
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 2);
+        
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final Set<String> results = new HashSet<>();
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        try (final SubmissionPublisher<String> publisher =
+                new SubmissionPublisher<>()) {
+            final FlowProcessor processor =
+                    new FlowProcessor(balancer, executor);
+            publisher.subscribe(processor);
+            processor.subscribe(new Flow.Subscriber<String>() {
+                @Override
+                public void onSubscribe(final Flow.Subscription s)
+                {
+                    s.request(Long.MAX_VALUE);
+                }
+                
+                @Override
+                public void onNext(final String item)
+                {
+                    results.add(item);
+                }
+                
+                @Override
+                public void onError(final Throwable throwable)
+                {
+                    failure[0] = throwable;
+                    done.countDown();
+                }
+                
+                @Override
+                public void onComplete()
+                {
+                    done.countDown();
+                }
+            });
+            
+            for (int i = 0; i < 100; ++i) {
+                publisher.submit("k" + i);
+            }
+            publisher.close();
+            
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        
+        assertNull(failure[0]);
+        assertEquals(100, results.size());
+        assertTrue(results.contains("k42"));
+        assertTrue(maxConcurrency.get() <= 4, "max: " + maxConcurrency);
+    }
+    
+    @Test
+    public void testDemandFollowsCapacity()
+    {
+        final Provider p1 = echoProvider("p1");
+        final Provider p2 = echoProvider("p2");
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 2);
+        final List<Runnable> tasks = new ArrayList<>();
+        final Flow.Subscription upstream =
+                Mockito.mock(Flow.Subscription.class);
+        final Flow.Subscriber<String> downstream =
+                Mockito.mock(Flow.Subscriber.class);
+        
+        final FlowProcessor processor =
+                new FlowProcessor(balancer, tasks::add);
+        processor.subscribe(downstream);
+        final ArgumentCaptor<Flow.Subscription> subscription =
+                ArgumentCaptor.forClass(Flow.Subscription.class);
+        Mockito.verify(downstream).onSubscribe(subscription.capture());
+        
+        processor.onSubscribe(upstream);
+        
+        Mockito.verifyNoInteractions(upstream);
+        
+        subscription.getValue().request(10);
+        
+        // Capacity of two nodes.
+        Mockito.verify(upstream).request(4);
+        
+        for (int i = 0; i < 4; ++i) {
+            processor.onNext("k" + i);
+        }
+        balancer.excludeNode("p2");
+        tasks.remove(0).run();
+        
+        // Three requests in flight while the capacity is two.
+        Mockito.verify(upstream, Mockito.times(1)).request(anyLong());
+        
+        tasks.remove(0).run();
+        tasks.remove(0).run();
+        
+        Mockito.verify(upstream).request(1);
+        Mockito.verify(downstream, Mockito.times(3)).onNext(anyString());
+        
+        processor.onNext("k4");
+        processor.onComplete();
+        tasks.remove(0).run();
+        
+        Mockito.verify(downstream, Mockito.never()).onComplete();
+        
+        tasks.remove(0).run();
+        
+        Mockito.verify(downstream).onNext("k4");
+        Mockito.verify(downstream).onComplete();
+        Mockito.verify(downstream, Mockito.never()).onError(any());
+    }
+    
+    @Test
+    public void testCapacityShrinkIsBackpressure() throws Exception
+    {
+        final CountDownLatch entered = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Provider p1 = blockingProvider("p1", entered, release);
+        final Provider p2 = blockingProvider("p2", entered, release);
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 2);
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Flow.Subscription upstream =
+                Mockito.mock(Flow.Subscription.class);
+        final Flow.Subscriber<String> downstream =
+                Mockito.mock(Flow.Subscriber.class);
+        Mockito.doAnswer(inv -> {
+            inv.<Flow.Subscription>getArgument(0).request(10);
+            return null;
+        }).when(downstream).onSubscribe(any());
+        
+        final FlowProcessor processor =
+                new FlowProcessor(balancer, tasks::add);
+        processor.subscribe(downstream);
+        processor.onSubscribe(upstream);
+        
+        Mockito.verify(upstream).request(4);
+        
+        for (int i = 0; i < 4; ++i) {
+            processor.onNext("k" + i);
+        }
+        balancer.excludeNode("p2");
+        
+        // Four requests in flight compete for the capacity of two.
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            final Runnable task = tasks.poll();
+            final Thread t = new Thread(task);
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        final long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(10);
+        while (balancer.getRejectedOverCapacity() < 2) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        
+        // The rejected requests wait instead of failing the stream.
+        Mockito.verify(downstream, Mockito.never()).onError(any());
+        Mockito.verify(upstream, Mockito.never()).cancel();
+        assertTrue(tasks.isEmpty());
+        
+        release.countDown();
+        for (final Thread t : threads) {
+            t.join(10_000);
+        }
+        
+        // Retried as the requests in flight complete.
+        assertEquals(2, tasks.size());
+        tasks.poll().run();
+        tasks.poll().run();
+        
+        for (int i = 0; i < 4; ++i) {
+            Mockito.verify(downstream).onNext("k" + i);
+        }
+        Mockito.verify(downstream, Mockito.never()).onError(any());
+        // Demand follows the capacity of the remaining node.
+        Mockito.verify(upstream, Mockito.times(2)).request(1);
+    }
+    
+    @Test
+    public void testRetryRunsInExecutor() throws Exception
+    {
+        final Provider p1 = echoProvider("p1");
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.ROUND_ROBIN, 2);
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final Flow.Subscription upstream =
+                Mockito.mock(Flow.Subscription.class);
+        final Flow.Subscriber<String> downstream =
+                Mockito.mock(Flow.Subscriber.class);
+        Mockito.doAnswer(inv -> {
+            inv.<Flow.Subscription>getArgument(0).request(10);
+            return null;
+        }).when(downstream).onSubscribe(any());
+        
+        balancer.excludeNode("p1");
+        final FlowProcessor processor =
+                new FlowProcessor(balancer, tasks::add);
+        processor.subscribe(downstream);
+        processor.onSubscribe(upstream);
+        
+        // No capacity so the check is repeated by the timer.
+        Mockito.verifyNoInteractions(upstream);
+        balancer.includeNode("p1");
+        
+        final long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(10);
+        while (tasks.isEmpty()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        // The timer thread does not signal the upstream itself.
+        Mockito.verifyNoInteractions(upstream);
+        
+        tasks.poll().run();
+        Mockito.verify(upstream).request(2);
+    }
+    
+    @Test
+    public void testFailureTerminatesStream()
+    {
+        final Provider p1 = echoProvider("p1");
+        Mockito.when(p1.get("bad")).thenThrow(new IllegalStateException());
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.ROUND_ROBIN, 2);
+        final Flow.Subscription upstream =
+                Mockito.mock(Flow.Subscription.class);
+        final Flow.Subscriber<String> downstream =
+                Mockito.mock(Flow.Subscriber.class);
+        Mockito.doAnswer(inv -> {
+            inv.<Flow.Subscription>getArgument(0).request(10);
+            return null;
+        }).when(downstream).onSubscribe(any());
+        
+        final FlowProcessor processor = new FlowProcessor(
+                balancer, Runnable::run);
+        processor.subscribe(downstream);
+        processor.onSubscribe(upstream);
+        processor.onNext("k1");
+        processor.onNext("bad");
+        processor.onNext("k2");
+        
+        Mockito.verify(downstream).onNext("k1");
+        Mockito.verify(downstream).onError(any(IllegalStateException.class));
+        Mockito.verify(upstream).cancel();
+        Mockito.verify(downstream, Mockito.never()).onNext("k2");
+    }
+    
+    @Test
+    public void testSecondSubscriberRejected()
+    {
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{echoProvider("p1")}, 2);
+        final FlowProcessor processor = new FlowProcessor(
+                balancer, Runnable::run);
+        final Flow.Subscriber<String> s1 = Mockito.mock(Flow.Subscriber.class);
+        final Flow.Subscriber<String> s2 = Mockito.mock(Flow.Subscriber.class);
+        
+        processor.subscribe(s1);
+        processor.subscribe(s2);
+        
+        Mockito.verify(s1, Mockito.never()).onError(any());
+        Mockito.verify(s2).onSubscribe(notNull());
+        Mockito.verify(s2).onError(any(IllegalStateException.class));
+    }
+    
+    private static Provider echoProvider(final String uuid)
+    {
+        final Provider result = Mockito.mock(Provider.class);
+        Mockito.when(result.getUuid()).thenReturn(uuid);
+        Mockito.when(result.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
+        Mockito.when(result.get(anyString())).thenAnswer(
+                inv -> inv.getArgument(0));
+        return result;
+    }
+    
+    private static Provider blockingProvider(final String uuid,
+            final CountDownLatch entered, final CountDownLatch release)
+    {
+        final Provider result = Mockito.mock(Provider.class);
+        Mockito.when(result.getUuid()).thenReturn(uuid);
+        Mockito.when(result.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
+        Mockito.when(result.get(anyString())).thenAnswer(inv -> {
+            entered.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return inv.getArgument(0);
+        });
+        return result;
+    }
+    
+    private static Provider provider(final String uuid,
+            final AtomicInteger concurrency, final AtomicInteger maxConcurrency)
+    {
+        final Provider result = Mockito.mock(Provider.class);
+        Mockito.when(result.getUuid()).thenReturn(uuid);
+        Mockito.when(result.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
+        Mockito.when(result.get(anyString())).thenAnswer(inv -> {
+            maxConcurrency.accumulateAndGet(
+                    concurrency.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(1);
+                return inv.getArgument(0);
+            }
+            finally {
+                concurrency.decrementAndGet();
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HealthSnapshotTest
+{
+    @TempDir
+    Path dir;
+    
+    @Test
+    public void testSaveAndLoad() throws Exception
+    {
+        final Path file = dir.resolve("health");
+        try (final HealthSnapshot snapshot = new HealthSnapshot(
+                file, 4, 1000, 60_000)) {
+            assertTrue(snapshot.load().isEmpty());
+            
+            final StringBuilder longUuid = new StringBuilder();
+            for (int i = 0; i <= HealthSnapshot.MAX_UUID_BYTES; ++i) {
+                longUuid.append('x');
+            }
+            snapshot.save(new HealthSnapshot.Entry[]{
+                    new HealthSnapshot.Entry("p1", true, 2, 123),
+                    new HealthSnapshot.Entry(longUuid.toString(), true, 0, 1),
+                    new HealthSnapshot.Entry("p2", false, 0, 456)});
+        }
+        
+        try (final HealthSnapshot snapshot = new HealthSnapshot(
+                file, 4, 1000, 60_000)) {
+            final Map<String, HealthSnapshot.Entry> saved = snapshot.load();
+            
+            assertEquals(2, saved.size());
+            assertTrue(saved.get("p1").active);
+            assertEquals(2, saved.get("p1").successfulChecks);
+            assertEquals(123, saved.get("p1").latencyNs);
+            assertFalse(saved.get("p2").active);
+            assertEquals(456, saved.get("p2").latencyNs);
+            
+            // Fewer nodes replace the previous snapshot.
+            snapshot.save(new HealthSnapshot.Entry[]{
+                    new HealthSnapshot.Entry("p3", true, 1, 789)});
+            
+            assertEquals(1, snapshot.load().size());
+            assertEquals(789, snapshot.load().get("p3").latencyNs);
+        }
+    }
+    
+    @Test
+    public void testTooOld() throws Exception
+    {
+        final Path file = dir.resolve("health");
+        try (final HealthSnapshot snapshot = new HealthSnapshot(
+                file, 4, 1000, 60_000)) {
+            snapshot.save(new HealthSnapshot.Entry[]{
+                    new HealthSnapshot.Entry("p1", false, 0, 123)});
+        }
+        
+        Thread.sleep(10);
+        
+        try (final HealthSnapshot snapshot = new HealthSnapshot(
+                file, 4, 1000, 0)) {
+            assertTrue(snapshot.load().isEmpty());
+        }
+    }
+}
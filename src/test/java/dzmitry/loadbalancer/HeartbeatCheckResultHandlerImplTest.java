@@ -1,5 +1,7 @@
 package dzmitry.loadbalancer;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
@@ -54,4 +56,28 @@ public class HeartbeatCheckResultHandlerImplTest
         Mockito.verify(balancer, Mockito.times(3)).includeNode("p1");
         Mockito.verifyNoMoreInteractions(balancer);
     }
+    
+    @Test
+    public void testRemove()
+    {
+        final LoadBalancer balancer = Mockito.mock(LoadBalancer.class);
+        final Provider node = Mockito.mock(Provider.class);
+        Mockito.when(node.getUuid()).thenReturn("p1");
+        
+        final HeartbeatCheckResultHandlerImpl handler =
+                new HeartbeatCheckResultHandlerImpl();
+        
+        handler.handle(true, balancer, node);
+        assertEquals(1, handler.getSuccessfulChecks(balancer, node));
+        
+        handler.remove(balancer, node);
+        assertEquals(0, handler.getSuccessfulChecks(balancer, node));
+        
+        // The count starts over after the state is forgotten.
+        handler.handle(true, balancer, node);
+        Mockito.verifyNoInteractions(balancer);
+        assertEquals(1, handler.getSuccessfulChecks(balancer, node));
+        
+        handler.remove(balancer, node);
+    }
 }
@@ -6,7 +6,11 @@ import static org.mockito.ArgumentMatchers.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
@@ -72,4 +76,30 @@ public class HeartbeatCheckerTest
             }
         }
     }
+    
+    @Test
+    public void testCheckNow() throws Exception
+    {
+        final BlockingQueue<Boolean> results = new LinkedBlockingQueue<>();
+        final CountDownLatch stuck = new CountDownLatch(1);
+        
+        try (final HeartbeatChecker checker = new HeartbeatChecker(1)) {
+            checker.checkNow(() -> true, results::add, 10_000);
+            
+            assertEquals(Boolean.TRUE, results.poll(10, TimeUnit.SECONDS));
+            
+            // A stuck check fails on its timeout.
+            checker.checkNow(() -> {
+                try {
+                    return stuck.await(60, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }, results::add, 10);
+            
+            assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+            stuck.countDown();
+        }
+    }
 }
@@ -0,0 +1,204 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class HeartbeatRegistryTest
+{
+    @Test
+    public void testProbeSharedAndReferenceCounted()
+    {
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final Future<?> task = Mockito.mock(Future.class);
+        final List<Consumer<Boolean>> probeHandlers = new ArrayList<>();
+        Mockito.doAnswer(inv -> {
+            probeHandlers.add(inv.getArgument(1));
+            return task;
+        }).when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+        final Provider p1 = Mockito.mock(Provider.class);
+        final Consumer<Boolean> h1 = Mockito.mock(Consumer.class);
+        final Consumer<Boolean> h2 = Mockito.mock(Consumer.class);
+        
+        final HeartbeatRegistry registry = new HeartbeatRegistry(checker);
+        final HeartbeatChecker c1 = registry.newChecker();
+        final HeartbeatChecker c2 = registry.newChecker();
+        
+        final Future<?> r1 = c1.registerChecker(p1, h1, 123, 456);
+        final Future<?> r2 = c2.registerChecker(p1, h2, 789, 456);
+        
+        Mockito.verify(checker).registerChecker(
+                same(p1), notNull(), eq(123L), eq(456L));
+        assertEquals(1, registry.getProbeCount());
+        assertEquals(1, probeHandlers.size());
+        
+        probeHandlers.get(0).accept(Boolean.TRUE);
+        
+        Mockito.verify(h1).accept(Boolean.TRUE);
+        Mockito.verify(h2).accept(Boolean.TRUE);
+        
+        assertTrue(r1.cancel(false));
+        assertTrue(r1.isCancelled());
+        Mockito.verifyNoInteractions(task);
+        assertEquals(1, registry.getProbeCount());
+        
+        probeHandlers.get(0).accept(Boolean.FALSE);
+        
+        Mockito.verify(h1, Mockito.never()).accept(Boolean.FALSE);
+        Mockito.verify(h2).accept(Boolean.FALSE);
+        
+        // Repeated cancellation does not release the probe.
+        r1.cancel(false);
+        Mockito.verifyNoInteractions(task);
+        
+        r2.cancel(false);
+        Mockito.verify(task).cancel(false);
+        assertEquals(0, registry.getProbeCount());
+        
+        // The next registration starts a new probe.
+        c1.registerChecker(p1, h1, 123, 456);
+        Mockito.verify(checker, Mockito.times(2)).registerChecker(
+                same(p1), notNull(), eq(123L), eq(456L));
+    }
+    
+    @Test
+    public void testFailingSubscriberDoesNotStopOthers()
+    {
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final List<Consumer<Boolean>> probeHandlers = new ArrayList<>();
+        Mockito.doAnswer(inv -> {
+            probeHandlers.add(inv.getArgument(1));
+            return Mockito.mock(Future.class);
+        }).when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+        final Provider p1 = Mockito.mock(Provider.class);
+        final Consumer<Boolean> h1 = Mockito.mock(Consumer.class);
+        final Consumer<Boolean> h2 = Mockito.mock(Consumer.class);
+        Mockito.doThrow(new IllegalStateException()).when(h1).accept(any());
+        
+        final HeartbeatRegistry registry = new HeartbeatRegistry(checker);
+        registry.newChecker().registerChecker(p1, h1, 123, 456);
+        registry.newChecker().registerChecker(p1, h2, 123, 456);
+        
+        final Thread t = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler exHandler =
+                t.getUncaughtExceptionHandler();
+        final List<Throwable> errors = new ArrayList<>();
+        t.setUncaughtExceptionHandler((thread, ex) -> errors.add(ex));
+        try {
+            probeHandlers.get(0).accept(Boolean.TRUE);
+        }
+        finally {
+            t.setUncaughtExceptionHandler(exHandler);
+        }
+        
+        Mockito.verify(h2).accept(Boolean.TRUE);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof IllegalStateException);
+    }
+    
+    @Test
+    public void testLoadBalancersShareProbes()
+    {
+        final Provider p1 = Mockito.mock(Provider.class);
+        final Provider p2 = Mockito.mock(Provider.class);
+        final Provider p3 = Mockito.mock(Provider.class);
+        Mockito.when(p1.getUuid()).thenReturn("p1");
+        Mockito.when(p2.getUuid()).thenReturn("p2");
+        Mockito.when(p3.getUuid()).thenReturn("p3");
+        final HeartbeatCheckResultHandler handler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        
+        try (final HeartbeatRegistry registry = new HeartbeatRegistry(1)) {
+            final LoadBalancer b1 = new LoadBalancer(
+                    new Provider[]{p1, p2}, SelectorType.RANDOM, 3,
+                    registry.newChecker(), handler, 60_000, 1000);
+            final LoadBalancer b2 = new LoadBalancer(
+                    new Provider[]{p2, p3}, SelectorType.RANDOM, 3,
+                    registry.newChecker(), handler, 60_000, 1000);
+            
+            b1.startHeartbeatChecking();
+            b2.startHeartbeatChecking();
+            
+            assertEquals(3, registry.getProbeCount());
+            
+            b2.removeProvider("p2");
+            
+            assertEquals(3, registry.getProbeCount());
+            
+            b1.close();
+            
+            assertEquals(1, registry.getProbeCount());
+            
+            b2.close();
+            
+            assertEquals(0, registry.getProbeCount());
+        }
+    }
+    
+    @Test
+    public void testSharedProbeCountedOncePerLoadBalancer()
+    {
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final Map<Provider, Consumer<Boolean>> probeHandlers = new HashMap<>();
+        Mockito.doAnswer(inv -> {
+            probeHandlers.put(inv.getArgument(0), inv.getArgument(1));
+            return Mockito.mock(Future.class);
+        }).when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+        final Provider p1 = new Provider("p1", null, 0);
+        final Provider p2 = new Provider("p2", null, 0);
+        final HeartbeatCheckResultHandler handler =
+                new HeartbeatCheckResultHandlerImpl();
+        
+        final HeartbeatRegistry registry = new HeartbeatRegistry(checker);
+        final LoadBalancer b1 = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.RANDOM, 3,
+                registry.newChecker(), handler, 60_000, 1000);
+        final LoadBalancer b2 = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.RANDOM, 3,
+                registry.newChecker(), handler, 60_000, 1000);
+        b1.startHeartbeatChecking();
+        b2.startHeartbeatChecking();
+        
+        probeHandlers.get(p1).accept(Boolean.FALSE);
+        
+        assertEquals(3, b1.getCapacity());
+        assertEquals(3, b2.getCapacity());
+        
+        // Each load balancer needs two successful checks of its own.
+        probeHandlers.get(p1).accept(Boolean.TRUE);
+        
+        assertEquals(3, b1.getCapacity());
+        assertEquals(3, b2.getCapacity());
+        
+        probeHandlers.get(p1).accept(Boolean.TRUE);
+        
+        assertEquals(6, b1.getCapacity());
+        assertEquals(6, b2.getCapacity());
+    }
+    
+    @Test
+    public void testClosedChecker()
+    {
+        try (final HeartbeatRegistry registry = new HeartbeatRegistry(1)) {
+            final HeartbeatChecker checker = registry.newChecker();
+            checker.close();
+            
+            assertThrows(IllegalStateException.class,
+                    () -> checker.registerChecker(
+                            Mockito.mock(Provider.class), result -> {},
+                            60_000, 1000));
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Guards the steady-state paths of the load balancer against garbage and
+ * contention. Allocation is measured with per-thread allocated-byte
+ * counters of the JVM. Throughput and latency are compared with
+ * the baselines of {@code hot-path-baseline.properties}.
+ */
+public class HotPathTest
+{
+    private static final int WARM_UP = 200_000;
+    private static final int ITERATIONS = 100_000;
+    /* The runtime can allocate a little once in a while (e.g. when
+     * a method is recompiled) so less than a byte per ten calls passes.
+     * Any allocation per call is at least 16 bytes.
+     */
+    private static final long ALLOCATION_TOLERANCE = ITERATIONS / 10;
+    
+    /* Real providers return a constant (their UUID) so only the load
+     * balancer can allocate. Mocks allocate on each call. Providers are
+     * shared between load balancers so that the heartbeat handler knows
+     * them already.
+     */
+    private static final Provider[] PROVIDERS = {
+        new Provider("p0", "zone0", 0),
+        new Provider("p1", "zone1", 0),
+        new Provider("p2", "zone0", 0),
+    };
+    
+    @Test
+    public void testGetDoesNotAllocate()
+    {
+        for (final SelectorType type : SelectorType.values()) {
+            final LoadBalancer balancer = balancer(type);
+            
+            final long allocated = allocated(balancer::get);
+            
+            assertTrue(allocated < ALLOCATION_TOLERANCE,
+                    type + " allocated: " + allocated);
+        }
+    }
+    
+    @Test
+    public void testGetWithKeyDoesNotAllocate()
+    {
+        final LoadBalancer balancer = balancer(SelectorType.ROUND_ROBIN);
+        
+        final long allocated = allocated(() -> balancer.get("key"));
+        
+        assertTrue(allocated < ALLOCATION_TOLERANCE, "allocated: " + allocated);
+    }
+    
+    @Test
+    public void testGetIntoByteBufferDoesNotAllocate()
+    {
+        final Provider[] providers = new Provider[3];
+        for (int i = 0; i < providers.length; ++i) {
+            providers[i] = new BufferProvider("p" + i);
+        }
+        final LoadBalancer balancer = new LoadBalancer(
+                providers, SelectorType.ROUND_ROBIN, 4);
+        final ByteBuffer dst = ByteBuffer.allocateDirect(16);
+        
+        final long allocated = allocated(() -> {
+            dst.clear();
+            balancer.get(dst);
+        });
+        
+        assertTrue(allocated < ALLOCATION_TOLERANCE, "allocated: " + allocated);
+    }
+    
+    @Test
+    public void testHeartbeatHandlingDoesNotAllocate()
+    {
+        final LoadBalancer balancer = balancer(SelectorType.ROUND_ROBIN);
+        final Provider down = new Provider("down", null, 0);
+        balancer.addProvider(down);
+        final HeartbeatCheckResultHandler handler =
+                new HeartbeatCheckResultHandlerImpl();
+        final int[] i = new int[1];
+        
+        final long allocated = allocated(() -> {
+            // Live nodes stay included and the dead one stays excluded.
+            handler.handle(true, balancer, PROVIDERS[i[0]++ % 3]);
+            handler.handle(false, balancer, down);
+        });
+        
+        assertTrue(allocated < ALLOCATION_TOLERANCE, "allocated: " + allocated);
+    }
+    
+    @Test
+    public void testThroughputAndLatency() throws Exception
+    {
+        final Properties baseline = new Properties();
+        try (final InputStream in = HotPathTest.class.getResourceAsStream(
+                "/hot-path-baseline.properties")) {
+            if (in == null) {
+                throw new IOException("No baseline.");
+            }
+            baseline.load(in);
+        }
+        final int threads = Integer.parseInt(baseline.getProperty("threads"));
+        final int requests =
+                Integer.parseInt(baseline.getProperty("requestsPerThread"));
+        final long minThroughput =
+                Long.parseLong(baseline.getProperty("minThroughput"));
+        final long maxP99Ns = Long.parseLong(baseline.getProperty("maxP99Ns"));
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                PROVIDERS, SelectorType.ROUND_ROBIN, threads);
+        for (int i = 0; i < WARM_UP; ++i) {
+            balancer.get();
+        }
+        
+        // Latencies are recorded into preallocated arrays.
+        final long[][] latencies = new long[threads][requests];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            final long[] threadLatencies = latencies[t];
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+                for (int i = 0; i < requests; ++i) {
+                    final long startNs = System.nanoTime();
+                    balancer.get();
+                    threadLatencies[i] = System.nanoTime() - startNs;
+                }
+            });
+            workers[t].start();
+        }
+        final long startNs = System.nanoTime();
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        final long elapsedNs = System.nanoTime() - startNs;
+        
+        final long[] all = new long[threads * requests];
+        for (int t = 0; t < threads; ++t) {
+            System.arraycopy(latencies[t], 0, all, t * requests, requests);
+        }
+        Arrays.sort(all);
+        final long p99Ns = all[(int) (all.length * 0.99)];
+        final double throughput = all.length * 1e9 / elapsedNs;
+        
+        assertTrue(throughput >= minThroughput, "throughput: " + throughput +
+                " < baseline " + minThroughput);
+        assertTrue(p99Ns <= maxP99Ns, "p99: " + p99Ns + " ns > baseline " +
+                maxP99Ns);
+    }
+    
+    /**
+     * @return bytes allocated by the current thread in the measured runs
+     *      of the task after warm-up.
+     */
+    private static long allocated(final Runnable task)
+    {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean,
+                "No allocation counters.");
+        final com.sun.management.ThreadMXBean counters =
+                (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(counters.isThreadAllocatedMemorySupported() &&
+                counters.isThreadAllocatedMemoryEnabled(),
+                "Allocation counters are disabled.");
+        final long threadId = Thread.currentThread().getId();
+        
+        for (int i = 0; i < WARM_UP; ++i) {
+            task.run();
+        }
+        // The first call can allocate by itself.
+        counters.getThreadAllocatedBytes(threadId);
+        final long before = counters.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            task.run();
+        }
+        return counters.getThreadAllocatedBytes(threadId) - before;
+    }
+    
+    private static LoadBalancer balancer(final SelectorType type)
+    {
+        if (type == SelectorType.ZONE_AWARE) {
+            return new LoadBalancer(PROVIDERS, "zone0", 4);
+        }
+        return new LoadBalancer(PROVIDERS, type, 4);
+    }
+    
+    private static class BufferProvider extends Provider
+    {
+        public BufferProvider(final String uuid)
+        {
+            super(uuid, null, 0);
+        }
+        
+        @Override
+        public int get(final ByteBuffer dst)
+        {
+            dst.put((byte) 1);
+            return 1;
+        }
+    }
+}
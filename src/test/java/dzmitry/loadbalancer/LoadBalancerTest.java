@@ -3,11 +3,18 @@ package dzmitry.loadbalancer;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BooleanSupplier;
@@ -15,6 +22,7 @@ import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
 
 public class LoadBalancerTest
@@ -87,6 +95,56 @@ public class LoadBalancerTest
         assertEquals("val2", balancer.get());
     }
     
+    @Test
+    public void testGetWithKey()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.get("k1")).thenReturn("val1-k1");
+        
+        final LoadBalancer balancer = new LoadBalancer(new Provider[]{p1}, 3);
+        
+        assertEquals("val1-k1", balancer.get("k1"));
+        Mockito.verify(p1, Mockito.never()).get();
+        
+        balancer.excludeNode("p1");
+        
+        assertThrows(IllegalStateException.class, () -> balancer.get("k1"));
+    }
+    
+    @Test
+    public void testGetBatch()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.getBatch(anyInt())).thenCallRealMethod();
+        final Provider p2 = provider("p2", "val2");
+        Mockito.when(p2.getBatch(2)).thenReturn(new String[]{"a", "b"});
+        Mockito.when(p2.getBatch(3)).thenReturn(new String[]{"a"});
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3);
+        
+        assertArrayEquals(new String[]{"val1", "val1", "val1"},
+                balancer.getBatch(3));
+        assertArrayEquals(new String[]{"a", "b"}, balancer.getBatch(2));
+        
+        // Not enough capacity for the whole batch.
+        assertThrows(IllegalStateException.class, () -> balancer.getBatch(7));
+        assertThrows(IllegalArgumentException.class, () -> balancer.getBatch(0));
+        
+        assertArrayEquals(new String[]{"val1", "val1"}, balancer.getBatch(2));
+        
+        // Wrong number of responses.
+        assertThrows(IllegalStateException.class, () -> balancer.getBatch(3));
+        
+        balancer.excludeNode("p2");
+        
+        // The admitted requests are released in all cases.
+        
+        assertThrows(IllegalStateException.class, () -> balancer.getBatch(4));
+        assertArrayEquals(new String[]{"val1", "val1", "val1"},
+                balancer.getBatch(3));
+    }
+    
     @Test
     public void testNoProviders_RoundRobin()
     {
@@ -186,6 +244,351 @@ public class LoadBalancerTest
         assertEquals("val2", balancer.get());
     }
     
+    @Test
+    public void testShardedRoundRobin()
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        final Provider p3 = provider("p3", "val3");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2, p3}, SelectorType.SHARDED_ROUND_ROBIN, 3);
+        
+        // A single thread uses a single cursor.
+        final HashSet<String> results = new HashSet<>();
+        for (int i = 0; i < 3; ++i) {
+            results.add(balancer.get());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("val1", "val2", "val3")),
+                results);
+        
+        balancer.excludeNode("p2");
+        
+        for (int i = 0; i < 4; ++i) {
+            assertNotEquals("val2", balancer.get());
+        }
+        Mockito.verify(p1, Mockito.times(3)).get();
+        Mockito.verify(p3, Mockito.times(3)).get();
+    }
+    
+    @Test
+    public void testShardedRoundRobin_TooManyRequests() throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(2);
+        final Supplier<String> getImpl = () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        final Provider p1 = provider("p1", getImpl);
+        final Provider p2 = provider("p2", getImpl);
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.SHARDED_ROUND_ROBIN, 1);
+        
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; ++i) {
+            final Thread t = new Thread(() -> {
+                balancer.get();
+            });
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            
+            assertEquals(0, balancer.getAvailableCapacity());
+            final IllegalStateException ex = assertThrows(
+                    IllegalStateException.class, () -> balancer.get());
+            assertEquals("Max number of simultaneous requests reached.",
+                    ex.getMessage());
+        }
+        finally {
+            getLatch.countDown();
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i].join(10_000);
+            }
+        }
+        
+        assertEquals(2, balancer.getAvailableCapacity());
+        assertEquals(0, balancer.shutdown(1000));
+        assertThrows(IllegalStateException.class, () -> balancer.get());
+    }
+    
+    @Test
+    public void testZoneAware()
+    {
+        final Provider p1 = provider("p1", "val1", "a");
+        final Provider p2 = provider("p2", "val2", "a");
+        final Provider p3 = provider("p3", "val3", "b");
+        final Provider p4 = provider("p4", "val4", "c");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2, p3, p4}, "a", 3);
+        
+        final HashSet<String> localValues = new HashSet<>(
+                Arrays.asList("val1", "val2"));
+        final HashSet<String> remoteValues = new HashSet<>(
+                Arrays.asList("val3", "val4"));
+        
+        final HashSet<String> values = new HashSet<>();
+        for (int i = 0; i < 100; ++i) {
+            values.add(balancer.get());
+        }
+        assertEquals(localValues, values);
+        
+        balancer.excludeNode("p1");
+        
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("val2", balancer.get());
+        }
+        
+        balancer.excludeNode("p2");
+        
+        values.clear();
+        for (int i = 0; i < 100; ++i) {
+            values.add(balancer.get());
+        }
+        assertEquals(remoteValues, values);
+        
+        balancer.includeNode("p2");
+        
+        assertEquals("val2", balancer.get());
+    }
+    
+    @Test
+    public void testZoneAware_NoLocalZone()
+    {
+        final Provider p1 = provider("p1", "val1", "a");
+        
+        assertThrows(IllegalArgumentException.class, () -> new LoadBalancer(
+                new Provider[]{p1}, SelectorType.ZONE_AWARE, 3));
+    }
+    
+    @Test
+    public void testZoneAware_LocalNodesSaturated() throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(1);
+        final Provider p1 = provider("p1", () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        Mockito.when(p1.getZone()).thenReturn("a");
+        final Provider p2 = provider("p2", "val2", "b");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, "a", 1);
+        
+        final String[] result = new String[1];
+        final Thread t = new Thread(() -> {
+            result[0] = balancer.get();
+        });
+        t.setDaemon(true);
+        t.start();
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            
+            // The only local node is saturated. Spilling over.
+            assertEquals("val2", balancer.get());
+            
+            getLatch.countDown();
+        }
+        finally {
+            t.join(10_000);
+        }
+        
+        assertEquals("val1", result[0]);
+        assertEquals("val1", balancer.get());
+    }
+    
+    @Test
+    public void testZoneAware_FailingLocalNode()
+    {
+        final Provider p1 = provider("p1", () -> {
+            throw new IllegalStateException("down");
+        });
+        Mockito.when(p1.getZone()).thenReturn("a");
+        final Provider p2 = provider("p2", "val2", "a");
+        final Provider p3 = provider("p3", "val3", "b");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2, p3}, "a", 3);
+        
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1200; ++i) {
+            String val;
+            try {
+                val = balancer.get();
+            }
+            catch (IllegalStateException ex) {
+                val = "failed";
+            }
+            if (i >= 200) {
+                counts.merge(val, 1, Integer::sum);
+            }
+        }
+        
+        // The failing node always has spare slots but gets about 6%.
+        assertTrue(counts.getOrDefault("failed", 0) < 150, counts.toString());
+        // The healthy local node is enough for sequential requests.
+        assertTrue(counts.getOrDefault("val2", 0) > 850, counts.toString());
+        
+        balancer.excludeNode("p2");
+        counts.clear();
+        for (int i = 0; i < 1000; ++i) {
+            try {
+                counts.merge(balancer.get(), 1, Integer::sum);
+            }
+            catch (IllegalStateException ex) {
+                counts.merge("failed", 1, Integer::sum);
+            }
+        }
+        
+        // The local zone has little healthy capacity left. Spilling over.
+        assertTrue(counts.getOrDefault("val3", 0) > 600, counts.toString());
+    }
+    
+    @Test
+    public void testRateLimit()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.getMaxRequestsPerSecond()).thenReturn(1);
+        final Provider p2 = provider("p2", "val2");
+        Mockito.when(p2.getMaxRequestsPerSecond()).thenReturn(2);
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3);
+        
+        assertEquals("val1", balancer.get());
+        assertEquals("val2", balancer.get());
+        // The node which is out of tokens is skipped.
+        assertEquals("val2", balancer.get());
+        // No node has tokens left.
+        assertThrows(IllegalStateException.class, () -> balancer.get());
+    }
+    
+    @Test
+    public void testRateLimit_ZoneAware()
+    {
+        final Provider p1 = provider("p1", "val1", "a");
+        Mockito.when(p1.getMaxRequestsPerSecond()).thenReturn(2);
+        final Provider p2 = provider("p2", "val2", "b");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, "a", 3);
+        
+        assertEquals("val1", balancer.get());
+        assertEquals("val1", balancer.get());
+        // The local node is out of tokens. Spilling over.
+        assertEquals("val2", balancer.get());
+        assertEquals("val2", balancer.get());
+    }
+    
+    @Test
+    public void testChildBalancers()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.getBatch(anyInt())).thenCallRealMethod();
+        final Provider p2 = provider("p2", "val2");
+        final Provider p3 = provider("p3", "val3");
+        
+        final LoadBalancer child1 = new LoadBalancer(new Provider[]{p1}, 3);
+        final LoadBalancer child2 = new LoadBalancer(
+                new Provider[]{p2, p3}, SelectorType.ROUND_ROBIN, 3);
+        
+        final LoadBalancer parent = new LoadBalancer(
+                new Provider[]{child1, child2}, SelectorType.ROUND_ROBIN, 3);
+        
+        assertEquals("val1", parent.get());
+        assertEquals("val2", parent.get());
+        assertEquals("val1", parent.get());
+        assertEquals("val3", parent.get());
+        assertArrayEquals(new String[]{"val1", "val1"}, parent.getBatch(2));
+        
+        assertTrue(child1.check());
+        assertEquals(3, child1.getAvailableCapacity());
+        
+        child1.excludeNode("p1");
+        
+        assertFalse(child1.check());
+        assertEquals(0, child1.getAvailableCapacity());
+        // The child without capacity is skipped.
+        assertEquals("val2", parent.get());
+        assertEquals("val3", parent.get());
+        
+        parent.excludeNode(child1.getUuid());
+        
+        assertEquals("val2", parent.get());
+        
+        child2.close();
+        
+        assertFalse(child2.check());
+        assertThrows(IllegalStateException.class, () -> parent.get());
+    }
+    
+    @Test
+    public void testChildBalancers_ChildSaturated() throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(1);
+        final Provider p1 = provider("p1", () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        final Provider p2 = provider("p2", "val2");
+        
+        final LoadBalancer child1 = new LoadBalancer(new Provider[]{p1}, 1);
+        final LoadBalancer child2 = new LoadBalancer(new Provider[]{p2}, 1);
+        final LoadBalancer parent = new LoadBalancer(
+                new Provider[]{child1, child2}, SelectorType.ROUND_ROBIN, 3);
+        
+        final String[] result = new String[1];
+        final Thread t = new Thread(() -> {
+            result[0] = parent.get();
+        });
+        t.setDaemon(true);
+        t.start();
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            
+            assertEquals(0, child1.getAvailableCapacity());
+            // The round-robin turn of the saturated child is skipped.
+            assertEquals("val2", parent.get());
+            assertEquals("val2", parent.get());
+            
+            getLatch.countDown();
+        }
+        finally {
+            t.join(10_000);
+        }
+        
+        assertEquals("val1", result[0]);
+        assertEquals(1, child1.getAvailableCapacity());
+    }
+    
     @Test
     public void testTooManyRequests() throws Exception
     {
@@ -348,11 +751,15 @@ public class LoadBalancerTest
         final List<BooleanSupplier> checkCallbacks = new ArrayList<>();
         final List<Consumer<Boolean>> handleCallbacks = new ArrayList<>();
         
+        // Probing the provider itself is the same as a check function.
+        Mockito.doCallRealMethod().when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
         Mockito.doAnswer(inv -> {
             checkCallbacks.add(inv.getArgument(0));
             handleCallbacks.add(inv.getArgument(1));
             return null;
-        }).when(checker).registerChecker(any(), any(), anyLong(), anyLong());
+        }).when(checker).registerChecker(
+                any(BooleanSupplier.class), any(), anyLong(), anyLong());
         
         final LoadBalancer balancer = new LoadBalancer(
                 new Provider[]{p1, p2}, SelectorType.RANDOM, 3,
@@ -360,8 +767,10 @@ public class LoadBalancerTest
         
         balancer.startHeartbeatChecking();
         
-        Mockito.verify(checker, Mockito.times(2)).registerChecker(
-                notNull(), notNull(), eq(123L), eq(456L));
+        Mockito.verify(checker).registerChecker(
+                same(p1), notNull(), eq(123L), eq(456L));
+        Mockito.verify(checker).registerChecker(
+                same(p2), notNull(), eq(123L), eq(456L));
         
         Mockito.verify(p1, Mockito.never()).check();
         Mockito.verify(p2, Mockito.never()).check();
@@ -382,6 +791,43 @@ public class LoadBalancerTest
         Mockito.verify(checker).close();
     }
     
+    @Test
+    public void testHeartbeatChecking_StateForgottenOnRemovalAndClose()
+    {
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final HeartbeatCheckResultHandler handler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        
+        final List<Consumer<Boolean>> handleCallbacks = new ArrayList<>();
+        Mockito.doAnswer(inv -> {
+            handleCallbacks.add(inv.getArgument(1));
+            return Mockito.mock(Future.class);
+        }).when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.RANDOM, 3,
+                checker, handler, 123, 456);
+        balancer.startHeartbeatChecking();
+        
+        balancer.removeProvider("p1");
+        Mockito.verify(handler).remove(balancer, p1);
+        
+        // A late result of the removed provider is not handled.
+        handleCallbacks.get(0).accept(Boolean.TRUE);
+        Mockito.verify(handler, Mockito.never()).handle(
+                anyBoolean(), any(), same(p1));
+        
+        handleCallbacks.get(1).accept(Boolean.TRUE);
+        Mockito.verify(handler).handle(true, balancer, p2);
+        
+        balancer.close();
+        Mockito.verify(handler).remove(balancer, p2);
+        Mockito.verifyNoMoreInteractions(handler);
+    }
+    
     @Test
     public void testStartHeartbeatChecking_WithHeartbeatChecker_RepeatedCall()
     {
@@ -398,19 +844,979 @@ public class LoadBalancerTest
         balancer.startHeartbeatChecking();
         
         Mockito.verify(checker, Mockito.times(2)).registerChecker(
-                notNull(), notNull(), eq(123L), eq(456L));
+                any(Provider.class), notNull(), eq(123L), eq(456L));
         
         balancer.startHeartbeatChecking();
         
         Mockito.verify(checker, Mockito.times(2)).registerChecker(
-                notNull(), notNull(), eq(123L), eq(456L));
+                any(Provider.class), notNull(), eq(123L), eq(456L));
     }
     
-    private static Provider provider(final String uuid, final String val)
+    @Test
+    public void testTrafficHealth_BusyNodeNotProbed() throws Exception
     {
-        final Provider result = Mockito.mock(Provider.class);
-        Mockito.when(result.getUuid()).thenReturn(uuid);
-        Mockito.when(result.get()).thenReturn(val);
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.check()).thenReturn(true);
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final List<BooleanSupplier> probes = new ArrayList<>();
+        final LoadBalancer balancer = trafficHealthBalancer(
+                p1, checker, 100, probes);
+        final BooleanSupplier probe = probes.get(0);
+        
+        // No traffic yet.
+        assertTrue(probe.getAsBoolean());
+        Mockito.verify(p1).check();
+        
+        assertEquals("val1", balancer.get());
+        
+        assertTrue(probe.getAsBoolean());
+        assertTrue(probe.getAsBoolean());
+        Mockito.verify(p1, Mockito.times(1)).check();
+        
+        // The node gets idle.
+        Thread.sleep(200);
+        
+        assertTrue(probe.getAsBoolean());
+        Mockito.verify(p1, Mockito.times(2)).check();
+        Mockito.verify(checker, Mockito.never()).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+    }
+    
+    @Test
+    public void testTrafficHealth_FailedRequestMakesNodeSuspect()
+    {
+        final AtomicBoolean up = new AtomicBoolean(true);
+        final Provider p1 = provider("p1", () -> {
+            if (!up.get()) {
+                throw new IllegalStateException("down");
+            }
+            return "val1";
+        });
+        Mockito.when(p1.check()).thenAnswer(inv -> up.get());
+        final List<BooleanSupplier> probes = new ArrayList<>();
+        final LoadBalancer balancer = trafficHealthBalancer(
+                p1, Mockito.mock(HeartbeatChecker.class), 60_000, probes);
+        final BooleanSupplier probe = probes.get(0);
+        
+        balancer.get();
+        up.set(false);
+        assertThrows(IllegalStateException.class, () -> balancer.get());
+        
+        assertFalse(probe.getAsBoolean());
+        Mockito.verify(p1).check();
+        
+        up.set(true);
+        balancer.get();
+        
+        // Live successes do not clear suspicion. A probe does.
+        assertTrue(probe.getAsBoolean());
+        assertTrue(probe.getAsBoolean());
+        Mockito.verify(p1, Mockito.times(2)).check();
+    }
+    
+    @Test
+    public void testTrafficHealth_SkippedChecksCountedSeparately()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.check()).thenReturn(true);
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final List<BooleanSupplier> probes = new ArrayList<>();
+        final List<Consumer<Boolean>> handlers = new ArrayList<>();
+        Mockito.doAnswer(inv -> {
+            probes.add(inv.getArgument(0));
+            handlers.add(inv.getArgument(1));
+            return null;
+        }).when(checker).registerChecker(
+                any(BooleanSupplier.class), any(), anyLong(), anyLong());
+        final HeartbeatCheckResultHandler handler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        final LoadBalancer balancer = new LoadBalancer(new Provider[]{p1},
+                SelectorType.ROUND_ROBIN, null, 3, checker, handler,
+                60_000, 100, null, null, true);
+        balancer.startHeartbeatChecking();
+        final BooleanSupplier probe = probes.get(0);
+        final Consumer<Boolean> probeHandler = handlers.get(0);
+        
+        probeHandler.accept(probe.getAsBoolean());
+        balancer.get();
+        probeHandler.accept(probe.getAsBoolean());
+        probeHandler.accept(probe.getAsBoolean());
+        
+        Mockito.verify(p1).check();
+        final LoadBalancer.NodeStats stats = balancer.getNodeStats().get(0);
+        assertEquals(1, stats.heartbeatSuccesses);
+        assertEquals(2, stats.heartbeatSkips);
+        assertEquals(0, stats.heartbeatFailures);
+        // The handler still sees the node healthy.
+        Mockito.verify(handler, Mockito.times(3)).handle(true, balancer, p1);
+    }
+    
+    @Test
+    public void testTrafficHealth_BatchOutcomes()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.getBatch(2)).thenReturn(new String[]{"v1", "v2"});
+        Mockito.when(p1.getBatch(3)).thenThrow(new IllegalStateException());
+        final List<BooleanSupplier> probes = new ArrayList<>();
+        final LoadBalancer balancer = trafficHealthBalancer(
+                p1, Mockito.mock(HeartbeatChecker.class), 60_000, probes);
+        final BooleanSupplier probe = probes.get(0);
+        
+        balancer.getBatch(2);
+        
+        assertTrue(probe.getAsBoolean());
+        Mockito.verify(p1, Mockito.never()).check();
+        
+        assertThrows(IllegalStateException.class, () -> balancer.getBatch(3));
+        
+        assertFalse(probe.getAsBoolean());
+        Mockito.verify(p1).check();
+    }
+    
+    @Test
+    public void testTrafficHealth_SmallBufferIsNotNodeFailure()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.get(any(ByteBuffer.class))).thenCallRealMethod();
+        final List<BooleanSupplier> probes = new ArrayList<>();
+        final LoadBalancer balancer = trafficHealthBalancer(
+                p1, Mockito.mock(HeartbeatChecker.class), 60_000, probes);
+        
+        balancer.get();
+        assertThrows(BufferOverflowException.class,
+                () -> balancer.get(ByteBuffer.allocate(2)));
+        
+        assertTrue(probes.get(0).getAsBoolean());
+        Mockito.verify(p1, Mockito.never()).check();
+    }
+    
+    @Test
+    public void testTrafficHealth_ExcludedNodeProbed()
+    {
+        final Provider p1 = provider("p1", "val1");
+        final List<BooleanSupplier> probes = new ArrayList<>();
+        final LoadBalancer balancer = trafficHealthBalancer(
+                p1, Mockito.mock(HeartbeatChecker.class), 60_000, probes);
+        final BooleanSupplier probe = probes.get(0);
+        
+        balancer.get();
+        balancer.excludeNode("p1");
+        
+        // The result of the probe is reported and not taken from traffic.
+        assertFalse(probe.getAsBoolean());
+        Mockito.verify(p1).check();
+        
+        balancer.includeNode("p1");
+        
+        assertTrue(probe.getAsBoolean());
+        Mockito.verify(p1, Mockito.times(1)).check();
+    }
+    
+    @Test
+    public void testAddProvider()
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.ROUND_ROBIN, 3);
+        
+        assertEquals("val1", balancer.get());
+        
+        balancer.addProvider(p2);
+        
+        assertEquals("val1", balancer.get());
+        assertEquals("val2", balancer.get());
+        
+        balancer.excludeNode("p2");
+        
+        assertEquals("val1", balancer.get());
+        assertEquals("val1", balancer.get());
+        
+        balancer.includeNode("p2");
+        
+        assertEquals("val1", balancer.get());
+        assertEquals("val2", balancer.get());
+        
+        assertThrows(IllegalArgumentException.class,
+                () -> balancer.addProvider(provider("p2", "val3")));
+    }
+    
+    @Test
+    public void testAddProvider_TooManyProviders()
+    {
+        final Provider[] providers = new Provider[10];
+        for (int i = 0; i < providers.length; ++i) {
+            providers[i] = provider("p" + i, "val" + i);
+        }
+        final LoadBalancer balancer = new LoadBalancer(providers, 3);
+        
+        assertThrows(IllegalStateException.class,
+                () -> balancer.addProvider(provider("p10", "val10")));
+        
+        balancer.removeProvider("p0");
+        balancer.addProvider(provider("p10", "val10"));
+    }
+    
+    @Test
+    public void testRemoveProvider()
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        final Provider p3 = provider("p3", "val3");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3);
+        
+        balancer.removeProvider("p1");
+        
+        assertEquals("val2", balancer.get());
+        assertEquals("val2", balancer.get());
+        
+        // Late heartbeat results must not bring the node back.
+        assertThrows(IllegalStateException.class,
+                () -> balancer.includeNode("p1"));
+        assertThrows(IllegalStateException.class,
+                () -> balancer.removeProvider("p1"));
+        
+        balancer.addProvider(p3);
+        
+        assertEquals("val2", balancer.get());
+        assertEquals("val3", balancer.get());
+        
+        balancer.removeProvider("p2");
+        balancer.removeProvider("p3");
+        
+        assertThrows(IllegalStateException.class, () -> balancer.get());
+        
+        balancer.addProvider(p1);
+        
+        assertEquals("val1", balancer.get());
+    }
+    
+    @Test
+    public void testRemoveProvider_LateExcludeOfReusedSlot()
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        final Provider p3 = provider("p3", "val3");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3);
+        // Exclusion which has read the index before removal.
+        final int p1Idx = balancer.getNodeIdx("p1");
+        
+        balancer.removeProvider("p1");
+        balancer.addProvider(p3);
+        
+        assertEquals(p1Idx, balancer.getNodeIdx("p3"));
+        
+        balancer.excludeNode("p1", p1Idx);
+        
+        assertEquals(6, balancer.getCapacity());
+        assertThrows(IllegalStateException.class,
+                () -> balancer.excludeNode("p1"));
+        assertEquals(6, balancer.getCapacity());
+        
+        balancer.excludeNode("p3");
+        
+        assertEquals(3, balancer.getCapacity());
+    }
+    
+    @Test
+    public void testRemoveProvider_InFlightRequestsDrained() throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(1);
+        final Provider p1 = provider("p1", () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        final Provider p2 = provider("p2", "val2");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3);
+        
+        final String[] result = new String[1];
+        final Thread t = new Thread(() -> {
+            result[0] = balancer.get();
+        });
+        t.setDaemon(true);
+        t.start();
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            
+            balancer.removeProvider("p1");
+            
+            assertEquals("val2", balancer.get());
+            assertEquals("val2", balancer.get());
+            
+            getLatch.countDown();
+        }
+        finally {
+            t.join(10_000);
+        }
+        
+        assertEquals("val1", result[0]);
+    }
+    
+    @Test
+    public void testAddAndRemoveProvider_WithHeartbeatChecker()
+    {
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final HeartbeatCheckResultHandler handler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        final Future<?> task1 = Mockito.mock(Future.class);
+        final Future<?> task2 = Mockito.mock(Future.class);
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        
+        Mockito.doReturn(task1, task2).when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 3,
+                checker, handler, 123, 456);
+        
+        balancer.startHeartbeatChecking();
+        
+        Mockito.verify(checker).registerChecker(
+                any(Provider.class), notNull(), eq(123L), eq(456L));
+        
+        balancer.addProvider(p2);
+        
+        Mockito.verify(checker, Mockito.times(2)).registerChecker(
+                any(Provider.class), notNull(), eq(123L), eq(456L));
+        
+        balancer.removeProvider("p1");
+        
+        Mockito.verify(task1).cancel(false);
+        Mockito.verifyNoInteractions(task2);
+        
+        balancer.removeProvider("p2");
+        
+        Mockito.verify(task2).cancel(false);
+    }
+    
+    @Test
+    public void testGetIntoByteBuffer()
+    {
+        final byte[] response = "val1".getBytes(StandardCharsets.UTF_8);
+        final Provider p1 = new Provider("p1", null, 0) {
+            @Override
+            public int get(final ByteBuffer dst)
+            {
+                dst.put(response);
+                return response.length;
+            }
+        };
+        final LoadBalancer child = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 2);
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{child}, SelectorType.RANDOM, 2);
+        
+        final ByteBuffer dst = ByteBuffer.allocateDirect(16);
+        dst.put((byte) '>');
+        
+        assertEquals(4, balancer.get(dst));
+        assertEquals(5, dst.position());
+        dst.flip();
+        final byte[] written = new byte[dst.remaining()];
+        dst.get(written);
+        assertEquals(">val1", new String(written, StandardCharsets.UTF_8));
+        assertEquals(2, balancer.getAvailableCapacity());
+        assertEquals(2, child.getAvailableCapacity());
+        assertTrue(child.getLatencyEstimateNs("p1") > 0);
+    }
+    
+    @Test
+    public void testGetIntoByteBuffer_DefaultEncodesString()
+    {
+        final Provider p1 = provider("p1", "v\u00e1l1");
+        Mockito.when(p1.get(any(ByteBuffer.class))).thenCallRealMethod();
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 2);
+        
+        final ByteBuffer dst = ByteBuffer.allocate(16);
+        
+        assertEquals(5, balancer.get(dst));
+        assertEquals("v\u00e1l1", new String(dst.array(), 0, dst.position(),
+                StandardCharsets.UTF_8));
+        
+        // The slot is released if the response does not fit.
+        assertThrows(BufferOverflowException.class,
+                () -> balancer.get(ByteBuffer.allocate(2)));
+        assertEquals(2, balancer.getAvailableCapacity());
+    }
+    
+    @Test
+    public void testGetWithDeadline()
+    {
+        final Provider p1 = provider("p1", "val1");
+        Mockito.when(p1.get("key1")).thenReturn("val1-key1");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 2);
+        
+        assertEquals("val1", balancer.get(10_000));
+        assertEquals("val1-key1", balancer.get("key1", 10_000));
+        assertEquals(2, balancer.getAvailableCapacity());
+        assertThrows(IllegalArgumentException.class, () -> balancer.get(0));
+    }
+    
+    @Test
+    public void testGetWithDeadline_ProviderInterrupted()
+    {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final Provider p1 = provider("p1", () -> {
+            try {
+                Thread.sleep(60_000);
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                interrupted.set(true);
+                throw new RuntimeException(ex);
+            }
+        });
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 2);
+        
+        final long start = System.nanoTime();
+        final IllegalStateException ex = assertThrows(
+                IllegalStateException.class, () -> balancer.get(50));
+        
+        assertTrue(System.nanoTime() - start >=
+                TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(interrupted.get());
+        assertTrue(ex.getCause() instanceof RuntimeException);
+        // The interruption caused by the deadline is not leaked.
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(2, balancer.getAvailableCapacity());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50),
+                balancer.getLatencyEstimateNs("p1"));
+    }
+    
+    @Test
+    public void testGetWithDeadline_SlotReleasedForStuckProvider()
+            throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(1);
+        final Provider p1 = provider("p1", () -> {
+            testLatch.countDown();
+            // Ignoring interruption.
+            while (getLatch.getCount() > 0) {
+                try {
+                    getLatch.await();
+                }
+                catch (InterruptedException ex) {
+                    // Stuck.
+                }
+            }
+            return "val1";
+        });
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 1);
+        
+        final Throwable[] failure = new Throwable[1];
+        final Thread t = new Thread(() -> {
+            try {
+                balancer.get(50);
+            }
+            catch (Throwable ex) {
+                failure[0] = ex;
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            final long deadline = System.nanoTime() +
+                    TimeUnit.SECONDS.toNanos(10);
+            while (balancer.getAvailableCapacity() == 0) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+            // The slot is released while the provider is still stuck.
+            assertTrue(t.isAlive());
+        }
+        finally {
+            getLatch.countDown();
+            t.join(10_000);
+        }
+        
+        assertTrue(failure[0] instanceof IllegalStateException);
+        assertEquals(1, balancer.getAvailableCapacity());
+    }
+    
+    @Test
+    public void testGetWithDeadline_TimeoutTriggersCheck()
+    {
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final HeartbeatCheckResultHandler handler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        final List<BooleanSupplier> checks = new ArrayList<>();
+        final List<Consumer<Boolean>> checkHandlers = new ArrayList<>();
+        Mockito.doAnswer(inv -> {
+            synchronized (checks) {
+                checks.add(inv.getArgument(0));
+                checkHandlers.add(inv.getArgument(1));
+            }
+            return null;
+        }).when(checker).checkNow(any(), any(), anyLong());
+        final Provider p1 = provider("p1", () -> {
+            try {
+                Thread.sleep(60_000);
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 2,
+                checker, handler, 123, 456);
+        
+        // Not started heartbeat checks would never include the node back.
+        assertThrows(IllegalStateException.class, () -> balancer.get(20));
+        Mockito.verify(checker, Mockito.never()).checkNow(
+                any(), any(), anyLong());
+        
+        balancer.startHeartbeatChecking();
+        
+        assertThrows(IllegalStateException.class, () -> balancer.get(20));
+        Mockito.verify(checker, Mockito.timeout(10_000)).checkNow(
+                notNull(), notNull(), eq(456L));
+        
+        // Coalesced with the pending check.
+        assertThrows(IllegalStateException.class, () -> balancer.get(20));
+        Mockito.verify(checker).checkNow(any(), any(), anyLong());
+        
+        // The timeout itself does not count as a failed heartbeat check.
+        Mockito.verifyNoInteractions(handler);
+        
+        // A briefly slow node passes the check and is not excluded.
+        Mockito.when(p1.check()).thenReturn(true);
+        checkHandlers.get(0).accept(checks.get(0).getAsBoolean());
+        Mockito.verify(handler).handle(true, balancer, p1);
+        
+        assertThrows(IllegalStateException.class, () -> balancer.get(20));
+        Mockito.verify(checker, Mockito.timeout(10_000).times(2)).checkNow(
+                notNull(), notNull(), eq(456L));
+        
+        Mockito.when(p1.check()).thenReturn(false);
+        checkHandlers.get(1).accept(checks.get(1).getAsBoolean());
+        Mockito.verify(handler).handle(false, balancer, p1);
+        
+        // The result for a removed provider is dropped.
+        assertThrows(IllegalStateException.class, () -> balancer.get(20));
+        Mockito.verify(checker, Mockito.timeout(10_000).times(3)).checkNow(
+                notNull(), notNull(), eq(456L));
+        balancer.removeProvider("p1");
+        Mockito.verify(handler).remove(balancer, p1);
+        checkHandlers.get(2).accept(Boolean.FALSE);
+        Mockito.verifyNoMoreInteractions(handler);
+    }
+    
+    @Test
+    public void testShutdown_InFlightRequestsDrained() throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(1);
+        final Provider p1 = provider("p1", () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        
+        // Single request at a time to never block the test thread in get().
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.RANDOM, 1,
+                checker, Mockito.mock(HeartbeatCheckResultHandler.class),
+                123, 456);
+        
+        final String[] result = new String[1];
+        final Thread t = new Thread(() -> {
+            result[0] = balancer.get();
+        });
+        t.setDaemon(true);
+        t.start();
+        
+        final long[] leftover = new long[]{-1};
+        final Thread shutdownThread = new Thread(() -> {
+            try {
+                leftover[0] = balancer.shutdown(10_000);
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        shutdownThread.setDaemon(true);
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            
+            shutdownThread.start();
+            
+            // Admission is stopped right away.
+            while (true) {
+                try {
+                    balancer.get();
+                    fail("The request limit must be reached.");
+                }
+                catch (IllegalStateException ex) {
+                    if ("Load balancer is closed.".equals(ex.getMessage())) {
+                        break;
+                    }
+                    Thread.sleep(1);
+                }
+            }
+            Mockito.verify(checker, Mockito.never()).close();
+            
+            getLatch.countDown();
+        }
+        finally {
+            t.join(10_000);
+            shutdownThread.join(10_000);
+        }
+        
+        assertEquals("val1", result[0]);
+        assertEquals(0, leftover[0]);
+        Mockito.verify(checker).close();
+    }
+    
+    @Test
+    public void testShutdown_Timeout() throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(1);
+        final Provider p1 = provider("p1", () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val1";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        
+        final LoadBalancer balancer = new LoadBalancer(new Provider[]{p1}, 3);
+        
+        final Thread t = new Thread(() -> {
+            balancer.get();
+        });
+        t.setDaemon(true);
+        t.start();
+        
+        try {
+            assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+            
+            assertEquals(1, balancer.shutdown(20));
+            assertThrows(IllegalStateException.class, () -> balancer.get());
+        }
+        finally {
+            getLatch.countDown();
+            t.join(10_000);
+        }
+        
+        assertEquals(0, balancer.shutdown(0));
+    }
+    
+    @Test
+    public void testWarmStart(@TempDir final Path dir) throws Exception
+    {
+        final Path file = dir.resolve("health");
+        final HeartbeatCheckResultHandler handler =
+                new HeartbeatCheckResultHandlerImpl();
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        
+        try (final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, null, 3,
+                Mockito.mock(HeartbeatChecker.class), handler, 123, 456,
+                new HealthSnapshot(file, 10, 60_000, 60_000))) {
+            balancer.startHeartbeatChecking();
+            
+            assertEquals(0, balancer.getLatencyEstimateNs("p1"));
+            assertEquals("val1", balancer.get());
+            assertTrue(balancer.getLatencyEstimateNs("p1") > 0);
+            
+            handler.handle(true, balancer, p1);
+            balancer.excludeNode("p2");
+        }
+        
+        // The same backends after a restart.
+        final Provider p1New = provider("p1", "val1");
+        final Provider p2New = provider("p2", "val2");
+        final HeartbeatCheckResultHandler newHandler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        try (final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1New, p2New}, SelectorType.ROUND_ROBIN, null, 3,
+                Mockito.mock(HeartbeatChecker.class), newHandler, 123, 456,
+                new HealthSnapshot(file, 10, 60_000, 60_000))) {
+            
+            assertTrue(balancer.getLatencyEstimateNs("p1") > 0);
+            // The balancer is not exposed before it is constructed.
+            Mockito.verifyNoInteractions(newHandler);
+            balancer.startHeartbeatChecking();
+            Mockito.verify(newHandler).setSuccessfulChecks(balancer, p1New, 1);
+            Mockito.verify(newHandler).setSuccessfulChecks(balancer, p2New, 0);
+            
+            // The dead node is not routed to from the first request.
+            assertEquals("val1", balancer.get());
+            assertEquals("val1", balancer.get());
+            Mockito.verify(p2New, Mockito.never()).get();
+        }
+    }
+    
+    @Test
+    public void testWarmStart_FailedConstructorClosesSnapshot(
+            @TempDir final Path dir) throws Exception
+    {
+        final HeartbeatCheckResultHandler handler =
+                Mockito.mock(HeartbeatCheckResultHandler.class);
+        final HealthSnapshot snapshot = Mockito.spy(
+                new HealthSnapshot(dir.resolve("health"), 10, 60_000, 60_000));
+        
+        assertThrows(NullPointerException.class, () -> new LoadBalancer(
+                new Provider[]{provider("p1", "val1"), null},
+                SelectorType.ROUND_ROBIN, null, 3,
+                Mockito.mock(HeartbeatChecker.class), handler, 123, 456,
+                snapshot));
+        
+        Mockito.verify(snapshot).close();
+        Mockito.verifyNoInteractions(handler);
+    }
+    
+    @Test
+    public void testSharedCounters(@TempDir final Path dir) throws Exception
+    {
+        final CountDownLatch getLatch = new CountDownLatch(1);
+        final CountDownLatch testLatch = new CountDownLatch(2);
+        final Supplier<String> getImpl = () -> {
+            try {
+                testLatch.countDown();
+                getLatch.await();
+                return "val";
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        };
+        
+        final Path file = dir.resolve("counters");
+        // Two load balancers stand for two processes on the same host.
+        try (final SharedNodeCounters counters1 =
+                    new SharedNodeCounters(file, 10);
+                final SharedNodeCounters counters2 =
+                    new SharedNodeCounters(file, 10);
+                final LoadBalancer balancer1 = new LoadBalancer(
+                    new Provider[]{provider("p1", getImpl),
+                            provider("p2", getImpl)},
+                    SelectorType.ROUND_ROBIN, null, 1,
+                    null, null, -1, -1, null, counters1);
+                final LoadBalancer balancer2 = new LoadBalancer(
+                    new Provider[]{provider("p1", "val1"),
+                            provider("p2", "val2")},
+                    SelectorType.ROUND_ROBIN, null, 1,
+                    null, null, -1, -1, null, counters2)) {
+            final Thread[] threads = new Thread[2];
+            for (int i = 0; i < threads.length; ++i) {
+                final Thread t = new Thread(() -> {
+                    balancer1.get();
+                });
+                t.setDaemon(true);
+                t.start();
+                threads[i] = t;
+            }
+            
+            try {
+                assertTrue(testLatch.await(10, TimeUnit.SECONDS));
+                
+                // Both nodes are at the host-wide limit.
+                final IllegalStateException ex = assertThrows(
+                        IllegalStateException.class, () -> balancer2.get());
+                assertEquals("No node has spare capacity.", ex.getMessage());
+            }
+            finally {
+                getLatch.countDown();
+                for (int i = 0; i < threads.length; ++i) {
+                    threads[i].join(10_000);
+                }
+            }
+            
+            // Released budget is available to the other process.
+            assertEquals(new HashSet<>(Arrays.asList("val1", "val2")),
+                    new HashSet<>(Arrays.asList(
+                            balancer2.get(), balancer2.get())));
+        }
+    }
+    
+    @Test
+    public void testSharedCounters_SlotFreedWhenRemovedProviderDrained(
+            @TempDir final Path dir) throws Exception
+    {
+        final Provider[] providers = new Provider[4];
+        for (int i = 0; i < providers.length; ++i) {
+            providers[i] = provider("p" + i, "val" + i);
+        }
+        
+        // Four slots for at most one provider.
+        try (final SharedNodeCounters counters = new SharedNodeCounters(
+                    dir.resolve("counters"), 1);
+                final LoadBalancer balancer = new LoadBalancer(
+                    providers, SelectorType.ROUND_ROBIN, null, 1,
+                    null, null, -1, -1, null, counters)) {
+            assertThrows(IllegalStateException.class,
+                    () -> balancer.addProvider(provider("p4", "val4")));
+            
+            final LoadBalancer.Node node = balancer.acquire(1);
+            balancer.removeProvider(node.getProvider().getUuid());
+            
+            // The slot is held while the request is in flight.
+            assertThrows(IllegalStateException.class,
+                    () -> balancer.addProvider(provider("p4", "val4")));
+            
+            balancer.release(node, 1);
+            balancer.addProvider(provider("p4", "val4"));
+        }
+    }
+    
+    @Test
+    public void testAddProvider_FailedNodeKeepsFreeSlot(@TempDir final Path dir)
+            throws Exception
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        final Provider p3 = provider("p3", "val3");
+        final char[] longUuid = new char[SharedNodeCounters.MAX_UUID_BYTES + 1];
+        Arrays.fill(longUuid, 'x');
+        final Provider tooLong = provider(new String(longUuid), "val4");
+        
+        try (final SharedNodeCounters counters = new SharedNodeCounters(
+                    dir.resolve("counters"), 10);
+                final LoadBalancer balancer = new LoadBalancer(
+                    new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, null, 1,
+                    null, null, -1, -1, null, counters)) {
+            final int p1Idx = balancer.getNodeIdx("p1");
+            balancer.removeProvider("p1");
+            
+            assertThrows(IllegalArgumentException.class,
+                    () -> balancer.addProvider(tooLong));
+            
+            balancer.addProvider(p3);
+            assertEquals(p1Idx, balancer.getNodeIdx("p3"));
+        }
+    }
+    
+    @Test
+    public void testUpdateProviders_FailedNodeChangesNothing(
+            @TempDir final Path dir) throws Exception
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        final Provider p3 = provider("p3", "val3");
+        final char[] longUuid = new char[SharedNodeCounters.MAX_UUID_BYTES + 1];
+        Arrays.fill(longUuid, 'x');
+        final Provider tooLong = provider(new String(longUuid), "val4");
+        
+        try (final SharedNodeCounters counters = new SharedNodeCounters(
+                    dir.resolve("counters"), 10);
+                final LoadBalancer balancer = new LoadBalancer(
+                    new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, null, 1,
+                    null, null, -1, -1, null, counters)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> balancer.updateProviders(new String[]{"p1"},
+                            new Provider[]{p3, tooLong}));
+            
+            balancer.getNodeIdx("p1");
+            assertThrows(IllegalStateException.class,
+                    () -> balancer.getNodeIdx("p3"));
+            assertEquals(2, balancer.getCapacity());
+        }
+    }
+    
+    @Test
+    public void testNodeEvents()
+    {
+        final Provider p1 = provider("p1", "val1");
+        final Provider p2 = provider("p2", "val2");
+        
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.ROUND_ROBIN, 3);
+        final NodeEventStream.Subscription sub = balancer.subscribe();
+        final List<String> events = new ArrayList<>();
+        final NodeEventListener listener = (type, uuid) -> {
+            events.add(type + ":" + uuid);
+        };
+        
+        balancer.addProvider(p2);
+        balancer.excludeNode("p1");
+        // No transition.
+        balancer.excludeNode("p1");
+        balancer.includeNode("p1");
+        balancer.removeProvider("p2");
+        
+        assertEquals(4, sub.poll(listener, 10));
+        assertEquals(Arrays.asList("ADDED:p2", "EXCLUDED:p1", "INCLUDED:p1",
+                "REMOVED:p2"), events);
+    }
+    
+    /**
+     * Starts heartbeat checking of a load balancer in the traffic health
+     * mode with the mocked checker.
+     * 
+     * @param probes receives the heartbeat check of the provider.
+     */
+    private static LoadBalancer trafficHealthBalancer(final Provider p1,
+            final HeartbeatChecker checker, final long rateMs,
+            final List<BooleanSupplier> probes)
+    {
+        Mockito.doAnswer(inv -> {
+            probes.add(inv.getArgument(0));
+            return null;
+        }).when(checker).registerChecker(
+                any(BooleanSupplier.class), any(), anyLong(), anyLong());
+        final LoadBalancer balancer = new LoadBalancer(new Provider[]{p1},
+                SelectorType.ROUND_ROBIN, null, 3, checker,
+                Mockito.mock(HeartbeatCheckResultHandler.class),
+                rateMs, 100, null, null, true);
+        balancer.startHeartbeatChecking();
+        return balancer;
+    }
+    
+    private static Provider provider(final String uuid, final String val)
+    {
+        final Provider result = Mockito.mock(Provider.class);
+        Mockito.when(result.getUuid()).thenReturn(uuid);
+        Mockito.when(result.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
+        Mockito.when(result.get()).thenReturn(val);
+        return result;
+    }
+    
+    private static Provider provider(final String uuid, final String val,
+            final String zone)
+    {
+        final Provider result = provider(uuid, val);
+        Mockito.when(result.getZone()).thenReturn(zone);
         return result;
     }
     
@@ -419,6 +1825,7 @@ public class LoadBalancerTest
     {
         final Provider result = Mockito.mock(Provider.class);
         Mockito.when(result.getUuid()).thenReturn(uuid);
+        Mockito.when(result.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
         Mockito.when(result.get()).thenAnswer(inv -> {
             return getImpl.get();
         });
@@ -0,0 +1,119 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntFunction;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class MicroBatcherTest
+{
+    @Test
+    public void testSingleRequestSentOnDelayExpiry()
+    {
+        final IntFunction<String[]> loader = Mockito.mock(IntFunction.class);
+        Mockito.when(loader.apply(1)).thenReturn(new String[]{"val1"});
+        
+        final MicroBatcher batcher = new MicroBatcher(loader, 10, 5);
+        
+        assertEquals("val1", batcher.get());
+        assertEquals("val1", batcher.get());
+        Mockito.verify(loader, Mockito.times(2)).apply(1);
+        Mockito.verifyNoMoreInteractions(loader);
+    }
+    
+    @Test
+    public void testFullBatchSentRightAway() throws Exception
+    {
+        final int batchSize = 4;
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final IntFunction<String[]> loader = n -> {
+            batchSizes.add(n);
+            final String[] result = new String[n];
+            for (int i = 0; i < n; ++i) {
+                result[i] = "val" + i;
+            }
+            return result;
+        };
+        
+        // The delay is long enough for the test to time out if it is awaited.
+        final MicroBatcher batcher = new MicroBatcher(
+                loader, batchSize, 600_000);
+        
+        final String[] results = new String[batchSize];
+        final Thread[] threads = new Thread[batchSize];
+        for (int i = 0; i < batchSize; ++i) {
+            final int idx = i;
+            final Thread t = new Thread(() -> {
+                results[idx] = batcher.get();
+            });
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        for (int i = 0; i < batchSize; ++i) {
+            threads[i].join(10_000);
+            assertFalse(threads[i].isAlive());
+        }
+        
+        assertEquals(Arrays.asList(batchSize), batchSizes);
+        assertEquals(new HashSet<>(Arrays.asList("val0", "val1", "val2", "val3")),
+                new HashSet<>(Arrays.asList(results)));
+    }
+    
+    @Test
+    public void testFailure()
+    {
+        final IntFunction<String[]> loader = Mockito.mock(IntFunction.class);
+        Mockito.when(loader.apply(1))
+                .thenThrow(new IllegalStateException())
+                .thenReturn(new String[]{"val1"});
+        
+        final MicroBatcher batcher = new MicroBatcher(loader, 1, 0);
+        
+        assertThrows(IllegalStateException.class, () -> batcher.get());
+        assertEquals("val1", batcher.get());
+    }
+    
+    @Test
+    public void testError() throws Exception
+    {
+        final int batchSize = 2;
+        final IntFunction<String[]> loader = n -> {
+            throw new AssertionError("test");
+        };
+        final MicroBatcher batcher = new MicroBatcher(
+                loader, batchSize, 600_000);
+        
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        final Thread[] threads = new Thread[batchSize];
+        for (int i = 0; i < batchSize; ++i) {
+            final Thread t = new Thread(() -> {
+                try {
+                    batcher.get();
+                }
+                catch (Throwable ex) {
+                    errors.add(ex);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        for (int i = 0; i < batchSize; ++i) {
+            threads[i].join(10_000);
+            assertFalse(threads[i].isAlive());
+        }
+        
+        // Each request of the batch gets the error.
+        assertEquals(batchSize, errors.size());
+        for (final Throwable ex : errors) {
+            assertEquals(AssertionError.class, ex.getClass());
+        }
+    }
+}
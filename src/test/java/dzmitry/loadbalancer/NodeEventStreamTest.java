@@ -0,0 +1,131 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class NodeEventStreamTest
+{
+    private static class Recorder implements NodeEventListener
+    {
+        private final List<String> events = new ArrayList<>();
+        private long missed;
+        
+        @Override
+        public void onEvent(final NodeEventType type, final String uuid)
+        {
+            events.add(type + ":" + uuid);
+        }
+        
+        @Override
+        public void onMissed(final long count)
+        {
+            missed += count;
+        }
+    }
+    
+    @Test
+    public void testPublishAndPoll()
+    {
+        final NodeEventStream stream = new NodeEventStream(4);
+        
+        // Events published before subscribing are not delivered.
+        stream.publish(NodeEventType.ADDED, "p0");
+        
+        final NodeEventStream.Subscription sub = stream.subscribe();
+        final Recorder recorder = new Recorder();
+        
+        assertEquals(0, sub.poll(recorder, 10));
+        
+        stream.publish(NodeEventType.EXCLUDED, "p1");
+        stream.publish(NodeEventType.INCLUDED, "p1");
+        stream.publish(NodeEventType.REMOVED, "p2");
+        
+        assertEquals(2, sub.poll(recorder, 2));
+        assertEquals(1, sub.poll(recorder, 10));
+        assertEquals(0, sub.poll(recorder, 10));
+        assertEquals(Arrays.asList("EXCLUDED:p1", "INCLUDED:p1", "REMOVED:p2"),
+                recorder.events);
+        assertEquals(0, recorder.missed);
+    }
+    
+    @Test
+    public void testSlowSubscriberMissesEvents()
+    {
+        final NodeEventStream stream = new NodeEventStream(4);
+        final NodeEventStream.Subscription slow = stream.subscribe();
+        final NodeEventStream.Subscription fast = stream.subscribe();
+        final Recorder slowRecorder = new Recorder();
+        final Recorder fastRecorder = new Recorder();
+        
+        // Publishing never waits for subscribers.
+        for (int i = 0; i < 10; ++i) {
+            stream.publish(NodeEventType.ADDED, "p" + i);
+            fast.poll(fastRecorder, 10);
+        }
+        
+        assertEquals(10, fastRecorder.events.size());
+        assertEquals(0, fastRecorder.missed);
+        
+        assertEquals(4, slow.poll(slowRecorder, 10));
+        assertEquals(6, slowRecorder.missed);
+        assertEquals(Arrays.asList("ADDED:p6", "ADDED:p7", "ADDED:p8",
+                "ADDED:p9"), slowRecorder.events);
+    }
+    
+    @Test
+    public void testConcurrentPublishers() throws Exception
+    {
+        final int threadCount = 4;
+        final int eventCount = 10_000;
+        final NodeEventStream stream = new NodeEventStream(64);
+        final NodeEventStream.Subscription sub = stream.subscribe();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong missed = new AtomicLong();
+        final NodeEventListener listener = new NodeEventListener() {
+            @Override
+            public void onEvent(final NodeEventType type, final String uuid)
+            {
+                assertNotNull(type);
+                assertNotNull(uuid);
+                delivered.incrementAndGet();
+            }
+            
+            @Override
+            public void onMissed(final long count)
+            {
+                missed.addAndGet(count);
+            }
+        };
+        
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            final String uuid = "p" + i;
+            final Thread t = new Thread(() -> {
+                for (int j = 0; j < eventCount; ++j) {
+                    stream.publish(NodeEventType.EXCLUDED, uuid);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        for (int i = 0; i < threadCount; ++i) {
+            while (threads[i].isAlive()) {
+                sub.poll(listener, 100);
+            }
+            threads[i].join(10_000);
+        }
+        while (sub.poll(listener, 100) > 0) {
+            // Draining the rest.
+        }
+        
+        // Each event is either delivered or reported as missed.
+        assertEquals(threadCount * eventCount, delivered.get() + missed.get());
+    }
+}
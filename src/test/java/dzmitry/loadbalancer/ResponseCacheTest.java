@@ -0,0 +1,154 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class ResponseCacheTest
+{
+    @Test
+    public void testHitAndMiss()
+    {
+        final Function<String, String> loader = Mockito.mock(Function.class);
+        Mockito.when(loader.apply("k1")).thenReturn("v1");
+        Mockito.when(loader.apply("k2")).thenReturn("v2");
+        
+        final ResponseCache cache = new ResponseCache(loader, 10, 60_000);
+        
+        assertEquals("v1", cache.get("k1"));
+        assertEquals("v1", cache.get("k1"));
+        assertEquals("v2", cache.get("k2"));
+        assertEquals(2, cache.size());
+        
+        Mockito.verify(loader).apply("k1");
+        Mockito.verify(loader).apply("k2");
+        
+        cache.invalidate("k1");
+        
+        assertEquals("v1", cache.get("k1"));
+        Mockito.verify(loader, Mockito.times(2)).apply("k1");
+    }
+    
+    @Test
+    public void testTtl()
+    {
+        final AtomicLong clock = new AtomicLong();
+        final Function<String, String> loader = Mockito.mock(Function.class);
+        Mockito.when(loader.apply("k1")).thenReturn("v1", "v2");
+        
+        final ResponseCache cache = new ResponseCache(
+                loader, 10, 100, clock::get);
+        
+        assertEquals("v1", cache.get("k1"));
+        
+        clock.set(TimeUnit.MILLISECONDS.toNanos(99));
+        
+        assertEquals("v1", cache.get("k1"));
+        
+        clock.set(TimeUnit.MILLISECONDS.toNanos(100));
+        
+        assertEquals("v2", cache.get("k1"));
+        assertEquals(1, cache.size());
+        Mockito.verify(loader, Mockito.times(2)).apply("k1");
+    }
+    
+    @Test
+    public void testClockEviction()
+    {
+        final Function<String, String> loader = Mockito.mock(Function.class);
+        Mockito.when(loader.apply(Mockito.anyString())).thenAnswer(
+                inv -> "v" + inv.getArgument(0));
+        
+        final ResponseCache cache = new ResponseCache(loader, 2, 60_000);
+        
+        cache.get("a");
+        cache.get("b");
+        // Gives "a" the second chance.
+        cache.get("a");
+        // Evicts "b" which is not referenced since it is loaded.
+        cache.get("c");
+        
+        assertEquals(2, cache.size());
+        
+        cache.get("a");
+        cache.get("c");
+        Mockito.verify(loader).apply("a");
+        Mockito.verify(loader).apply("c");
+        
+        cache.get("b");
+        Mockito.verify(loader, Mockito.times(2)).apply("b");
+        assertEquals(2, cache.size());
+    }
+    
+    @Test
+    public void testFailureIsNotCached()
+    {
+        final Function<String, String> loader = Mockito.mock(Function.class);
+        Mockito.when(loader.apply("k1"))
+                .thenThrow(new IllegalStateException())
+                .thenReturn("v1");
+        
+        final ResponseCache cache = new ResponseCache(loader, 10, 60_000);
+        
+        assertThrows(IllegalStateException.class, () -> cache.get("k1"));
+        assertEquals(0, cache.size());
+        assertEquals("v1", cache.get("k1"));
+    }
+    
+    @Test
+    public void testConcurrentMissesShareLoad() throws Exception
+    {
+        final int threadCount = 8;
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch loadLatch = new CountDownLatch(1);
+        
+        final ResponseCache cache = new ResponseCache(key -> {
+            loadCount.incrementAndGet();
+            loadStarted.countDown();
+            try {
+                loadLatch.await();
+            }
+            catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            return "v1";
+        }, 10, 60_000);
+        
+        final String[] results = new String[threadCount];
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            final int idx = i;
+            final Thread t = new Thread(() -> {
+                results[idx] = cache.get("k1");
+            });
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        
+        try {
+            assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+            // Giving the other threads a chance to miss the cache.
+            Thread.sleep(50);
+            loadLatch.countDown();
+        }
+        finally {
+            for (int i = 0; i < threadCount; ++i) {
+                threads[i].join(10_000);
+            }
+        }
+        
+        assertEquals(1, loadCount.get());
+        for (int i = 0; i < threadCount; ++i) {
+            assertEquals("v1", results[i]);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class ShardedAdmissionTest
+{
+    @Test
+    public void testExactCapacity()
+    {
+        final ShardedAdmission admission = new ShardedAdmission(4);
+        
+        // Budgets of other stripes are used when the own one is exhausted.
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(admission.tryAcquire(1, 10));
+        }
+        assertFalse(admission.tryAcquire(1, 10));
+        assertEquals(10, admission.getInFlight());
+        
+        // Releasing everything from one thread rebalances the stripes.
+        for (int i = 0; i < 10; ++i) {
+            admission.release(1);
+        }
+        assertEquals(0, admission.getInFlight());
+        
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(admission.tryAcquire(1, 10));
+        }
+        assertFalse(admission.tryAcquire(1, 10));
+    }
+    
+    @Test
+    public void testBatch()
+    {
+        final ShardedAdmission admission = new ShardedAdmission(2);
+        
+        assertTrue(admission.tryAcquire(3, 6));
+        assertTrue(admission.tryAcquire(3, 6));
+        assertFalse(admission.tryAcquire(1, 6));
+        
+        admission.release(3);
+        
+        // A batch must fit into a single stripe.
+        assertFalse(admission.tryAcquire(4, 6));
+        assertTrue(admission.tryAcquire(3, 6));
+    }
+    
+    @Test
+    public void testConcurrentLimit() throws Exception
+    {
+        final int threadCount = 8;
+        final int capacity = 5;
+        final ShardedAdmission admission = new ShardedAdmission(4);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            final Thread t = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        if (!admission.tryAcquire(1, capacity)) {
+                            continue;
+                        }
+                        final int val = inFlight.incrementAndGet();
+                        maxInFlight.accumulateAndGet(val, Math::max);
+                        inFlight.decrementAndGet();
+                        admission.release(1);
+                    }
+                }
+                finally {
+                    done.countDown();
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads[i] = t;
+        }
+        
+        try {
+            Thread.sleep(200);
+        }
+        finally {
+            stop.set(true);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        
+        assertTrue(maxInFlight.get() <= capacity);
+        assertEquals(0, admission.getInFlight());
+    }
+    
+    @Test
+    public void testConcurrentLimit_CrossThreadRelease() throws Exception
+    {
+        final int threadCount = 8;
+        final int capacity = 4;
+        final ShardedAdmission admission = new ShardedAdmission(2);
+        final Queue<Object> admitted = new ConcurrentLinkedQueue<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicLong maxCounted = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch acquirersDone = new CountDownLatch(threadCount);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        
+        // Requests are admitted by some threads and released by others.
+        for (int i = 0; i < threadCount; ++i) {
+            final Thread acquirer = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        if (admission.tryAcquire(1, capacity)) {
+                            final int val = inFlight.incrementAndGet();
+                            maxInFlight.accumulateAndGet(val, Math::max);
+                            maxCounted.accumulateAndGet(
+                                    admission.getInFlight(), Math::max);
+                            admitted.add(Boolean.TRUE);
+                        }
+                    }
+                }
+                finally {
+                    acquirersDone.countDown();
+                }
+            });
+            final Thread releaser = new Thread(() -> {
+                try {
+                    while (acquirersDone.getCount() > 0 ||
+                            !admitted.isEmpty()) {
+                        if (admitted.poll() != null) {
+                            inFlight.decrementAndGet();
+                            admission.release(1);
+                        }
+                    }
+                }
+                finally {
+                    done.countDown();
+                }
+            });
+            acquirer.setDaemon(true);
+            releaser.setDaemon(true);
+            acquirer.start();
+            releaser.start();
+        }
+        
+        try {
+            Thread.sleep(300);
+        }
+        finally {
+            stop.set(true);
+            assertTrue(acquirersDone.await(10, TimeUnit.SECONDS));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        
+        assertTrue(maxInFlight.get() <= capacity, "max: " + maxInFlight);
+        assertTrue(maxCounted.get() <= capacity, "max: " + maxCounted);
+        assertEquals(0, admission.getInFlight());
+    }
+}
@@ -0,0 +1,126 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SharedNodeCountersTest
+{
+    @TempDir
+    Path dir;
+    
+    @Test
+    public void testSharedBetweenInstances() throws Exception
+    {
+        final Path file = dir.resolve("counters");
+        // Two instances on the same file stand for two processes.
+        try (final SharedNodeCounters c1 = new SharedNodeCounters(file, 8);
+                final SharedNodeCounters c2 = new SharedNodeCounters(file, 8)) {
+            final int p1 = c1.slot("p1");
+            final int p2 = c1.slot("p2");
+            // Each instance holds the slot of the provider separately.
+            final int p1c2 = c2.slot("p1");
+            final int p2c2 = c2.slot("p2");
+            
+            assertNotEquals(p1, p2);
+            assertNotEquals(p1, p1c2);
+            
+            assertTrue(c1.tryAcquire(p1, 2, 3));
+            assertTrue(c2.tryAcquire(p1c2, 1, 3));
+            assertFalse(c2.tryAcquire(p1c2, 1, 3));
+            assertFalse(c1.tryAcquire(p1, 1, 3));
+            assertTrue(c2.tryAcquire(p2c2, 3, 3));
+            assertEquals(3, c1.get(p1));
+            assertEquals(3, c1.get(p2));
+            
+            c1.release(p1, 2);
+            
+            assertEquals(1, c2.get(p1c2));
+            assertTrue(c2.tryAcquire(p1c2, 2, 3));
+        }
+    }
+    
+    @Test
+    public void testFull() throws Exception
+    {
+        try (final SharedNodeCounters counters = new SharedNodeCounters(
+                dir.resolve("counters"), 1)) {
+            for (int i = 0; i < 4; ++i) {
+                counters.slot("p" + i);
+            }
+            assertThrows(IllegalStateException.class,
+                    () -> counters.slot("p4"));
+            // Known providers are still found.
+            counters.slot("p0");
+        }
+    }
+    
+    @Test
+    public void testFreedSlotReused() throws Exception
+    {
+        final Path file = dir.resolve("counters");
+        try (final SharedNodeCounters c1 = new SharedNodeCounters(file, 1);
+                final SharedNodeCounters c2 = new SharedNodeCounters(file, 1)) {
+            final int[] slots = new int[4];
+            for (int i = 0; i < slots.length; ++i) {
+                slots[i] = c1.slot("p" + i);
+            }
+            c2.slot("p1");
+            assertThrows(IllegalStateException.class, () -> c1.slot("p4"));
+            
+            // The slot is still held by the other instance.
+            c1.free(slots[1]);
+            assertThrows(IllegalStateException.class, () -> c1.slot("p4"));
+            
+            // Requests in flight keep the slot held.
+            assertTrue(c1.tryAcquire(slots[0], 1, 3));
+            c1.free(slots[0]);
+            assertThrows(IllegalStateException.class, () -> c1.slot("p4"));
+            
+            c1.release(slots[0], 1);
+            c1.free(slots[2]);
+            final int p4 = c1.slot("p4");
+            assertEquals(0, c1.get(p4));
+            // Other providers are still found.
+            assertEquals(slots[3], c1.slot("p3"));
+            
+            c1.free(p4);
+            assertThrows(IllegalStateException.class, () -> c1.free(p4));
+        }
+    }
+    
+    @Test
+    public void testCrashedProcessReclaimed() throws Exception
+    {
+        final Process process = new ProcessBuilder("true").start();
+        assertEquals(0, process.waitFor());
+        
+        final Path file = dir.resolve("counters");
+        try (final SharedNodeCounters crashed = new SharedNodeCounters(
+                    file, 8, process.pid());
+                final SharedNodeCounters counters = new SharedNodeCounters(
+                    file, 8)) {
+            final int p1Crashed = crashed.slot("p1");
+            assertTrue(crashed.tryAcquire(p1Crashed, 3, 3));
+            
+            // The restarted process does not see the requests in flight.
+            final int p1 = counters.slot("p1");
+            assertEquals(0, counters.get(p1));
+            assertTrue(counters.tryAcquire(p1, 3, 3));
+        }
+    }
+    
+    @Test
+    public void testIncompatibleFile() throws Exception
+    {
+        final Path file = dir.resolve("counters");
+        try (final SharedNodeCounters counters = new SharedNodeCounters(
+                file, 8)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> new SharedNodeCounters(file, 100));
+        }
+    }
+}
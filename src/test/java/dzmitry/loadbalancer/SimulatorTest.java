@@ -0,0 +1,90 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class SimulatorTest
+{
+    @Test
+    public void testReproducible()
+    {
+        final NodeModel[] models = new NodeModel[50];
+        Arrays.fill(models, new NodeModel("zone1",
+                LatencyDistribution.logNormal(5, 1), 2, 0.01, 100, 50));
+        
+        final Simulator simulator = new Simulator(models, 20, 10, 123);
+        final SimulationResult r1 = simulator.run(
+                SelectorType.RANDOM, null, 8, 10_000, 20_000);
+        final SimulationResult r2 = simulator.run(
+                SelectorType.RANDOM, null, 8, 10_000, 20_000);
+        
+        assertEquals(r1.toString(), r2.toString());
+        assertEquals(20_000, r1.getCompleted() + r1.getFailed() +
+                r1.getRejected());
+        assertTrue(r1.getFailed() > 0);
+        
+        final SimulationResult r3 = new Simulator(models, 20, 10, 124).run(
+                SelectorType.RANDOM, null, 8, 10_000, 20_000);
+        
+        assertNotEquals(r1.toString(), r3.toString());
+    }
+    
+    @Test
+    public void testRoundRobin()
+    {
+        final NodeModel[] models = new NodeModel[10];
+        Arrays.fill(models, new NodeModel(
+                LatencyDistribution.constant(10), 1));
+        
+        // 10 nodes processing 100 requests per second each.
+        final SimulationResult result = new Simulator(models, 0, 0, 1).run(
+                SelectorType.ROUND_ROBIN, null, 5, 500, 10_000);
+        
+        assertEquals(10_000, result.getCompleted());
+        assertEquals(0, result.getFailed());
+        assertEquals(0, result.getRejected());
+        assertEquals(1.0, result.getFairness(), 1e-9);
+        assertTrue(result.getP50Ns() >= 10_000_000);
+        assertTrue(result.getP999Ns() >= result.getP99Ns());
+        assertTrue(result.getP99Ns() >= result.getP50Ns());
+        assertEquals(500, result.getThroughput(), 25);
+    }
+    
+    @Test
+    public void testHeartbeatExcludesDownNode()
+    {
+        final NodeModel[] models = new NodeModel[4];
+        Arrays.fill(models, new NodeModel(
+                LatencyDistribution.constant(1), 4));
+        // Down most of the time.
+        models[0] = new NodeModel(null, LatencyDistribution.constant(1), 4,
+                0, 1, 1_000_000);
+        
+        final SimulationResult withoutHeartbeat = new Simulator(
+                models, 0, 0, 7).run(
+                        SelectorType.RANDOM, null, 4, 1000, 10_000);
+        final SimulationResult withHeartbeat = new Simulator(
+                models, 10, 5, 7).run(
+                        SelectorType.RANDOM, null, 4, 1000, 10_000);
+        
+        assertTrue(withoutHeartbeat.getFailed() > 2000);
+        assertTrue(withHeartbeat.getFailed() < 100);
+    }
+    
+    @Test
+    public void testThousandsOfNodes()
+    {
+        final NodeModel[] models = new NodeModel[5000];
+        Arrays.fill(models, new NodeModel(
+                LatencyDistribution.exponential(10), 2));
+        
+        final SimulationResult result = new Simulator(models, 0, 0, 1).run(
+                SelectorType.SHARDED_ROUND_ROBIN, null, 4, 500_000, 200_000);
+        
+        assertEquals(200_000, result.getCompleted());
+        assertEquals(0, result.getRejected());
+    }
+}
@@ -0,0 +1,193 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class SocketProviderTest
+{
+    @Test
+    public void testGetAndCheck() throws Exception
+    {
+        try (final StandInServer server = new StandInServer(
+                key -> key == null ? "default" : "v" + key);
+                final SocketProvider provider = new SocketProvider(
+                        server.getAddress(), 2, 10_000)) {
+            assertEquals("vk1", provider.get("k1"));
+            assertEquals("default", provider.get());
+            assertTrue(provider.check());
+            assertArrayEquals(new String[]{"default", "default", "default"},
+                    provider.getBatch(3));
+        }
+    }
+    
+    @Test
+    public void testErrorResponse() throws Exception
+    {
+        try (final StandInServer server = new StandInServer(key -> {
+                    if ("bad".equals(key)) {
+                        throw new IllegalArgumentException("Bad key.");
+                    }
+                    return key;
+                });
+                final SocketProvider provider = new SocketProvider(
+                        server.getAddress(), 1, 10_000)) {
+            final IllegalStateException ex = assertThrows(
+                    IllegalStateException.class, () -> provider.get("bad"));
+            assertEquals("Bad key.", ex.getMessage());
+            // The connection is still usable.
+            assertEquals("good", provider.get("good"));
+            assertEquals(1, server.getConnectionCount());
+        }
+    }
+    
+    @Test
+    public void testPipelining() throws Exception
+    {
+        final int threadCount = 8;
+        final int callCount = 200;
+        final AtomicInteger errors = new AtomicInteger();
+        try (final StandInServer server = new StandInServer(key -> key);
+                final SocketProvider provider = new SocketProvider(
+                        server.getAddress(), 2, 10_000)) {
+            final Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; ++i) {
+                final String prefix = "t" + i + "-";
+                final Thread t = new Thread(() -> {
+                    for (int j = 0; j < callCount; ++j) {
+                        // Responses must match requests.
+                        if (!(prefix + j).equals(provider.get(prefix + j))) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+                threads[i] = t;
+            }
+            for (int i = 0; i < threadCount; ++i) {
+                threads[i].join(10_000);
+            }
+            
+            assertEquals(0, errors.get());
+            assertEquals(threadCount * callCount, server.getRequestCount());
+            // All requests are multiplexed over the pool.
+            assertEquals(2, server.getConnectionCount());
+        }
+    }
+    
+    @Test
+    public void testTimeout() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        try (final StandInServer server = new StandInServer(key -> {
+                    if ("slow".equals(key)) {
+                        try {
+                            latch.await(10, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                    return key;
+                });
+                final SocketProvider provider = new SocketProvider(
+                        server.getAddress(), 1, 50)) {
+            final IllegalStateException ex = assertThrows(
+                    IllegalStateException.class, () -> provider.get("slow"));
+            assertEquals("Request timed out.", ex.getMessage());
+            
+            latch.countDown();
+            
+            // The late response is not mistaken for the next one.
+            assertEquals("fast", provider.get("fast"));
+        }
+    }
+    
+    @Test
+    public void testTimeout_BackendDoesNotAnswer() throws Exception
+    {
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try (final StandInServer server = new StandInServer(key -> {
+                    if ("hang".equals(key)) {
+                        received.countDown();
+                        try {
+                            latch.await(10, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                    return key;
+                });
+                final SocketProvider provider = new SocketProvider(
+                        server.getAddress(), 1, 200)) {
+            final AtomicReference<Exception> hangError =
+                    new AtomicReference<>();
+            final Thread t = new Thread(() -> {
+                try {
+                    provider.get("hang");
+                }
+                catch (IllegalStateException ex) {
+                    hangError.set(ex);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            
+            // Pipelined behind the call which is never answered.
+            assertThrows(IllegalStateException.class,
+                    () -> provider.get("next"));
+            t.join(10_000);
+            assertEquals("Request timed out.", hangError.get().getMessage());
+            
+            latch.countDown();
+            
+            // The connection is re-established.
+            assertEquals("fast", provider.get("fast"));
+            assertEquals(2, server.getConnectionCount());
+        }
+    }
+    
+    @Test
+    public void testBackendDown() throws Exception
+    {
+        final StandInServer server = new StandInServer(key -> key);
+        try (final SocketProvider provider = new SocketProvider(
+                server.getAddress(), 1, 10_000)) {
+            assertTrue(provider.check());
+            
+            server.close();
+            
+            assertFalse(provider.check());
+            assertThrows(IllegalStateException.class, () -> provider.get());
+        }
+        finally {
+            server.close();
+        }
+    }
+    
+    @Test
+    public void testWithLoadBalancer() throws Exception
+    {
+        try (final StandInServer server1 = new StandInServer(key -> "s1");
+                final StandInServer server2 = new StandInServer(key -> "s2");
+                final SocketProvider p1 = new SocketProvider(
+                        server1.getAddress(), 1, 10_000);
+                final SocketProvider p2 = new SocketProvider(
+                        server2.getAddress(), 1, 10_000);
+                final LoadBalancer balancer = new LoadBalancer(
+                        new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3)) {
+            assertEquals("s1", balancer.get());
+            assertEquals("s2", balancer.get());
+            assertEquals("s1", balancer.get("k"));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class StatsServerTest
+{
+    @Test
+    public void testRender() throws Exception
+    {
+        final Provider p1 = new Provider("p1", null, 0);
+        final Provider p2 = new Provider("p\"2", null, 0);
+        final HeartbeatChecker checker = Mockito.mock(HeartbeatChecker.class);
+        final Map<Provider, Consumer<Boolean>> callbacks = new HashMap<>();
+        Mockito.doAnswer(inv -> {
+            callbacks.put(inv.getArgument(0), inv.getArgument(1));
+            return null;
+        }).when(checker).registerChecker(
+                any(Provider.class), any(), anyLong(), anyLong());
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1, p2}, SelectorType.ROUND_ROBIN, 3,
+                checker, Mockito.mock(HeartbeatCheckResultHandler.class),
+                100, 100);
+        balancer.startHeartbeatChecking();
+        
+        balancer.get();
+        balancer.get();
+        callbacks.get(p1).accept(Boolean.TRUE);
+        callbacks.get(p1).accept(Boolean.TRUE);
+        callbacks.get(p1).accept(Boolean.FALSE);
+        balancer.excludeNode("p1");
+        balancer.excludeNode("p\"2");
+        assertThrows(IllegalStateException.class, () -> balancer.get());
+        
+        try (final StatsServer server = new StatsServer(balancer,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            final String text = server.render();
+            
+            assertTrue(text.contains("# TYPE lb_capacity gauge\n" +
+                    "lb_capacity 0\n"), text);
+            assertTrue(text.contains("lb_in_flight 0\n"), text);
+            assertTrue(text.contains(
+                    "lb_rejected_total{reason=\"capacity\"} 1\n"), text);
+            assertTrue(text.contains(
+                    "lb_rejected_total{reason=\"closed\"} 0\n"), text);
+            assertTrue(text.contains("lb_node_active{node=\"p1\"} 0\n"), text);
+            // Label values are escaped.
+            assertTrue(text.contains("lb_node_in_flight{node=\"p\\\"2\"} 0\n"),
+                    text);
+            assertTrue(text.contains("lb_node_heartbeat_checks_total{" +
+                    "node=\"p1\",result=\"success\"} 2\n"), text);
+            assertTrue(text.contains("lb_node_heartbeat_checks_total{" +
+                    "node=\"p1\",result=\"failure\"} 1\n"), text);
+            assertTrue(text.contains("lb_node_heartbeat_checks_total{" +
+                    "node=\"p1\",result=\"skipped\"} 0\n"), text);
+            assertTrue(text.contains("# TYPE lb_node_latency_seconds " +
+                    "histogram\n"), text);
+            assertTrue(text.contains("lb_node_latency_seconds_bucket{" +
+                    "node=\"p1\",le=\"0.0001\"} 1\n"), text);
+            assertTrue(text.contains("lb_node_latency_seconds_bucket{" +
+                    "node=\"p1\",le=\"10\"} 1\n"), text);
+            assertTrue(text.contains("lb_node_latency_seconds_bucket{" +
+                    "node=\"p1\",le=\"+Inf\"} 1\n"), text);
+            assertTrue(text.contains(
+                    "lb_node_latency_seconds_count{node=\"p1\"} 1\n"), text);
+        }
+    }
+    
+    @Test
+    public void testDeadlineTimeoutsCounted() throws Exception
+    {
+        final Provider p1 = Mockito.mock(Provider.class);
+        Mockito.when(p1.getUuid()).thenReturn("p1");
+        Mockito.when(p1.getAvailableCapacity()).thenReturn(Long.MAX_VALUE);
+        Mockito.when(p1.get()).thenAnswer(inv -> {
+            try {
+                Thread.sleep(10_000);
+            }
+            catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return "val1";
+        });
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{p1}, SelectorType.ROUND_ROBIN, 3);
+        
+        assertThrows(IllegalStateException.class, () -> balancer.get(10));
+        
+        try (final StatsServer server = new StatsServer(balancer,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            final String text = server.render();
+            
+            assertTrue(text.contains(
+                    "lb_node_deadline_timeouts_total{node=\"p1\"} 1\n"), text);
+            // The timed out request counts with its deadline as latency.
+            assertTrue(text.contains("lb_node_latency_seconds_bucket{" +
+                    "node=\"p1\",le=\"0.01\"} 1\n"), text);
+            assertTrue(text.contains(
+                    "lb_node_latency_seconds_sum{node=\"p1\"} 0.01\n"),
+                    text);
+        }
+    }
+    
+    @Test
+    public void testHttp() throws Exception
+    {
+        final LoadBalancer balancer = new LoadBalancer(
+                new Provider[]{new Provider("p1", null, 0)}, 3);
+        
+        try (final StatsServer server = new StatsServer(balancer,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            final URL url = new URL("http://127.0.0.1:" + server.getPort() +
+                    StatsServer.PATH);
+            
+            final HttpURLConnection get =
+                    (HttpURLConnection) url.openConnection();
+            final String body;
+            try (final InputStream in = get.getInputStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            
+            assertEquals(200, get.getResponseCode());
+            assertTrue(get.getContentType().startsWith("text/plain; " +
+                    "version=0.0.4"));
+            assertTrue(body.contains("lb_capacity 3\n"), body);
+            assertTrue(body.contains("lb_node_active{node=\"p1\"} 1\n"), body);
+            
+            final HttpURLConnection post =
+                    (HttpURLConnection) url.openConnection();
+            post.setRequestMethod("POST");
+            
+            assertEquals(405, post.getResponseCode());
+        }
+    }
+}
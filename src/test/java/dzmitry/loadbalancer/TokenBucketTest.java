@@ -0,0 +1,67 @@
+package dzmitry.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest
+{
+    @Test
+    public void testBurstAndRefill()
+    {
+        final AtomicLong clock = new AtomicLong(123);
+        final TokenBucket bucket = new TokenBucket(10, 3, clock::get);
+        
+        assertTrue(bucket.hasTokens());
+        assertTrue(bucket.tryAcquire(2));
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.hasTokens());
+        assertFalse(bucket.tryAcquire(1));
+        
+        // 10 tokens per second is one token per 100 ms.
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(99));
+        
+        assertFalse(bucket.tryAcquire(1));
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+        
+        // The bucket does not hold more than the burst.
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(100));
+        
+        assertFalse(bucket.tryAcquire(4));
+        assertTrue(bucket.tryAcquire(3));
+        assertFalse(bucket.tryAcquire(1));
+    }
+    
+    @Test
+    public void testFractionalRefill()
+    {
+        final AtomicLong clock = new AtomicLong();
+        final TokenBucket bucket = new TokenBucket(3, 1, clock::get);
+        
+        assertTrue(bucket.tryAcquire(1));
+        
+        // Partial tokens are accumulated across checks.
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        assertFalse(bucket.tryAcquire(1));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(140));
+        assertTrue(bucket.tryAcquire(1));
+    }
+    
+    @Test
+    public void testInvalidArguments()
+    {
+        assertThrows(IllegalArgumentException.class,
+                () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TokenBucket(1, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TokenBucket(1, TokenBucket.MAX_BURST + 1));
+    }
+}